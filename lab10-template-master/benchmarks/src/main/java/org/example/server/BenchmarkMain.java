@@ -0,0 +1,51 @@
+package org.example.server;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * runs the benchmarks with the usual JMH options, e.g. "Ledger" to run only the
+ * ledger suite or "-p mode=nio", the results are written as JSON to
+ * jmh-results.json unless "-rf" or "-rff" say otherwise, so runs can be
+ * compared by a script
+ */
+public class BenchmarkMain
+{
+    public final static String RESULTS = "jmh-results.json";
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers()
+                || options.shouldListResultFormats() || options.shouldListWithParams())
+        {
+            // nothing is measured, plain JMH does the listing
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (!options.getResultFormat().hasValue())
+        {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!options.getResult().hasValue())
+        {
+            builder.result(RESULTS);
+        }
+
+        try
+        {
+            new Runner(builder.build()).run();
+        }
+        catch (RunnerException e)
+        {
+            System.err.println("Error running the benchmarks:\n" + e);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.example.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * the cost of one command inside a session: parsing the line, dispatching it
+ * through the opcode table, running it against an in-memory ledger and
+ * formatting the reply, without any socket, the session is logged in once
+ * before the measurement
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark
+{
+    // the command being measured
+    @Param({"VIEW", "DEP 1", "WITH 1", "BATCH DEP 1;WITH 1;DEP 1;WITH 1", "UNKNOWN"})
+    public String command;
+
+    protected ResponseBuffer responses;
+    protected ATMThread session;
+    protected CredentialService credentials;
+    protected byte[] line;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        // a fast hash, logging in isn't what's measured here
+        credentials = new CredentialService("sha256", 1, 1, 16, new SessionTokens(new byte[32], 3600, 16));
+        Ledger ledger = new Ledger();
+        // enough money that withdrawing never runs out during a run
+        ledger.open("bench", credentials.hash("bench").join(), 1L << 40);
+
+        responses = new ResponseBuffer();
+        session = new ATMThread("Bench", responses, ledger, credentials);
+        run("UID bench");
+        run("PWD bench");
+        responses.drain();
+
+        line = command.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        credentials.shutdown();
+    }
+
+    @Benchmark
+    public ByteBuffer processLine()
+    {
+        session.processLine(line, 0, line.length);
+        return responses.drain();
+    }
+
+    /**
+     * this function hands a command to the session outside the measurement
+     */
+    protected void run(String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        session.processLine(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,175 @@
+package org.example.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * deposits and withdrawals on an in-memory ledger from 1 to 64 threads at once,
+ * either all on one account, where every thread fights for the same balance, or
+ * spread over many, where they should scale
+ *
+ * every operation deposits 1 and withdraws it again, so balances stay put
+ *
+ * the reads* benchmarks read balances the same way, reads take no lock, so
+ * their throughput should grow with the threads up to the number of cores
+ * even on one account, and viewWhileDepositing reads from 15 threads while one
+ * more deposits to the same accounts, the reads shouldn't slow down for it
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LedgerBenchmark
+{
+    /**
+     * the ledger, shared by every thread
+     */
+    @State(Scope.Benchmark)
+    public static class Accounts
+    {
+        // 1 for a single contended account
+        @Param({"1", "1024"})
+        public int accounts;
+
+        protected Ledger ledger;
+        protected int[] slots;
+        protected final AtomicInteger threads = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            ledger = new Ledger();
+            slots = new int[accounts];
+            for (int i = 0; i < accounts; i++)
+            {
+                ledger.open("user" + i, new byte[0], 1_000);
+                slots[i] = ledger.slot("user" + i);
+            }
+        }
+    }
+
+    /**
+     * the accounts one thread works on, threads start at different accounts
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        protected int next;
+
+        @Setup(Level.Trial)
+        public void setup(Accounts shared)
+        {
+            next = shared.threads.getAndIncrement() % shared.slots.length;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads01(Accounts shared, Cursor cursor)
+    {
+        return transfer(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long threads04(Accounts shared, Cursor cursor)
+    {
+        return transfer(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long threads16(Accounts shared, Cursor cursor)
+    {
+        return transfer(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long threads64(Accounts shared, Cursor cursor)
+    {
+        return transfer(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long reads01(Accounts shared, Cursor cursor)
+    {
+        return view(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long reads04(Accounts shared, Cursor cursor)
+    {
+        return view(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long reads16(Accounts shared, Cursor cursor)
+    {
+        return view(shared, cursor);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long reads64(Accounts shared, Cursor cursor)
+    {
+        return view(shared, cursor);
+    }
+
+    @Benchmark
+    @Group("viewWhileDepositing")
+    @GroupThreads(15)
+    public long viewing(Accounts shared, Cursor cursor)
+    {
+        return view(shared, cursor);
+    }
+
+    @Benchmark
+    @Group("viewWhileDepositing")
+    @GroupThreads(1)
+    public long depositing(Accounts shared, Cursor cursor)
+    {
+        return transfer(shared, cursor);
+    }
+
+    /**
+     * this function reads the balance of the thread's next account
+     */
+    protected static long view(Accounts shared, Cursor cursor)
+    {
+        int slot = shared.slots[cursor.next];
+        cursor.next = (cursor.next + 1) % shared.slots.length;
+        return shared.ledger.balance(slot);
+    }
+
+    /**
+     * this function deposits 1 to the thread's next account and withdraws it
+     */
+    protected static long transfer(Accounts shared, Cursor cursor)
+    {
+        int slot = shared.slots[cursor.next];
+        cursor.next = (cursor.next + 1) % shared.slots.length;
+        shared.ledger.deposit(slot, 1);
+        return shared.ledger.withdraw(slot, 1);
+    }
+}
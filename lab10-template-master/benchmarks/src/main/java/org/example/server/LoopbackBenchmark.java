@@ -0,0 +1,135 @@
+package org.example.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * one request and its response over a loopback socket, against a whole server
+ * started inside the benchmark in each of its modes, so the number includes the
+ * kernel, the framing and the handing over between threads
+ *
+ * the server keeps its accounts in memory and logs warnings only, a client
+ * logs in once before the measurement and then sends one command at a time
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark
+{
+    @Param({"thread", "virtual", "nio"})
+    public String mode;
+
+    protected Socket socket;
+    protected OutputStream out;
+    protected BufferedReader in;
+
+    protected final byte[] view = "VIEW\n".getBytes(StandardCharsets.US_ASCII);
+    protected final byte[] deposit = "DEP 1\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0))
+        {
+            port = probe.getLocalPort();
+        }
+        Path logs = Files.createTempDirectory("atm-bench");
+        ServerConfig config = new ServerConfig(new String[] {
+                "--port=" + port, "--mode=" + mode, "--persist=false", "--password-hash=sha256",
+                "--log-level=warn", "--log-console=false", "--log-dir=" + logs });
+
+        // the constructor serves until the JVM exits, every run is forked so the
+        // server goes away with its fork
+        Thread serving = new Thread(() -> new ATMServer(config), "Bench server");
+        serving.setDaemon(true);
+        serving.start();
+
+        socket = connect(port);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+        // the greeting, then logging in as the seeded admin
+        in.readLine();
+        in.readLine();
+        request("UID admin\n".getBytes(StandardCharsets.US_ASCII));
+        request("PWD admin\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        socket.close();
+    }
+
+    @Benchmark
+    public String view() throws IOException
+    {
+        return request(view);
+    }
+
+    @Benchmark
+    public String deposit() throws IOException
+    {
+        return request(deposit);
+    }
+
+    /**
+     * this function sends a command and waits for its response
+     */
+    protected String request(byte[] command) throws IOException
+    {
+        out.write(command);
+        out.flush();
+        return in.readLine();
+    }
+
+    /**
+     * this function connects to the server once it's listening
+     */
+    protected static Socket connect(int port) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true)
+        {
+            try
+            {
+                return new Socket("localhost", port);
+            }
+            catch (IOException e)
+            {
+                if (System.currentTimeMillis() > deadline)
+                {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.example.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * the cost of a password, which replaced the old encryptPassword(): hashing one
+ * on the calling thread, and checking one the way a login does, through the
+ * pool of hashing threads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordBenchmark
+{
+    @Param({"pbkdf2", "sha256"})
+    public String algorithm;
+
+    // -1 for the default cost of the algorithm
+    @Param({"-1"})
+    public int cost;
+
+    protected CredentialService credentials;
+    protected byte[] credential;
+    protected final byte[] salt = new byte[CredentialService.SALT_BYTES];
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        credentials = new CredentialService(algorithm, cost, threads, 1024, new SessionTokens(new byte[32], 3600, 16));
+        credential = credentials.hash("password").join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        credentials.shutdown();
+    }
+
+    @Benchmark
+    public byte[] hash()
+    {
+        return CredentialService.run(credentials.algorithm, "password", salt, credentials.cost);
+    }
+
+    @Benchmark
+    public boolean verify()
+    {
+        return credentials.verify("password", credential).join();
+    }
+}
@@ -1,14 +1,17 @@
 package org.example.client;
 
 import java.io.*;
-import java.net.*;
 import java.util.*;
-
-public class ATMClient
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * the console of the ATM, it reads commands from the keyboard and hands them to
+ * an AsyncClient, every exchange with the server goes through that client
+ */
+public class ATMClient implements Closeable
 {
-    private Socket socket;
-    private PrintWriter networkOut;
-    private BufferedReader networkIn;
+    private AsyncClient client;
     private BufferedReader inputKeyboard = null;
 
     // we can read this from the user too
@@ -26,73 +29,57 @@ public class ATMClient
         /// connecting to the Server
         try
         {
-            // trying to connect to the server
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-        }
-        catch (UnknownHostException e)
-        {
-            // catching connection errors
-            System.err.println("Unknown host: " + SERVER_ADDRESS);
+            connect(SERVER_ADDRESS, SERVER_PORT);
+            System.out.println(client.greeting());
         }
         catch (IOException e)
         {
-            // catching connection errors
-            System.err.println("IOException while connecting to server: " + SERVER_ADDRESS);
-        }
-
-        // aborting if we couldn't establish a connection
-        if (socket == null)
-        {
-            System.err.println("socket is null");
-            System.exit(1);
-        }
-
-        // get in and outputstream from the socket/connection
-        try
-        {
-            networkOut = new PrintWriter(socket.getOutputStream(), true);
-            networkIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        }
-        catch (IOException e)
-        {
-            System.err.println("IOException while opening a read/write connection");
+            // aborting if we couldn't establish a connection
+            System.err.println(e.getMessage());
             System.exit(1);
         }
 
         // user will be typing the command
         inputKeyboard = new BufferedReader(new InputStreamReader(System.in));
 
-        /// reading initial response from the server
-        try
-        {
-            // reading the first two messages
-            System.out.println(networkIn.readLine()); // Welcome to chat
-            if (getStatusCode(networkIn.readLine()) != 100)
-            {
-                System.out.println("Incorrect greeting from server, aborting");
-                System.exit(1);
-            }
-        }
-        catch (IOException e)
-        {
-            // should break since there is an error
-            System.err.println("Error reading initial greeting from socket.");
-            System.exit(1);
-        }
-
         // processing commands
         while (processUserInput())
             ;
 
         // aborting program, close the socket
-        try
-        {
-            socket.close();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-        }
+        close();
+    }
+
+    /**
+     * constructor for clients driven by a program instead of the keyboard, e.g.
+     * the load generator, it connects and reads the greeting but shows no menu,
+     * commands are sent with pipeline(String...)
+     *
+     * @param host the address of the server
+     * @param port the port of the server
+     * @throws IOException if the server can't be reached, is busy or doesn't greet properly
+     */
+    public ATMClient(String host, int port) throws IOException
+    {
+        connect(host, port);
+    }
+
+    @Override
+    public void close()
+    {
+        client.close();
+    }
+
+    /**
+     * this function connects to the server and waits for its greeting
+     *
+     * @param host the address of the server
+     * @param port the port of the server
+     * @throws IOException if the server can't be reached, is busy or doesn't greet properly
+     */
+    protected void connect(String host, int port) throws IOException
+    {
+        client = join(AsyncClient.connect(host, port));
     }
 
     /**
@@ -139,22 +126,12 @@ public class ATMClient
         // try/catch to if the user doesn't input a number
         try
         {
-            // dropping into a switch statement
+            // dropping into a switch statement, every command ends the loop if the
+            // connection is lost
             switch (Integer.valueOf(input))
             {
                 case 1:
-                    try
-                    {
-                        // returning the result of the login function, will only return false
-                        // if the user quits out
-                        return login();
-                    }
-                    catch (IOException e)
-                    {
-                        System.out.println("Something happened during the login function:\n" + e);
-                        e.printStackTrace();
-                        return false;
-                    }
+                    return login();
                 case 2:
                     return createNewAccount();
                 case 3:
@@ -173,6 +150,11 @@ public class ATMClient
         {
             System.out.println("Please enter a valid command.");
         }
+        catch (IOException e)
+        {
+            System.out.println("Lost the connection to the server:\n" + e.getMessage());
+            return false;
+        }
 
         // base case
         return true;
@@ -181,13 +163,12 @@ public class ATMClient
     /**
      * login function
      *
-     * @throws IOException if there's an error reading data from the server
+     * @throws IOException if the connection to the server is lost
      * @return false if the user quits, true otherwise
      */
-    protected boolean login() throws IOException, RuntimeException
+    protected boolean login() throws IOException
     {
         String input;
-        String message;
 
         // clearing the auth state if the user decides to log into another account
         auth = false;
@@ -204,24 +185,7 @@ public class ATMClient
             return false;
         }
 
-        // sending the user id to the server
-        networkOut.println("UID " + input);
-        try
-        {
-            message = networkIn.readLine();
-
-            if (getStatusCode(message) != 100)
-            {
-                System.out.println(
-                        "Something went wrong when trying to send the username.\nReason: " + getStatusMessage(message));
-                return true;
-            }
-        }
-        catch (IOException e)
-        {
-            System.err.println("Error reading response to UID.");
-            return true;
-        }
+        String username = input;
 
         /// get password
 
@@ -229,22 +193,11 @@ public class ATMClient
         // reading user input
         input = tryReadInput();
 
-        // sending the password to the server
-        networkOut.println("PWD " + input);
-        try
-        {
-            message = networkIn.readLine();
-
-            // parsing the status code
-            if (getStatusCode(message) != 200)
-            {
-                System.out.println("Login unsuccessful: " + getStatusMessage(message));
-                return true;
-            }
-        }
-        catch (IOException e)
+        // the user id and the password are sent together, one round trip for both
+        AsyncClient.Login result = join(client.login(username, input));
+        if (!result.ok())
         {
-            System.err.println("Error reading response to PWD.");
+            System.out.println("Login unsuccessful: " + result.message);
             return true;
         }
 
@@ -267,9 +220,10 @@ public class ATMClient
      * if there is a server error, the server will return "500 Internal server
      * error"
      *
+     * @throws IOException if the connection to the server is lost
      * @return true, always
      */
-    protected boolean createNewAccount()
+    protected boolean createNewAccount() throws IOException
     {
         String username;
         String password;
@@ -307,37 +261,22 @@ public class ATMClient
             }
 
             // Send request to server
-            networkOut.println("NEW " + username + " " + password);
+            AsyncClient.Reply reply = join(client.create(username, password));
 
-            // Receive response from server
-            try
+            // Handle response
+            switch (reply.status)
             {
-                String response = networkIn.readLine();
-
-                // Parse status code
-                int statusCode = getStatusCode(response);
-
-                // Handle response
-                switch (statusCode)
-                {
-                    case 201:
-                        System.out.println("Account created successfully.");
-                        return true;
-                    case 400:
-                        System.out.println("Username or password is invalid.");
-                        break;
-                    case 500:
-                        System.out.println("Internal server error.");
-                        break;
-                    default:
-                        System.out.println("Unexpected response from server: " + response);
-                }
-            }
-            catch (IOException e)
-            {
-                System.out.println("Error reading server response: " + e.getMessage());
-                e.printStackTrace();
-                return true;
+                case 201:
+                    System.out.println("Account created successfully.");
+                    return true;
+                case 400:
+                    System.out.println("Username or password is invalid.");
+                    break;
+                case 500:
+                    System.out.println("Internal server error.");
+                    break;
+                default:
+                    System.out.println("Unexpected response from server: " + reply);
             }
         }
     }
@@ -351,79 +290,54 @@ public class ATMClient
      */
     protected boolean logout()
     {
-        networkOut.println("LOGOUT");
+        try
+        {
+            join(client.logout());
+        }
+        catch (IOException e)
+        {
+            // leaving anyway
+        }
         return false;
     }
 
-    protected boolean viewBalance()
+    /**
+     * @throws IOException if the connection to the server is lost
+     * @return true, always
+     */
+    protected boolean viewBalance() throws IOException
     {
-        // sending prompt to the server
-        networkOut.println("VIEW");
+        AsyncClient.Balance balance = join(client.view());
 
-        // getting reply from the server
-        try
+        // reading status code
+        if (balance.ok())
         {
-            // reading the message and status code
-            String message = networkIn.readLine();
-            int statusCode = getStatusCode(message);
-
-            // reading status code
-            if (statusCode == 200)
-            {
-                System.out.println("Account balance: " + getStatusMessage(message));
-            }
-            else
-            {
-                System.out.println("Error retrieving balance from the server.\nReason: " + getStatusMessage(message));
-            }
-
+            System.out.println("Account balance: " + balance.balance);
         }
-        catch (IOException e)
+        else
         {
-            System.out.println("Error reading information from the server: " + e);
-            e.printStackTrace();
+            System.out.println("Error retrieving balance from the server.\nReason: " + balance.message);
         }
 
         // returning
         return true;
     }
 
-    protected boolean depositMoney()
+    /**
+     * @throws IOException if the connection to the server is lost
+     * @return true, always
+     */
+    protected boolean depositMoney() throws IOException
     {
-        // sending prompt to the server
-        networkOut.println("DEP");
-
-        // responses from the server
-        String message;
-        Integer statusCode;
-
-        // getting reply from the server
-        try
-        {
-            // reading the message and status code
-            message = networkIn.readLine();
-            statusCode = getStatusCode(message);
-
-            // reading status code
-            if (statusCode == 100)
-            {
-                System.out.println("Account balance: " + getStatusMessage(message));
-            }
-            else
-            {
-                System.out.println("Error retrieving balance from the server.\nReason: " + getStatusMessage(message));
-                return true;
-            }
-        }
-        catch (IOException e)
+        // showing the balance before asking for the amount
+        if (!viewBalance())
         {
-            System.out.println("Error reading information from the server: " + e);
-            e.printStackTrace();
+            return false;
         }
 
         // getting the amount the user wants to deposit
         System.out.println("Enter the amount you would like to deposit. ('q' to break)");
-        Integer amount = null;
+        Long amount = null;
         while (amount == null)
         {
             // prompting the user for input
@@ -433,14 +347,13 @@ public class ATMClient
             // testing if the user wants to break
             if (input.equalsIgnoreCase("q"))
             {
-                networkOut.println("DEP BREAK");
                 return true;
             }
 
             // parsing the integer from the input
             try
             {
-                amount = Integer.valueOf(input);
+                amount = Long.valueOf(input);
             }
             catch (NumberFormatException e)
             {
@@ -448,30 +361,15 @@ public class ATMClient
             }
         }
 
-        // making another request to the server
-        networkOut.println("DEP " + amount);
-
-        // getting response from the server
-        try
+        // making the request to the server
+        AsyncClient.Balance balance = join(client.deposit(amount));
+        if (balance.ok())
         {
-            // reading the message and status code
-            message = networkIn.readLine();
-            statusCode = getStatusCode(message);
-
-            // reading status code
-            if (statusCode == 202)
-            {
-                System.out.println("Account balance: " + getStatusMessage(message));
-            }
-            else
-            {
-                System.out.println("Error retrieving balance from the server.\nReason: " + getStatusMessage(message));
-            }
+            System.out.println("Account balance: " + balance.balance);
         }
-        catch (IOException e)
+        else
         {
-            System.out.println("Error reading information from the server: " + e);
-            e.printStackTrace();
+            System.out.println("Error depositing money.\nReason: " + balance.message);
         }
 
         // breaking from function
@@ -484,65 +382,30 @@ public class ATMClient
      * they shouldn't be able to withdraw more than what they have, the client &
      * server should check this.
      *
-     * after sending the withdraw request: "WITH", the server should respond with
-     * "100 <user-balance>"
-     * you'll need to save the <user-balance> into an Integer variable, if there are
-     * any server errors or errors parsing the
-     * response from the server you'll need to break out of the function and return
-     * true.
-     *
-     * after reading the response from the server, you'll then prompt the client for
-     * an amount (that cannot be more than what the server sent).
-     * during this loop, if the client inputs 'q', send "WITH BREAK" to the server
-     * to let it know that there won't be any other requests and return true.
-     *
-     * if the user inputs a valid number, send another response to the server of
-     * form: "WITH <amount>", the server should
-     * check that this amount is less or equal to the balance that is saved.
+     * the client first asks the server for the balance, then prompts for an amount
+     * (that cannot be more than the balance), 'q' cancels, a valid amount is sent
+     * as "WITH <amount>"
      *
      * on success, the server should send "200 <new-balance>"
      * if there are any errors (if the amount to withdraw is greater than the
      * balance on file) the server should reply
      * with "400 Bad request"
      *
-     * some functions that will be of use to you.
-     *
      * @see #tryReadInput()
      * @see #depositMoney()
-     * @see #getStatusCode(String)
-     * @see #getStatusMessage(String)
+     * @throws IOException if the connection to the server is lost
      * @return true, always
      */
-    protected boolean withdrawMoney()
+    protected boolean withdrawMoney() throws IOException
     {
-        // Send request to server to get current balance
-        networkOut.println("WITH");
-
-        // Receive response from server
-        String response;
-        int userBalance;
-        try
-        {
-            response = networkIn.readLine();
-            int statusCode = getStatusCode(response);
-
-            // Parse user balance from response
-            if (statusCode == 100)
-            {
-                userBalance = Integer.parseInt(getStatusMessage(response));
-            }
-            else
-            {
-                System.out.println("Error: " + getStatusMessage(response));
-                return true;
-            }
-        }
-        catch (IOException e)
+        // getting the current balance from the server
+        AsyncClient.Balance current = join(client.view());
+        if (!current.ok())
         {
-            System.out.println("Error reading server response: " + e.getMessage());
-            e.printStackTrace();
+            System.out.println("Error: " + current.message);
             return true;
         }
+        long userBalance = current.balance;
 
         // Prompt user for withdrawal amount
         System.out.print("Enter amount to withdraw (or 'q' to cancel): ");
@@ -551,15 +414,14 @@ public class ATMClient
         // Check if user wants to cancel
         if (input.equalsIgnoreCase("q"))
         {
-            networkOut.println("WITH BREAK");
             return true;
         }
 
         // Parse withdrawal amount
-        int withdrawalAmount;
+        long withdrawalAmount;
         try
         {
-            withdrawalAmount = Integer.parseInt(input);
+            withdrawalAmount = Long.parseLong(input);
         }
         catch (NumberFormatException e)
         {
@@ -575,33 +437,18 @@ public class ATMClient
         }
 
         // Send withdrawal request to server
-        networkOut.println("WITH " + withdrawalAmount);
-
-        // Receive response from server
-        try
+        AsyncClient.Balance result = join(client.withdraw(withdrawalAmount));
+        if (result.ok())
         {
-            response = networkIn.readLine();
-            int statusCode = getStatusCode(response);
-
-            // Parse new balance from response
-            if (statusCode == 200)
-            {
-                int newBalance = Integer.parseInt(getStatusMessage(response));
-                System.out.println("Withdrawal successful. New balance: " + newBalance);
-            }
-            else if (statusCode == 400)
-            {
-                System.out.println("Error: " + getStatusMessage(response));
-            }
-            else
-            {
-                System.out.println("Unexpected response from server: " + response);
-            }
+            System.out.println("Withdrawal successful. New balance: " + result.balance);
         }
-        catch (IOException e)
+        else if (result.status == 400)
         {
-            System.out.println("Error reading server response: " + e.getMessage());
-            e.printStackTrace();
+            System.out.println("Error: " + result.message);
+        }
+        else
+        {
+            System.out.println("Unexpected response from server: " + result);
         }
 
         return true;
@@ -609,25 +456,72 @@ public class ATMClient
 
     /// ------------------------- helper functions -------------------------
 
-    // Helper function
-    protected int getStatusCode(String message)
+    /**
+     * this function sends several deposits and withdrawals as one BATCH, the
+     * server applies them all together or not at all
+     *
+     * on success the server replies "200" followed by the balance after each
+     * operation, e.g. "200 1100,1060", if an operation is rejected nothing is
+     * applied and the reply is "400" followed by the status of each operation
+     * ("-" for the ones that weren't checked), e.g. "400 200,400,-"
+     *
+     * @param operations the operations, e.g. "DEP 100", "WITH 40"
+     * @return the response of the server
+     * @throws IOException if the connection ends before the response arrived
+     */
+    public AsyncClient.Reply batch(String... operations) throws IOException
+    {
+        for (String operation : operations)
+        {
+            if (operation.indexOf(';') >= 0)
+            {
+                throw new IllegalArgumentException("\"" + operation + "\" isn't a single operation");
+            }
+        }
+        return pipeline("BATCH " + String.join(";", operations)).get(0);
+    }
+
+    /**
+     * this function sends several commands back to back and then waits for their
+     * responses, so the whole exchange costs one round trip instead of one per
+     * command, the server runs the commands in order and flushes the responses
+     * together
+     *
+     * @param commands the commands to send, one per line
+     * @return the responses, in the order of the commands
+     * @throws IOException if the connection ends before every response arrived
+     */
+    public List<AsyncClient.Reply> pipeline(String... commands) throws IOException
     {
-        StringTokenizer st = new StringTokenizer(message);
-        String code = st.nextToken();
-        return Integer.valueOf(code).intValue();
+        List<AsyncClient.Reply> responses = new ArrayList<>(commands.length);
+        for (CompletableFuture<AsyncClient.Reply> response : client.send(commands))
+        {
+            responses.add(join(response));
+        }
+        return responses;
     }
 
-    // Helper function
-    protected String getStatusMessage(String message)
+    /**
+     * this function waits for the result of the client
+     *
+     * @param result a result of the client
+     * @return the value of the result
+     * @throws IOException if the connection failed before the result arrived
+     */
+    protected static <T> T join(CompletableFuture<T> result) throws IOException
     {
-        StringTokenizer st = new StringTokenizer(message);
-        String code = st.nextToken();
-        String errorMessage = null;
-        if (st.hasMoreTokens())
+        try
+        {
+            return result.join();
+        }
+        catch (CompletionException e)
         {
-            errorMessage = message.substring(code.length() + 1, message.length());
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
         }
-        return errorMessage;
     }
 
     /**
@@ -0,0 +1,593 @@
+package org.example.client;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * an embeddable client of the text protocol: every command returns a
+ * CompletableFuture of a typed result straight away, and no thread waits for
+ * the answer, so one process can drive many accounts from a few threads
+ *
+ * commands may be sent before the earlier ones were answered, they're written
+ * in order and the server answers them in order, so they're pipelined for
+ * free, a result is completed on the thread that read its response, callbacks
+ * attached to it must not block, e.g. by joining another command of the client
+ *
+ * unless they're given a channel group of their own, every client shares one
+ * group with a thread per core, so the number of threads doesn't grow with the
+ * number of connections
+ */
+public class AsyncClient implements Closeable
+{
+    // the longest response line accepted
+    public final static int MAX_LINE = 64 * 1024;
+
+    // the group shared by the clients that aren't given one, made by the first of them
+    protected static AsynchronousChannelGroup sharedGroup = null;
+
+    /**
+     * the status and message of a response, e.g. "400 Bad request"
+     */
+    public static class Reply
+    {
+        // 0 if the line had no status, e.g. the greeting
+        public final int status;
+        // the text after the status, null if there's none
+        public final String message;
+
+        public Reply(int _status, String _message)
+        {
+            this.status = _status;
+            this.message = _message;
+        }
+
+        protected Reply(Reply reply)
+        {
+            this(reply.status, reply.message);
+        }
+
+        /**
+         * @return true if the server carried the command out
+         */
+        public boolean ok()
+        {
+            return status >= 100 && status < 300;
+        }
+
+        /**
+         * @param line a response line, the tag of a logical session is skipped
+         * @return the status and message of the line
+         */
+        public static Reply parse(String line)
+        {
+            if (line.startsWith("@") && line.indexOf(' ') > 0)
+            {
+                line = line.substring(line.indexOf(' ') + 1);
+            }
+            int space = line.indexOf(' ');
+            String code = space < 0 ? line : line.substring(0, space);
+            try
+            {
+                return new Reply(Integer.parseInt(code), space < 0 ? null : line.substring(space + 1));
+            }
+            catch (NumberFormatException e)
+            {
+                return new Reply(0, line);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return message == null ? Integer.toString(status) : status + " " + message;
+        }
+    }
+
+    /**
+     * the response to VIEW, DEP or WITH
+     */
+    public static class Balance extends Reply
+    {
+        // the balance of the account, -1 unless ok()
+        public final long balance;
+
+        public Balance(Reply reply)
+        {
+            super(reply);
+            this.balance = ok() ? parseBalance(reply.message) : -1;
+        }
+
+        protected static long parseBalance(String message)
+        {
+            try
+            {
+                return Long.parseLong(message);
+            }
+            catch (NumberFormatException e)
+            {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * the response to a login or a resumed session
+     */
+    public static class Login extends Reply
+    {
+        // the token that logs in again without the password, null if none was
+        // handed out, e.g. to a username too long for a token, the login
+        // succeeded all the same but can't be resumed
+        public final String token;
+
+        public Login(Reply reply)
+        {
+            super(reply);
+            this.token = ok() && message != null && message.startsWith("OK ") ? message.substring(3) : null;
+        }
+    }
+
+    protected final AsynchronousSocketChannel channel;
+
+    // the responses still expected, in the order of their commands, guarded by this
+    protected final ArrayDeque<CompletableFuture<Reply>> pending = new ArrayDeque<>();
+
+    // the encoded commands not written yet, guarded by this
+    protected final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    protected boolean writing = false;
+
+    // set once the connection failed or was closed, guarded by this
+    protected Throwable failure = null;
+
+    // only touched by the completions of reads, which never overlap
+    protected final ByteBuffer readBuffer = ByteBuffer.allocate(8 * 1024);
+    protected byte[] line = new byte[256];
+    protected int lineLength = 0;
+
+    protected String greeting = null;
+
+    protected final CompletionHandler<Integer, Void> onRead = new CompletionHandler<>()
+    {
+        @Override
+        public void completed(Integer read, Void attachment)
+        {
+            if (read < 0)
+            {
+                fail(new EOFException("Server closed the connection"));
+                return;
+            }
+            try
+            {
+                readLines();
+            }
+            catch (IOException e)
+            {
+                fail(e);
+                return;
+            }
+            read();
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment)
+        {
+            fail(e);
+        }
+    };
+
+    protected final CompletionHandler<Integer, Void> onWrite = new CompletionHandler<>()
+    {
+        @Override
+        public void completed(Integer written, Void attachment)
+        {
+            synchronized (AsyncClient.this)
+            {
+                if (failure != null)
+                {
+                    writing = false;
+                    return;
+                }
+                if (!outbound.peek().hasRemaining())
+                {
+                    outbound.poll();
+                }
+                if (outbound.isEmpty())
+                {
+                    writing = false;
+                    return;
+                }
+                channel.write(outbound.peek(), null, this);
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment)
+        {
+            fail(e);
+        }
+    };
+
+    protected AsyncClient(AsynchronousSocketChannel _channel)
+    {
+        this.channel = _channel;
+    }
+
+    /**
+     * this function connects to a server on the channel group shared by the
+     * clients
+     *
+     * @see #connect(String, int, AsynchronousChannelGroup)
+     */
+    public static CompletableFuture<AsyncClient> connect(String host, int port)
+    {
+        try
+        {
+            return connect(host, port, sharedGroup());
+        }
+        catch (IOException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return the channel group shared by the clients, its threads don't keep the JVM alive
+     * @throws IOException if the group can't be made
+     */
+    protected static synchronized AsynchronousChannelGroup sharedGroup() throws IOException
+    {
+        if (sharedGroup == null)
+        {
+            AtomicInteger threads = new AtomicInteger();
+            sharedGroup = AsynchronousChannelGroup.withFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    task -> {
+                        Thread thread = new Thread(task, "AsyncClient #" + threads.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        return sharedGroup;
+    }
+
+    /**
+     * this function connects to a server and reads its greeting
+     *
+     * @param host the address of the server
+     * @param port the port of the server
+     * @param group the channel group the connection runs on, null for the default group of the JVM
+     * @return the client once the server greeted it, failed with an IOException if
+     *         the server can't be reached, is busy or doesn't greet properly
+     */
+    public static CompletableFuture<AsyncClient> connect(String host, int port, AsynchronousChannelGroup group)
+    {
+        AsyncClient client;
+        try
+        {
+            AsynchronousSocketChannel channel = AsynchronousSocketChannel.open(group);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            client = new AsyncClient(channel);
+        }
+        catch (IOException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        // the server greets with two lines before any command
+        CompletableFuture<Reply> welcome;
+        CompletableFuture<Reply> ready;
+        synchronized (client)
+        {
+            welcome = client.expect();
+            ready = client.expect();
+        }
+
+        client.channel.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>()
+        {
+            @Override
+            public void completed(Void result, Void attachment)
+            {
+                client.read();
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment)
+            {
+                client.fail(new IOException("Could not connect to " + host + ":" + port, e));
+            }
+        });
+
+        return welcome.thenCompose(first -> {
+            // a full server refuses the connection straight away
+            if (first.status == 503)
+            {
+                client.close();
+                return CompletableFuture.failedFuture(new IOException("Server is busy, try again later"));
+            }
+            client.greeting = first.message;
+            return ready.thenCompose(second -> {
+                if (second.status != 100)
+                {
+                    client.close();
+                    return CompletableFuture.failedFuture(new IOException("Incorrect greeting from server: " + second));
+                }
+                return CompletableFuture.completedFuture(client);
+            });
+        });
+    }
+
+    /**
+     * @return the welcome message of the server
+     */
+    public String greeting()
+    {
+        return greeting;
+    }
+
+    /**
+     * this function logs in, sending the username and the password together
+     *
+     * @param user the username
+     * @param password the password
+     * @return the response to the password, or to the username if that was refused
+     */
+    public CompletableFuture<Login> login(String user, String password)
+    {
+        List<CompletableFuture<Reply>> replies = send("UID " + user, "PWD " + password);
+        return replies.get(0).thenCombine(replies.get(1), (uid, pwd) -> new Login(uid.status == 100 ? pwd : uid));
+    }
+
+    /**
+     * this function logs in with the token of an earlier login, without the
+     * password
+     *
+     * @param token the token of the earlier login
+     * @return the response, 403 if the token expired
+     */
+    public CompletableFuture<Login> resume(String token)
+    {
+        return send("RESUME " + token).thenApply(Login::new);
+    }
+
+    /**
+     * @param user the username of the new account
+     * @param password its password
+     * @return the response, 201 if the account was created
+     */
+    public CompletableFuture<Reply> create(String user, String password)
+    {
+        return send("NEW " + user + " " + password);
+    }
+
+    /**
+     * @return the balance of the logged in account
+     */
+    public CompletableFuture<Balance> view()
+    {
+        return send("VIEW").thenApply(Balance::new);
+    }
+
+    /**
+     * @param amount the amount to deposit
+     * @return the new balance, or why the deposit was refused
+     */
+    public CompletableFuture<Balance> deposit(long amount)
+    {
+        return send("DEP " + amount).thenApply(Balance::new);
+    }
+
+    /**
+     * @param amount the amount to withdraw
+     * @return the new balance, or why the withdrawal was refused, e.g. 400 if
+     *         the balance doesn't cover it
+     */
+    public CompletableFuture<Balance> withdraw(long amount)
+    {
+        return send("WITH " + amount).thenApply(Balance::new);
+    }
+
+    /**
+     * @param recipient the username of the receiving account
+     * @param amount the amount to move
+     * @return the new balance, or why the transfer was refused, e.g. 400 if the
+     *         balance doesn't cover it or the recipient doesn't exist
+     */
+    public CompletableFuture<Balance> transfer(String recipient, long amount)
+    {
+        return send("XFER " + recipient + " " + amount).thenApply(Balance::new);
+    }
+
+    /**
+     * @return the response, 200
+     */
+    public CompletableFuture<Reply> logout()
+    {
+        return send("LOGOUT");
+    }
+
+    /**
+     * this function sends any command that gets one response line
+     *
+     * @param command the command, without its line terminator
+     * @return the response
+     */
+    public CompletableFuture<Reply> send(String command)
+    {
+        return send(new String[] { command }).get(0);
+    }
+
+    /**
+     * this function sends several commands in one write
+     *
+     * @param commands the commands, each of them gets one response line
+     * @return the responses, in the order of the commands
+     */
+    public List<CompletableFuture<Reply>> send(String... commands)
+    {
+        StringBuilder request = new StringBuilder();
+        for (String command : commands)
+        {
+            if (command.indexOf('\n') >= 0 || command.indexOf('\r') >= 0)
+            {
+                throw new IllegalArgumentException("\"" + command + "\" isn't a single command");
+            }
+            request.append(command).append('\n');
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<CompletableFuture<Reply>> replies = new ArrayList<>(commands.length);
+        synchronized (this)
+        {
+            // the responses are expected in the order the commands are written
+            for (int i = 0; i < commands.length; i++)
+            {
+                replies.add(expect());
+            }
+            if (failure != null)
+            {
+                return replies;
+            }
+            outbound.add(bytes);
+            if (!writing)
+            {
+                writing = true;
+                channel.write(bytes, null, onWrite);
+            }
+        }
+        return replies;
+    }
+
+    /**
+     * this function queues the future of the next response, it must be called
+     * while holding the lock of the client
+     *
+     * @return the future, already failed if the connection is gone
+     */
+    protected CompletableFuture<Reply> expect()
+    {
+        CompletableFuture<Reply> reply = new CompletableFuture<>();
+        if (failure != null)
+        {
+            reply.completeExceptionally(failure);
+        }
+        else
+        {
+            pending.add(reply);
+        }
+        return reply;
+    }
+
+    /**
+     * this function starts reading the next responses
+     */
+    protected void read()
+    {
+        channel.read(readBuffer, null, onRead);
+    }
+
+    /**
+     * this function completes a response for every whole line read
+     *
+     * @throws IOException if a line is too long
+     */
+    protected void readLines() throws IOException
+    {
+        readBuffer.flip();
+        while (readBuffer.hasRemaining())
+        {
+            byte b = readBuffer.get();
+            if (b != '\n')
+            {
+                if (lineLength == line.length)
+                {
+                    if (lineLength >= MAX_LINE)
+                    {
+                        throw new IOException("Response longer than " + MAX_LINE + " bytes");
+                    }
+                    line = Arrays.copyOf(line, lineLength * 2);
+                }
+                line[lineLength++] = b;
+                continue;
+            }
+
+            int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+            Reply reply = Reply.parse(new String(line, 0, length, StandardCharsets.UTF_8));
+            lineLength = 0;
+
+            CompletableFuture<Reply> next;
+            synchronized (this)
+            {
+                next = pending.poll();
+            }
+            // a line nobody waits for is dropped
+            if (next != null)
+            {
+                next.complete(reply);
+            }
+        }
+        readBuffer.clear();
+    }
+
+    /**
+     * this function ends the connection and fails every response still expected
+     *
+     * @param e why the connection ended
+     */
+    protected void fail(Throwable e)
+    {
+        List<CompletableFuture<Reply>> failed;
+        synchronized (this)
+        {
+            if (failure != null)
+            {
+                return;
+            }
+            failure = e;
+            failed = new ArrayList<>(pending);
+            pending.clear();
+            outbound.clear();
+        }
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ignored)
+        {
+            // the connection is gone either way
+        }
+        for (CompletableFuture<Reply> reply : failed)
+        {
+            reply.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return true until the connection failed or was closed
+     */
+    public synchronized boolean isOpen()
+    {
+        return failure == null;
+    }
+
+    /**
+     * this function closes the connection, the responses still expected fail
+     */
+    @Override
+    public void close()
+    {
+        fail(new IOException("Client closed"));
+    }
+}
@@ -0,0 +1,297 @@
+package org.example.client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.example.protocol.BinaryProtocol;
+
+/**
+ * a programmatic client of the binary frames of BinaryProtocol, it negotiates the
+ * switch during the greeting and then exchanges frames only
+ *
+ * the client owns one request buffer, one response buffer and one response
+ * holder, so once connected a command allocates nothing, the response returned
+ * by a command is overwritten by the next one
+ */
+public class BinaryClient implements Closeable
+{
+    private Socket socket;
+    private InputStream networkIn;
+    private OutputStream networkOut;
+
+    private final ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+    private final ByteBuffer frame = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+    private final BinaryProtocol.Response response = new BinaryProtocol.Response();
+
+    public BinaryClient(String host, int port) throws IOException
+    {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        InputStream rawIn = socket.getInputStream();
+        networkOut = new BufferedOutputStream(socket.getOutputStream());
+
+        // the greeting is text, read byte by byte so no frame gets buffered as text
+        String greeting = readLine(rawIn);
+        if (greeting == null || greeting.startsWith("503"))
+        {
+            socket.close();
+            throw new IOException("Server is busy");
+        }
+        if (!"100 Ready".equals(readLine(rawIn)))
+        {
+            socket.close();
+            throw new IOException("Unexpected greeting from the server");
+        }
+
+        // the server only reads frames once it acknowledged the switch
+        networkOut.write((BinaryProtocol.SWITCH + "\n").getBytes(StandardCharsets.US_ASCII));
+        networkOut.flush();
+        String reply = readLine(rawIn);
+        if (reply == null || !reply.startsWith(BinaryProtocol.SWITCHED + " "))
+        {
+            socket.close();
+            throw new IOException("Server refused binary frames: " + reply);
+        }
+
+        networkIn = new BufferedInputStream(rawIn);
+    }
+
+    /**
+     * this function logs in, sending the username and the password together
+     *
+     * @param user the username
+     * @param password the password
+     * @return the response to the password, 200 if the login succeeded, with the
+     *         session token for resume(String) as its text
+     * @throws IOException if the connection fails
+     */
+    public BinaryProtocol.Response login(String user, String password) throws IOException
+    {
+        int start = BinaryProtocol.beginRequest(request.clear(), BinaryProtocol.UID);
+        BinaryProtocol.putString(request, user);
+        BinaryProtocol.end(request, start);
+
+        start = BinaryProtocol.beginRequest(request, BinaryProtocol.PWD);
+        BinaryProtocol.putString(request, password);
+        BinaryProtocol.end(request, start);
+
+        send();
+        receive(); // the username is acknowledged with 100
+        return receive();
+    }
+
+    /**
+     * this function logs in with the token of an earlier login, e.g. after
+     * reconnecting, without sending the password again
+     *
+     * @param token the text of the response to an earlier login
+     * @return the response, 200 if the session was resumed, 403 if the token expired
+     * @throws IOException if the connection fails
+     */
+    public BinaryProtocol.Response resume(String token) throws IOException
+    {
+        int start = BinaryProtocol.beginRequest(request.clear(), BinaryProtocol.RESUME);
+        BinaryProtocol.putString(request, token);
+        BinaryProtocol.end(request, start);
+        send();
+        return receive();
+    }
+
+    /**
+     * this function creates an account
+     *
+     * @param user the username
+     * @param password the password
+     * @return the response, 201 if the account was created
+     * @throws IOException if the connection fails
+     */
+    public BinaryProtocol.Response create(String user, String password) throws IOException
+    {
+        int start = BinaryProtocol.beginRequest(request.clear(), BinaryProtocol.NEW);
+        BinaryProtocol.putString(request, user);
+        BinaryProtocol.putString(request, password);
+        BinaryProtocol.end(request, start);
+        send();
+        return receive();
+    }
+
+    /**
+     * @return the response, 200 with the balance as its value on success
+     * @throws IOException if the connection fails
+     */
+    public BinaryProtocol.Response view() throws IOException
+    {
+        BinaryProtocol.end(request, BinaryProtocol.beginRequest(request.clear(), BinaryProtocol.VIEW));
+        send();
+        return receive();
+    }
+
+    /**
+     * @param amount the amount to deposit
+     * @return the response, 200 with the new balance as its value on success
+     * @throws IOException if the connection fails
+     */
+    public BinaryProtocol.Response deposit(long amount) throws IOException
+    {
+        return amount(BinaryProtocol.DEP, amount);
+    }
+
+    /**
+     * @param amount the amount to withdraw
+     * @return the response, 200 with the new balance as its value on success
+     * @throws IOException if the connection fails
+     */
+    public BinaryProtocol.Response withdraw(long amount) throws IOException
+    {
+        return amount(BinaryProtocol.WITH, amount);
+    }
+
+    /**
+     * this function applies several deposits and withdrawals all together or not
+     * at all
+     *
+     * @param amounts the operations, positive to deposit and negative to withdraw
+     * @param count the number of operations
+     * @return the response, 200 with the balance after each operation, or 400
+     *         with the status of each operation
+     * @throws IOException if the connection fails
+     */
+    public BinaryProtocol.Response batch(long[] amounts, int count) throws IOException
+    {
+        int start = BinaryProtocol.beginRequest(request.clear(), BinaryProtocol.BATCH);
+        request.putShort((short) count);
+        for (int i = 0; i < count; i++)
+        {
+            request.putLong(amounts[i]);
+        }
+        BinaryProtocol.end(request, start);
+        send();
+        return receive();
+    }
+
+    /**
+     * this function moves money to another account in one step
+     *
+     * @param recipient the username of the receiving account
+     * @param amount the amount to move
+     * @return the response, 200 with the new balance, or 400 if the balance
+     *         doesn't cover it or the recipient doesn't exist
+     * @throws IOException if the connection fails
+     */
+    public BinaryProtocol.Response transfer(String recipient, long amount) throws IOException
+    {
+        int start = BinaryProtocol.beginRequest(request.clear(), BinaryProtocol.XFER);
+        BinaryProtocol.putString(request, recipient);
+        request.putLong(amount);
+        BinaryProtocol.end(request, start);
+        send();
+        return receive();
+    }
+
+    /**
+     * @return the response, 200
+     * @throws IOException if the connection fails
+     */
+    public BinaryProtocol.Response logout() throws IOException
+    {
+        BinaryProtocol.end(request, BinaryProtocol.beginRequest(request.clear(), BinaryProtocol.LOGOUT));
+        send();
+        return receive();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+
+    /**
+     * this function sends a request carrying an amount
+     *
+     * @param opcode DEP or WITH
+     * @param amount the amount
+     * @return the response
+     * @throws IOException if the connection fails
+     */
+    private BinaryProtocol.Response amount(byte opcode, long amount) throws IOException
+    {
+        int start = BinaryProtocol.beginRequest(request.clear(), opcode);
+        BinaryProtocol.end(request.putLong(amount), start);
+        send();
+        return receive();
+    }
+
+    /**
+     * this function writes the encoded requests
+     *
+     * @throws IOException if the connection fails
+     */
+    private void send() throws IOException
+    {
+        networkOut.write(request.array(), 0, request.position());
+        networkOut.flush();
+    }
+
+    /**
+     * this function reads the next response frame
+     *
+     * @return the response holder
+     * @throws IOException if the connection fails
+     */
+    private BinaryProtocol.Response receive() throws IOException
+    {
+        readFully(0, 2);
+        int length = Short.toUnsignedInt(frame.getShort(0));
+        readFully(2, length);
+        BinaryProtocol.decodeResponse(frame.clear().limit(2 + length), response);
+        return response;
+    }
+
+    /**
+     * this function reads an exact number of bytes into the response buffer
+     *
+     * @param offset where the bytes go in the buffer
+     * @param length the number of bytes
+     * @throws IOException if the connection fails or ends first
+     */
+    private void readFully(int offset, int length) throws IOException
+    {
+        int read = 0;
+        while (read < length)
+        {
+            int n = networkIn.read(frame.array(), offset + read, length - read);
+            if (n < 0)
+            {
+                throw new EOFException("Server closed the connection");
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * this function reads a text line without buffering past it
+     *
+     * @param stream the stream to read
+     * @return the line, or null if the stream ended
+     * @throws IOException if the connection fails
+     */
+    private static String readLine(InputStream stream) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = stream.read()) != '\n')
+        {
+            if (b < 0)
+            {
+                return line.length() == 0 ? null : line.toString();
+            }
+            if (b != '\r')
+            {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package org.example.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.example.server.HistogramBuckets;
+
+/**
+ * counts latencies in buckets whose width grows with the value, so any latency
+ * from a nanosecond to hours is kept within about 1.6% in a fixed array, every
+ * session of the load generator records into the same histogram at once
+ *
+ * a bucket keeps the 7 highest bits of the latency, percentiles report the
+ * highest value of their bucket so they never look better than they were
+ */
+public class LatencyHistogram
+{
+    protected final static int SUB_BITS = 7;
+    protected final static HistogramBuckets BUCKETS = new HistogramBuckets(SUB_BITS);
+
+    protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS.count());
+    protected final AtomicLong total = new AtomicLong();
+    protected final AtomicLong max = new AtomicLong();
+
+    /**
+     * this function records one latency
+     *
+     * @param value the latency, in nanoseconds
+     */
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+        counts.incrementAndGet(BUCKETS.index(value));
+        total.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * this function records one latency of a client that meant to send a request
+     * every expectedInterval, and adds the requests that a long stall kept it
+     * from sending, each of them would have waited a little less than the one
+     * before, without them a stall counts as a single slow request
+     *
+     * @param value the latency, in nanoseconds
+     * @param expectedInterval the time between two requests, 0 to record the latency alone
+     */
+    public void record(long value, long expectedInterval)
+    {
+        record(value);
+        if (expectedInterval <= 0)
+        {
+            return;
+        }
+        for (long missed = value - expectedInterval; missed >= expectedInterval; missed -= expectedInterval)
+        {
+            record(missed);
+        }
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long count()
+    {
+        return total.get();
+    }
+
+    /**
+     * @return the highest latency recorded, in nanoseconds
+     */
+    public long max()
+    {
+        return max.get();
+    }
+
+    /**
+     * this function finds the latency a share of the recorded ones are at or
+     * under
+     *
+     * @param percentile e.g. 99.9
+     * @return the latency in nanoseconds, 0 if nothing was recorded
+     */
+    public long percentile(double percentile)
+    {
+        long recorded = total.get();
+        if (recorded == 0)
+        {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            seen += counts.get(i);
+            if (seen >= wanted)
+            {
+                return Math.min(BUCKETS.highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,385 @@
+package org.example.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.example.server.ServerConfig;
+
+/**
+ * puts load on a server from the command line: it opens many scripted sessions
+ * at once, each one an ATMClient on a virtual thread, logs every session into
+ * an account of its own and then sends a random mix of commands until the run
+ * is over, it prints the throughput and the latency percentiles of every
+ * command
+ *
+ * in "--loop=closed" (default) every session sends its next command as soon as
+ * the previous one was answered and it thought for "--think-ms", so the load
+ * drops when the server slows down, in "--loop=open" the sessions together send
+ * "--rate" commands per second on a fixed schedule whatever the server does
+ *
+ * latencies are corrected for coordinated omission: in open loop a latency is
+ * measured from when the command was due, not from when it was sent, in closed
+ * loop with a think time the commands a stall kept from being sent are added,
+ * without either a stalled server would look fast since it's asked less
+ */
+public class LoadGenerator
+{
+    // options
+    public final static int SESSIONS = 100;
+    public final static int DURATION_SECONDS = 30;
+    public final static String MIX = "login:5,view:55,dep:20,with:20";
+
+    /**
+     * a kind of command the sessions send
+     */
+    public enum Operation
+    {
+        LOGIN, VIEW, DEP, WITH, XFER
+    }
+
+    protected final String host;
+    protected final int port;
+    protected final int sessions;
+    protected final long durationNanos;
+    protected final long warmupNanos;
+    protected final boolean openLoop;
+
+    // the time between two commands of one session, 0 if there's no schedule
+    protected final long intervalNanos;
+    protected final long thinkNanos;
+
+    protected final String userPrefix;
+    protected final long amount;
+
+    // the account every XFER pays into, like a merchant many customers pay
+    protected final String recipient;
+
+    // the cumulative weights of the operations, indexed by ordinal
+    protected final int[] mix = new int[Operation.values().length];
+
+    // the histograms hold corrected latencies, so the counts of what was sent are kept apart
+    protected final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    protected final AtomicLong[] completed = new AtomicLong[Operation.values().length];
+    protected final AtomicLong[] failures = new AtomicLong[Operation.values().length];
+    protected final AtomicLong disconnects = new AtomicLong();
+
+    /**
+     * this function reads the options "--host", "--port", "--sessions",
+     * "--duration-s", "--warmup-s", "--loop" (closed or open), "--rate" (commands
+     * per second of the open loop), "--think-ms", "--mix" (e.g.
+     * "login:5,view:55,dep:20,with:20"), "--user-prefix", "--amount" and
+     * "--xfer-to" (the recipient of the transfers, the first session's account
+     * by default)
+     *
+     * @param config the options the generator was started with
+     */
+    public LoadGenerator(ServerConfig config)
+    {
+        this.host = config.get("host", ATMClient.SERVER_ADDRESS);
+        this.port = config.getInt("port", ATMClient.SERVER_PORT);
+        this.sessions = Math.max(1, config.getInt("sessions", SESSIONS));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(config.getInt("duration-s", DURATION_SECONDS));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(config.getInt("warmup-s", 0));
+        this.openLoop = config.get("loop", "closed").equalsIgnoreCase("open");
+        this.thinkNanos = TimeUnit.MILLISECONDS.toNanos(config.getInt("think-ms", 0));
+        this.userPrefix = config.get("user-prefix", "load");
+        this.amount = config.getInt("amount", 1);
+        this.recipient = config.get("xfer-to", userPrefix + 0);
+
+        if (openLoop)
+        {
+            // every session takes its share of the rate
+            int rate = Math.max(1, config.getInt("rate", 1000));
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) * sessions / rate;
+        }
+        else
+        {
+            this.intervalNanos = thinkNanos;
+        }
+
+        parseMix(config.get("mix", MIX));
+        for (int i = 0; i < latencies.length; i++)
+        {
+            latencies[i] = new LatencyHistogram();
+            completed[i] = new AtomicLong();
+            failures[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * this function reads the weights of the operations
+     *
+     * @param text e.g. "view:80,dep:20", operations left out are never sent
+     */
+    protected void parseMix(String text)
+    {
+        int[] weights = new int[mix.length];
+        for (String part : text.split(","))
+        {
+            String[] pair = part.trim().split(":");
+            try
+            {
+                weights[Operation.valueOf(pair[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(pair[1].trim());
+            }
+            catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e)
+            {
+                throw new IllegalArgumentException("Option --mix expects operation:weight pairs, got \"" + part + "\"");
+            }
+        }
+
+        int sum = 0;
+        for (int i = 0; i < mix.length; i++)
+        {
+            sum += Math.max(0, weights[i]);
+            mix[i] = sum;
+        }
+        if (sum == 0)
+        {
+            throw new IllegalArgumentException("Option --mix gives every operation a weight of 0");
+        }
+    }
+
+    /**
+     * this function runs the sessions until the end of the run and prints the
+     * report
+     *
+     * @throws InterruptedException if the run is interrupted
+     */
+    public void run() throws InterruptedException
+    {
+        System.out.println("Running " + sessions + " sessions against " + host + ":" + port + " for "
+                + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s, "
+                + (openLoop ? "open loop at " + TimeUnit.SECONDS.toNanos(1) * sessions / intervalNanos + " commands/s"
+                        : "closed loop"));
+
+        CountDownLatch connected = new CountDownLatch(sessions);
+        long[] start = new long[1];
+        CountDownLatch go = new CountDownLatch(1);
+
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor())
+        {
+            for (int i = 0; i < sessions; i++)
+            {
+                int number = i;
+                threads.execute(() -> session(number, connected, go, start));
+            }
+
+            // every session is logged in before the clock starts, closing the
+            // executor waits for the sessions to end
+            connected.await();
+            start[0] = System.nanoTime();
+            go.countDown();
+        }
+
+        report(System.nanoTime() - start[0] - warmupNanos);
+    }
+
+    /**
+     * this function runs one session: it creates and logs into its account, then
+     * sends commands until the end of the run
+     *
+     * @param number the number of the session
+     * @param connected counted down once the session is ready
+     * @param go released when the run starts
+     * @param start holds when the run started
+     */
+    protected void session(int number, CountDownLatch connected, CountDownLatch go, long[] start)
+    {
+        String user = userPrefix + number;
+        String[] login = { "UID " + user, "PWD " + user };
+        // the recipient's own session pays the next one, an account can't pay itself
+        String payee = user.equals(recipient) ? userPrefix + (number + 1) % sessions : recipient;
+        String xfer = "XFER " + payee + " " + amount;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        ATMClient client;
+        try
+        {
+            client = new ATMClient(host, port);
+            // the account may be left over from an earlier run
+            client.pipeline("NEW " + user + " " + user);
+            client.pipeline(login);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Session " + number + " could not log in: " + e.getMessage());
+            disconnects.incrementAndGet();
+            connected.countDown();
+            return;
+        }
+        connected.countDown();
+
+        try (client)
+        {
+            go.await();
+            long measureFrom = start[0] + warmupNanos;
+            long end = start[0] + durationNanos;
+
+            // spreading the sessions over the first interval, so they don't send in waves
+            long due = start[0] + (intervalNanos > 0 ? random.nextLong(intervalNanos) : 0);
+            while (true)
+            {
+                if (openLoop)
+                {
+                    waitUntil(due);
+                }
+                long sent = openLoop ? due : System.nanoTime();
+                if (sent >= end)
+                {
+                    break;
+                }
+
+                Operation operation = pick(random);
+                List<AsyncClient.Reply> responses = client.pipeline(commands(operation, login, xfer));
+                long latency = System.nanoTime() - sent;
+
+                if (sent >= measureFrom)
+                {
+                    // an open loop measured from the schedule needs no backfilling
+                    latencies[operation.ordinal()].record(latency, openLoop ? 0 : intervalNanos);
+                    completed[operation.ordinal()].incrementAndGet();
+                    if (!succeeded(responses))
+                    {
+                        failures[operation.ordinal()].incrementAndGet();
+                    }
+                }
+
+                if (openLoop)
+                {
+                    due += intervalNanos;
+                }
+                else if (thinkNanos > 0)
+                {
+                    waitUntil(System.nanoTime() + thinkNanos);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            disconnects.incrementAndGet();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param random the random numbers of the session
+     * @return the next operation, following the weights of the mix
+     */
+    protected Operation pick(ThreadLocalRandom random)
+    {
+        int roll = random.nextInt(mix[mix.length - 1]);
+        for (int i = 0; i < mix.length; i++)
+        {
+            if (roll < mix[i])
+            {
+                return Operation.values()[i];
+            }
+        }
+        return Operation.VIEW;
+    }
+
+    /**
+     * @param operation an operation
+     * @param login the commands that log the session in again
+     * @param xfer the transfer of the session
+     * @return the commands sent for the operation, in one round trip
+     */
+    protected String[] commands(Operation operation, String[] login, String xfer)
+    {
+        switch (operation)
+        {
+            case LOGIN:
+                return login;
+            case DEP:
+                return new String[] { "DEP " + amount };
+            case WITH:
+                return new String[] { "WITH " + amount };
+            case XFER:
+                return new String[] { xfer };
+            default:
+                return new String[] { "VIEW" };
+        }
+    }
+
+    /**
+     * @param responses the responses to the commands of an operation
+     * @return true if the server carried the operation out, a withdrawal over
+     *         the balance counts as a failure
+     */
+    protected static boolean succeeded(List<AsyncClient.Reply> responses)
+    {
+        return responses.get(responses.size() - 1).status == 200;
+    }
+
+    /**
+     * this function sleeps until a moment of System.nanoTime()
+     */
+    protected static void waitUntil(long moment) throws InterruptedException
+    {
+        long left;
+        while ((left = moment - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(left);
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * this function prints the throughput and latencies of every operation
+     *
+     * @param measured how long the latencies were recorded for, in nanoseconds
+     */
+    protected void report(long measured)
+    {
+        double seconds = Math.max(1, measured) / 1e9;
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "%-6s %10s %10s %8s %10s %10s %10s %10s", "op", "count", "ops/s",
+                "failed", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+        long all = 0;
+        for (Operation operation : Operation.values())
+        {
+            LatencyHistogram histogram = latencies[operation.ordinal()];
+            long count = completed[operation.ordinal()].get();
+            if (count == 0)
+            {
+                continue;
+            }
+            all += count;
+            lines.add(String.format(Locale.ROOT, "%-6s %10d %10.1f %8d %10.3f %10.3f %10.3f %10.3f", operation,
+                    count, count / seconds, failures[operation.ordinal()].get(),
+                    histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6,
+                    histogram.percentile(99.9) / 1e6, histogram.max() / 1e6));
+        }
+        lines.add(String.format(Locale.ROOT, "%-6s %10d %10.1f", "total", all, all / seconds));
+
+        for (String line : lines)
+        {
+            System.out.println(line);
+        }
+        if (disconnects.get() > 0)
+        {
+            System.out.println(disconnects.get() + " sessions were disconnected");
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        new LoadGenerator(new ServerConfig(args)).run();
+    }
+}
@@ -0,0 +1,249 @@
+package org.example.client;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * a logical session of a SessionPool, it logs in on its own though it shares
+ * its connection with other sessions, and offers the commands of AsyncClient
+ *
+ * a session that logged in keeps its session token, if its connection was
+ * replaced since, it resumes on the new one before its next command, the token
+ * follows the replies of every UID, PWD, RESUME and LOGOUT sent, whether they
+ * came through login() or as lines of send()
+ */
+public class PooledSession implements Closeable
+{
+    protected final SessionPool pool;
+    protected final int connection;
+    protected final int id;
+
+    // "@<id> ", put before every command of the session
+    protected final String tag;
+
+    // the connection the session last sent on, the token of its login and
+    // whether the server has it logged in, guarded by this
+    protected AsyncClient bound = null;
+    protected String token = null;
+    protected boolean loggedIn = false;
+    protected boolean closed = false;
+
+    protected PooledSession(SessionPool _pool, int _connection, int _id)
+    {
+        this.pool = _pool;
+        this.connection = _connection;
+        this.id = _id;
+        this.tag = "@" + _id + " ";
+    }
+
+    /**
+     * @return the id of the session on its connection
+     */
+    public int id()
+    {
+        return id;
+    }
+
+    /**
+     * this function logs in, sending the username and the password together
+     *
+     * @param user the username
+     * @param password the password
+     * @return the response to the password, or to the username if that was refused
+     */
+    public CompletableFuture<AsyncClient.Login> login(String user, String password)
+    {
+        return send("UID " + user, "PWD " + password).thenApply(replies -> new AsyncClient.Login(
+                replies.get(0).status == 100 ? replies.get(1) : replies.get(0)));
+    }
+
+    /**
+     * this function logs in with the token of an earlier login, without the
+     * password
+     *
+     * @param token the token of the earlier login
+     * @return the response, 403 if the token expired
+     */
+    public CompletableFuture<AsyncClient.Login> resume(String token)
+    {
+        return send("RESUME " + token).thenApply(replies -> new AsyncClient.Login(replies.get(0)));
+    }
+
+    /**
+     * @param user the username of the new account
+     * @param password its password
+     * @return the response, 201 if the account was created
+     */
+    public CompletableFuture<AsyncClient.Reply> create(String user, String password)
+    {
+        return send("NEW " + user + " " + password).thenApply(replies -> replies.get(0));
+    }
+
+    /**
+     * @return the balance of the logged in account
+     */
+    public CompletableFuture<AsyncClient.Balance> view()
+    {
+        return send("VIEW").thenApply(replies -> new AsyncClient.Balance(replies.get(0)));
+    }
+
+    /**
+     * @param amount the amount to deposit
+     * @return the new balance, or why the deposit was refused
+     */
+    public CompletableFuture<AsyncClient.Balance> deposit(long amount)
+    {
+        return send("DEP " + amount).thenApply(replies -> new AsyncClient.Balance(replies.get(0)));
+    }
+
+    /**
+     * @param amount the amount to withdraw
+     * @return the new balance, or why the withdrawal was refused, e.g. 400 if
+     *         the balance doesn't cover it
+     */
+    public CompletableFuture<AsyncClient.Balance> withdraw(long amount)
+    {
+        return send("WITH " + amount).thenApply(replies -> new AsyncClient.Balance(replies.get(0)));
+    }
+
+    /**
+     * @param recipient the username of the receiving account
+     * @param amount the amount to move
+     * @return the new balance, or why the transfer was refused
+     */
+    public CompletableFuture<AsyncClient.Balance> transfer(String recipient, long amount)
+    {
+        return send("XFER " + recipient + " " + amount).thenApply(replies -> new AsyncClient.Balance(replies.get(0)));
+    }
+
+    /**
+     * this function logs out, the session may log in again
+     *
+     * @return the response, 200
+     */
+    public CompletableFuture<AsyncClient.Reply> logout()
+    {
+        return send("LOGOUT").thenApply(replies -> replies.get(0));
+    }
+
+    /**
+     * @return true if the server has the session logged in, as far as the
+     *         replies it got tell, a login lost with a connection that was
+     *         replaced shows once the session sent something again
+     */
+    public synchronized boolean loggedIn()
+    {
+        return loggedIn;
+    }
+
+    /**
+     * this function sends several commands of the session in one write
+     *
+     * @param commands the commands
+     * @return the responses, in the order of the commands, failed with an
+     *         IOException if the connection failed
+     */
+    public CompletableFuture<List<AsyncClient.Reply>> send(String... commands)
+    {
+        return pool.connection(connection).thenCompose(client -> {
+            // a session logged in on a connection that was replaced resumes first
+            boolean resuming;
+            List<String> lines = new ArrayList<>(commands.length + 1);
+            synchronized (this)
+            {
+                resuming = token != null && bound != client;
+                if (bound != client && token == null)
+                {
+                    // a login without a token doesn't survive its connection
+                    loggedIn = false;
+                }
+                bound = client;
+                if (resuming)
+                {
+                    lines.add(tag + "RESUME " + token);
+                }
+            }
+            for (String command : commands)
+            {
+                lines.add(tag + command);
+            }
+
+            List<CompletableFuture<AsyncClient.Reply>> replies = client.send(lines.toArray(new String[0]));
+            return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                if (resuming)
+                {
+                    follow("RESUME " + token, replies.get(0).join());
+                }
+                List<AsyncClient.Reply> results = new ArrayList<>(commands.length);
+                for (int i = resuming ? 1 : 0; i < replies.size(); i++)
+                {
+                    AsyncClient.Reply reply = replies.get(i).join();
+                    follow(commands[i - (resuming ? 1 : 0)], reply);
+                    results.add(reply);
+                }
+                return results;
+            });
+        });
+    }
+
+    /**
+     * this function follows the login of the session through the reply to one
+     * of its commands
+     *
+     * @param command the command, without the tag
+     * @param reply the reply of the server
+     */
+    protected synchronized void follow(String command, AsyncClient.Reply reply)
+    {
+        String trimmed = command.strip();
+        int space = trimmed.indexOf(' ');
+        switch ((space < 0 ? trimmed : trimmed.substring(0, space)).toUpperCase(Locale.ROOT))
+        {
+            case "UID":
+            case "LOGOUT":
+                // a new login leaves the account of the old one first
+                loggedIn = false;
+                token = null;
+                break;
+            case "PWD":
+            {
+                AsyncClient.Login login = new AsyncClient.Login(reply);
+                loggedIn = login.ok();
+                token = login.token;
+                break;
+            }
+            case "RESUME":
+                loggedIn = reply.status == 200;
+                token = loggedIn && space >= 0 ? trimmed.substring(space + 1).strip() : null;
+                break;
+            default:
+                if (reply.status == 401)
+                {
+                    loggedIn = false;
+                    token = null;
+                }
+        }
+    }
+
+    /**
+     * this function logs the session out and frees its id on the connection,
+     * the server forgets a logical session once it logged out
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            token = null;
+        }
+        send("LOGOUT").whenComplete((replies, e) -> pool.release(connection, id));
+    }
+}
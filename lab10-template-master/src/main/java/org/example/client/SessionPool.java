@@ -0,0 +1,241 @@
+package org.example.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.example.server.ATMThread;
+
+/**
+ * keeps a few connections to the server open and multiplexes many logical
+ * sessions over them, so a gateway serving hundreds of terminals doesn't cost
+ * the server a connection and a thread per terminal
+ *
+ * every session logs in on its own: its lines are tagged "@<id>" and the server
+ * keeps a separate session for every id of a connection, a new session goes to
+ * the connection carrying the fewest, the commands of the sessions sharing a
+ * connection are answered in the order they were sent, so a slow login holds up
+ * the sessions behind it
+ *
+ * the connections are opened before the pool is handed out, and a health check
+ * pings every one of them, a connection that failed or doesn't answer in time
+ * is replaced, the sessions that were logged in on it log in again on the new
+ * one with their session token
+ */
+public class SessionPool implements Closeable
+{
+    // options
+    public final static int CONNECTIONS = 4;
+    public final static long HEALTH_CHECK_MILLIS = 10_000;
+    public final static long PING_TIMEOUT_MILLIS = 5_000;
+
+    protected final String host;
+    protected final int port;
+    protected final long pingTimeoutMillis;
+
+    // the connections, replaced when they fail, guarded by this
+    protected final CompletableFuture<AsyncClient>[] connections;
+
+    // the ids of the sessions on each connection, guarded by this
+    protected final BitSet[] sessions;
+
+    protected final ScheduledExecutorService health;
+    protected boolean closed = false;
+
+    @SuppressWarnings("unchecked")
+    protected SessionPool(String _host, int _port, int _connections, long _pingTimeoutMillis)
+    {
+        this.host = _host;
+        this.port = _port;
+        this.pingTimeoutMillis = _pingTimeoutMillis;
+        this.connections = (CompletableFuture<AsyncClient>[]) new CompletableFuture<?>[_connections];
+        this.sessions = new BitSet[_connections];
+        for (int i = 0; i < _connections; i++)
+        {
+            connections[i] = AsyncClient.connect(host, port);
+            sessions[i] = new BitSet();
+        }
+        this.health = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "SessionPool health check");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * this function opens a pool with CONNECTIONS connections, checked every
+     * HEALTH_CHECK_MILLIS
+     *
+     * @see #open(String, int, int, long)
+     */
+    public static CompletableFuture<SessionPool> open(String host, int port)
+    {
+        return open(host, port, CONNECTIONS, HEALTH_CHECK_MILLIS);
+    }
+
+    /**
+     * this function opens the connections of a pool and waits for every one of
+     * them to answer a ping, so the first sessions don't pay for the handshakes
+     *
+     * @param host the address of the server
+     * @param port the port of the server
+     * @param connections the number of connections
+     * @param healthCheckMillis the time between two health checks, 0 for none
+     * @return the pool once every connection answered, failed with an
+     *         IOException if one of them couldn't be opened
+     */
+    public static CompletableFuture<SessionPool> open(String host, int port, int connections, long healthCheckMillis)
+    {
+        SessionPool pool = new SessionPool(host, port, Math.max(1, connections), PING_TIMEOUT_MILLIS);
+
+        CompletableFuture<?>[] warmed = new CompletableFuture<?>[pool.connections.length];
+        for (int i = 0; i < warmed.length; i++)
+        {
+            warmed[i] = pool.connections[i].thenCompose(pool::ping);
+        }
+        return CompletableFuture.allOf(warmed).handle((ignored, e) -> {
+            if (e != null)
+            {
+                pool.close();
+                throw new CompletionException(new IOException("Could not open the pool", e));
+            }
+            if (healthCheckMillis > 0)
+            {
+                pool.health.scheduleWithFixedDelay(pool::check, healthCheckMillis, healthCheckMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            return pool;
+        });
+    }
+
+    /**
+     * this function starts a logical session on the connection carrying the
+     * fewest, nothing is sent until its first command
+     *
+     * @return the session, it has to be closed to free its id
+     * @throws IllegalStateException if the pool is closed or every connection
+     *         carries as many sessions as the server allows
+     */
+    public synchronized PooledSession session()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Pool closed");
+        }
+        int least = 0;
+        for (int i = 1; i < sessions.length; i++)
+        {
+            if (sessions[i].cardinality() < sessions[least].cardinality())
+            {
+                least = i;
+            }
+        }
+        if (sessions[least].cardinality() >= ATMThread.MAX_MULTIPLEXED)
+        {
+            throw new IllegalStateException("Every connection carries " + ATMThread.MAX_MULTIPLEXED + " sessions");
+        }
+        int id = sessions[least].nextClearBit(0);
+        sessions[least].set(id);
+        return new PooledSession(this, least, id);
+    }
+
+    /**
+     * this function frees the id of a closed session
+     *
+     * @param connection the connection of the session
+     * @param id the id of the session
+     */
+    protected synchronized void release(int connection, int id)
+    {
+        sessions[connection].clear(id);
+    }
+
+    /**
+     * @return the number of open sessions
+     */
+    public synchronized int sessions()
+    {
+        int count = 0;
+        for (BitSet ids : sessions)
+        {
+            count += ids.cardinality();
+        }
+        return count;
+    }
+
+    /**
+     * this function hands out a connection, opening a new one in place of a
+     * connection that failed
+     *
+     * @param index the connection
+     * @return the connection, once it's open
+     */
+    protected synchronized CompletableFuture<AsyncClient> connection(int index)
+    {
+        CompletableFuture<AsyncClient> connection = connections[index];
+        if (!closed && connection.isDone()
+                && (connection.isCompletedExceptionally() || !connection.join().isOpen()))
+        {
+            connection = connections[index] = AsyncClient.connect(host, port);
+        }
+        return connection;
+    }
+
+    /**
+     * @param client a connection
+     * @return completed once the connection answered a ping in time, failed otherwise
+     */
+    protected CompletableFuture<AsyncClient.Reply> ping(AsyncClient client)
+    {
+        return client.send("PING").orTimeout(pingTimeoutMillis, TimeUnit.MILLISECONDS).thenApply(reply -> {
+            if (reply.status != 200)
+            {
+                throw new CompletionException(new IOException("Unexpected ping reply: " + reply));
+            }
+            return reply;
+        });
+    }
+
+    /**
+     * this function pings every connection, one that doesn't answer is closed
+     * and replaced straight away
+     */
+    protected void check()
+    {
+        for (int i = 0; i < connections.length; i++)
+        {
+            int index = i;
+            connection(index).thenCompose(client -> ping(client).whenComplete((reply, e) -> {
+                if (e != null)
+                {
+                    client.close();
+                    connection(index);
+                }
+            }));
+        }
+    }
+
+    /**
+     * this function closes every connection, the commands still expected fail
+     */
+    @Override
+    public void close()
+    {
+        CompletableFuture<AsyncClient>[] open;
+        synchronized (this)
+        {
+            closed = true;
+            open = connections.clone();
+        }
+        health.shutdownNow();
+        for (CompletableFuture<AsyncClient> connection : open)
+        {
+            connection.thenAccept(AsyncClient::close);
+        }
+    }
+}
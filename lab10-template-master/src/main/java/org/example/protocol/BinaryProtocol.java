@@ -0,0 +1,235 @@
+package org.example.protocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * the compact binary framing of the ATM protocol, shared by the server and the
+ * clients
+ *
+ * a client opts in by sending "BIN" after the "100 Ready" greeting and waiting
+ * for "200 Binary", from then on both sides only send frames:
+ *
+ * request: [u16 length][u8 opcode][payload], where length covers the opcode and
+ * the payload, strings are [u8 length][UTF-8 bytes] and amounts are i64
+ *
+ * - UID [string user], PWD [string password], NEW [string user][string password]
+ * - DEP [i64 amount], WITH [i64 amount], VIEW, LOGOUT
+ * - BATCH [u16 count][i64 amount]*count, positive to deposit, negative to withdraw
+ * - RESUME [string token], logs in with the token of an earlier login
+ * - PING, answered with 200 whether the session is logged in or not
+ *
+ * response: [u16 length][u16 status][u8 kind][payload], where kind is NONE,
+ * VALUE [i64], VECTOR [u16 count][i64]*count or TEXT [string], negative entries
+ * of a vector are operations that weren't checked, a successful login answers
+ * with its session token as TEXT
+ *
+ * every helper works on a caller-owned buffer, so encoding and decoding don't
+ * allocate (decoding a string has to create the String)
+ */
+public final class BinaryProtocol
+{
+    // the text command that switches a session to binary frames, and its reply
+    public final static String SWITCH = "BIN";
+    public final static int SWITCHED = 200;
+
+    // the longest frame, its length has to fit in a u16
+    public final static int MAX_FRAME = 2 + 0xFFFF;
+
+    // request opcodes
+    public final static byte UID = 1;
+    public final static byte PWD = 2;
+    public final static byte NEW = 3;
+    public final static byte DEP = 4;
+    public final static byte WITH = 5;
+    public final static byte VIEW = 6;
+    public final static byte LOGOUT = 7;
+    public final static byte BATCH = 8;
+    // 9 is BIN, which only exists as a line
+    public final static byte RESUME = 10;
+    public final static byte PING = 11;
+    // 12 is STATS, 13 to 18 are the admin's and ROLE, which only exist as lines
+    public final static byte XFER = 19;
+
+    // response kinds
+    public final static byte NONE = 0;
+    public final static byte VALUE = 1;
+    public final static byte VECTOR = 2;
+    public final static byte TEXT = 3;
+
+    private BinaryProtocol()
+    {
+    }
+
+    /**
+     * a decoded response, meant to be reused from one response to the next
+     */
+    public static final class Response
+    {
+        public int status;
+        public byte kind;
+        public long value;
+        public long[] values = new long[16];
+        public int count;
+        public String text;
+    }
+
+    /**
+     * this function starts a frame, the caller then puts the payload and calls
+     * end(ByteBuffer, int)
+     *
+     * @param buffer the buffer to encode into
+     * @param opcode the opcode of a request
+     * @return the position of the frame, to pass to end(ByteBuffer, int)
+     */
+    public static int beginRequest(ByteBuffer buffer, byte opcode)
+    {
+        int start = buffer.position();
+        buffer.putShort((short) 0).put(opcode);
+        return start;
+    }
+
+    /**
+     * this function starts a response frame, the caller then puts the payload of
+     * the kind and calls end(ByteBuffer, int)
+     *
+     * @param buffer the buffer to encode into
+     * @param status the status code
+     * @param kind NONE, VALUE, VECTOR or TEXT
+     * @return the position of the frame, to pass to end(ByteBuffer, int)
+     */
+    public static int beginResponse(ByteBuffer buffer, int status, byte kind)
+    {
+        int start = buffer.position();
+        buffer.putShort((short) 0).putShort((short) status).put(kind);
+        return start;
+    }
+
+    /**
+     * this function fills in the length of a frame once its payload is in
+     *
+     * @param buffer the buffer the frame was encoded into
+     * @param start the position returned when the frame was started
+     */
+    public static void end(ByteBuffer buffer, int start)
+    {
+        buffer.putShort(start, (short) (buffer.position() - start - 2));
+    }
+
+    /**
+     * this function tells whether a buffer holds a complete frame at its position
+     *
+     * @param buffer the bytes received, in read mode
+     * @return the length of the frame including its u16 length, 0 if incomplete
+     */
+    public static int completeFrame(ByteBuffer buffer)
+    {
+        if (buffer.remaining() < 2)
+        {
+            return 0;
+        }
+        int length = 2 + Short.toUnsignedInt(buffer.getShort(buffer.position()));
+        return buffer.remaining() >= length ? length : 0;
+    }
+
+    /**
+     * this function puts a length-prefixed UTF-8 string, ASCII strings are
+     * encoded without allocating
+     *
+     * @param buffer the buffer to encode into
+     * @param string the string, at most 255 bytes once encoded
+     */
+    public static void putString(ByteBuffer buffer, String string)
+    {
+        int length = string.length();
+        boolean ascii = length <= 0xFF;
+        for (int i = 0; ascii && i < length; i++)
+        {
+            ascii = string.charAt(i) < 0x80;
+        }
+
+        if (ascii)
+        {
+            buffer.put((byte) length);
+            for (int i = 0; i < length; i++)
+            {
+                buffer.put((byte) string.charAt(i));
+            }
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFF)
+        {
+            throw new IllegalArgumentException("String longer than 255 bytes");
+        }
+        buffer.put((byte) bytes.length).put(bytes);
+    }
+
+    /**
+     * this function reads a length-prefixed UTF-8 string
+     *
+     * @param buffer the frame
+     * @return the string
+     * @throws BufferUnderflowException if the string runs past the end of the frame
+     */
+    public static String getString(ByteBuffer buffer)
+    {
+        int length = Byte.toUnsignedInt(buffer.get());
+        if (length > buffer.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+        String string;
+        if (buffer.hasArray())
+        {
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        }
+        else
+        {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
+
+    /**
+     * this function decodes a complete response frame into a reusable holder
+     *
+     * @param buffer the bytes received, positioned at the frame
+     * @param response receives the response
+     */
+    public static void decodeResponse(ByteBuffer buffer, Response response)
+    {
+        buffer.getShort(); // length, checked by completeFrame()
+        response.status = Short.toUnsignedInt(buffer.getShort());
+        response.kind = buffer.get();
+        response.count = 0;
+        response.text = null;
+
+        if (response.kind == VALUE)
+        {
+            response.value = buffer.getLong();
+        }
+        else if (response.kind == VECTOR)
+        {
+            response.count = Short.toUnsignedInt(buffer.getShort());
+            if (response.values.length < response.count)
+            {
+                response.values = new long[response.count];
+            }
+            for (int i = 0; i < response.count; i++)
+            {
+                response.values[i] = buffer.getLong();
+            }
+        }
+        else if (response.kind == TEXT)
+        {
+            response.text = getString(buffer);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.example.router;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * places usernames on shards with consistent hashing: every shard owns a number
+ * of points on a ring of 64-bit hashes, and a username belongs to the shard
+ * owning the first point at or after the hash of the username
+ *
+ * a shard joining or leaving only gains or loses the usernames of its own
+ * points, about 1/n of them, every other username stays where it was, and with
+ * many points per shard the shares of the shards stay close to each other
+ *
+ * a ring never changes, joining and leaving make a new one, so a router can
+ * keep the ring it's moving away from next to the one it's moving to
+ */
+public final class HashRing
+{
+    // options
+    public final static int VIRTUAL_NODES = 128;
+
+    // FNV-1a
+    protected final static long FNV_OFFSET = 0xcbf29ce484222325L;
+    protected final static long FNV_PRIME = 0x100000001b3L;
+
+    // the shards, in the order they were given
+    protected final List<String> nodes;
+    protected final int virtualNodes;
+
+    // the hash of every point -> the shard owning it
+    protected final TreeMap<Long, String> points = new TreeMap<>();
+
+    /**
+     * @param _nodes the addresses of the shards, e.g. "127.0.0.1:16801", every
+     *        router has to be given the same addresses to place usernames alike
+     * @param _virtualNodes the points of each shard
+     */
+    public HashRing(Collection<String> _nodes, int _virtualNodes)
+    {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(_nodes));
+        this.virtualNodes = Math.max(1, _virtualNodes);
+        for (String node : nodes)
+        {
+            for (int i = 0; i < virtualNodes; i++)
+            {
+                // two points with the same hash go to the same shard whatever the order of the shards
+                points.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    /**
+     * @param node the address of a shard that isn't on the ring
+     * @return a ring with the shard added
+     */
+    public HashRing withNode(String node)
+    {
+        List<String> joined = new ArrayList<>(nodes);
+        joined.add(node);
+        return new HashRing(joined, virtualNodes);
+    }
+
+    /**
+     * @param node the address of a shard on the ring
+     * @return a ring without the shard
+     */
+    public HashRing withoutNode(String node)
+    {
+        List<String> left = new ArrayList<>(nodes);
+        left.remove(node);
+        return new HashRing(left, virtualNodes);
+    }
+
+    /**
+     * @param user a username
+     * @return the address of the shard that owns the username, null if the ring is empty
+     */
+    public String owner(String user)
+    {
+        if (points.isEmpty())
+        {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(user));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * @return the addresses of the shards
+     */
+    public List<String> nodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * @param node the address of a shard
+     * @return true if the shard is on the ring
+     */
+    public boolean contains(String node)
+    {
+        return nodes.contains(node);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.join(",", nodes);
+    }
+
+    /**
+     * this function hashes a key with FNV-1a and mixes the result with the
+     * finalizer of MurmurHash3, FNV alone leaves similar keys such as "node#1"
+     * and "node#2" close together on the ring
+     *
+     * @param key a username, or the name of a point
+     * @return the hash of the key
+     */
+    protected static long hash(String key)
+    {
+        long hash = FNV_OFFSET;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8))
+        {
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
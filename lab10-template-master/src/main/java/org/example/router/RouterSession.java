@@ -0,0 +1,339 @@
+package org.example.router;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.CompletionException;
+
+import org.example.client.AsyncClient;
+import org.example.client.PooledSession;
+import org.example.server.ATMServer;
+import org.example.server.ServerLog;
+import org.example.server.SessionTokens;
+
+/**
+ * one client of the router, it reads the lines of the client and forwards each
+ * one to a logical session on the shard it belongs to, and writes back the
+ * reply of the shard, so the client can't tell the router from a server
+ *
+ * UID, NEW and RESUME pick the shard from the username, the other commands go
+ * to the shard of the account the client logged in to, or to a session that
+ * never logs in if it isn't, a login logs the session on the old shard out
+ * first, PING is answered by the router itself, and the admin's SHARDS, JOIN,
+ * LEAVE and REBALANCE run on the router, binary frames aren't routed
+ */
+public class RouterSession implements Runnable
+{
+    protected final String id;
+    protected final Socket socket;
+    protected final ShardRouter router;
+
+    protected BufferedReader in = null;
+    protected PrintWriter out = null;
+
+    // the logical session of the client on every shard it talked to, by address
+    protected final HashMap<String, PooledSession> sessions = new HashMap<>();
+
+    // the sessions that answer the commands of a client that isn't logged in,
+    // they never log in, so those commands get what a server would answer
+    protected final HashMap<String, PooledSession> anonymous = new HashMap<>();
+
+    // the shard and the username given by the last UID or RESUME
+    protected String attemptedShard = null;
+    protected String attemptedUser = null;
+
+    // the shard and the username of the account the client is logged in to, null if none
+    protected String shard = null;
+    protected String user = null;
+
+    public RouterSession(String _id, Socket _socket, ShardRouter _router)
+    {
+        this.id = _id;
+        this.socket = _socket;
+        this.router = _router;
+    }
+
+    public void run()
+    {
+        try (socket)
+        {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                    StandardCharsets.UTF_8)));
+            out.println("Welcome to the ATM Machine");
+            out.println("100 Ready");
+            out.flush();
+
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                out.println(process(line));
+                // the replies of lines that came together go out together
+                if (!in.ready())
+                {
+                    out.flush();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.INFO, id, "Connection lost: " + e.getMessage());
+        }
+        finally
+        {
+            for (PooledSession session : sessions.values())
+            {
+                session.close();
+            }
+            for (PooledSession session : anonymous.values())
+            {
+                session.close();
+            }
+            ServerLog.log(ServerLog.Level.INFO, id, "Disconnected.");
+        }
+    }
+
+    /**
+     * this function routes one line of the client
+     *
+     * @param line the line
+     * @return the reply
+     */
+    protected String process(String line)
+    {
+        String trimmed = line.strip();
+        int space = trimmed.indexOf(' ');
+        String command = (space < 0 ? trimmed : trimmed.substring(0, space)).toUpperCase(Locale.ROOT);
+        String argument = space < 0 ? "" : trimmed.substring(space + 1).strip();
+
+        switch (command)
+        {
+            case "UID":
+                // a login under way counts as none until the shard confirms it
+                logout();
+                attemptedUser = argument;
+                attemptedShard = router.route(argument);
+                return forward(attemptedShard, line);
+            case "PWD":
+            {
+                String address = attemptedShard != null ? attemptedShard : shard;
+                logout();
+                return forward(address, line);
+            }
+            case "RESUME":
+            {
+                logout();
+                String owner = SessionTokens.user(argument);
+                if (owner == null)
+                {
+                    return "403 Invalid or expired token";
+                }
+                attemptedUser = owner;
+                attemptedShard = router.route(owner);
+                return forward(attemptedShard, line);
+            }
+            case "NEW":
+            {
+                int end = argument.indexOf(' ');
+                String created = router.create(end < 0 ? argument : argument.substring(0, end));
+                try
+                {
+                    return forward(created, line);
+                }
+                finally
+                {
+                    router.created();
+                }
+            }
+            case "PING":
+                return "200 PONG";
+            case "BIN":
+                return "400 Binary frames aren't routed";
+            case "SHARDS":
+            case "JOIN":
+            case "LEAVE":
+            case "REBALANCE":
+                return admin(command, argument);
+            default:
+                return forward(shard, line);
+        }
+    }
+
+    /**
+     * this function sends a line to the client's logical session on a shard,
+     * and follows the logins and logouts in the reply
+     *
+     * @param address the shard, null if the client has none, the line then
+     *        goes to a session of any shard that never logs in, which answers
+     *        it like a server would
+     * @param line the line
+     * @return the reply
+     */
+    protected String forward(String address, String line)
+    {
+        HashMap<String, PooledSession> owners = address != null ? sessions : anonymous;
+        if (address == null)
+        {
+            address = router.anyShard();
+        }
+        if (!router.isShard(address))
+        {
+            // the shard left and took none of the accounts with it
+            logout();
+            return "410 Account moved, log in again";
+        }
+
+        PooledSession session;
+        AsyncClient.Reply reply;
+        try
+        {
+            session = owners.get(address);
+            if (session == null)
+            {
+                session = router.session(address);
+                owners.put(address, session);
+            }
+            reply = session.send(line).join().get(0);
+        }
+        catch (IllegalStateException | CompletionException e)
+        {
+            ServerLog.log(ServerLog.Level.WARN, id, "Could not reach the shard {}: " + e.getMessage(), address);
+            return "503 Shard unavailable";
+        }
+
+        // only a login the shard confirmed counts, the pooled session follows
+        // it through the replies, a resume on a replaced connection included
+        if (owners == anonymous)
+        {
+            return reply.toString();
+        }
+        if (isCommand(line, "PWD") || isCommand(line, "RESUME"))
+        {
+            if (session.loggedIn())
+            {
+                shard = address;
+                user = attemptedUser;
+            }
+        }
+        else if (address.equals(shard) && (reply.status == 410 || !session.loggedIn()))
+        {
+            // the shard already logged the session out
+            forget();
+        }
+        return reply.toString();
+    }
+
+    /**
+     * this function runs an admin command of the router
+     *
+     * @param command SHARDS, JOIN, LEAVE or REBALANCE
+     * @param argument the address of the shard joining or leaving
+     * @return the reply
+     */
+    protected String admin(String command, String argument)
+    {
+        if (user != null && !confirmed())
+        {
+            forget();
+        }
+        if (user == null)
+        {
+            return "401 Unauthenticated user";
+        }
+        if (!user.equals(ATMServer.ADMIN_USER))
+        {
+            ServerLog.log(ServerLog.Level.WARN, id, "User {} tried the admin command " + command, user);
+            return "403 Forbidden";
+        }
+        ServerLog.log(ServerLog.Level.INFO, id, "Admin command: {} {}", command, argument);
+        switch (command)
+        {
+            case "JOIN":
+                return argument.isEmpty() ? "400 Bad request" : router.join(argument);
+            case "LEAVE":
+                return argument.isEmpty() ? "400 Bad request" : router.leave(argument);
+            case "REBALANCE":
+                return router.resume();
+            default:
+                return router.describe();
+        }
+    }
+
+    /**
+     * this function checks that the client's session on its shard is still
+     * logged in, the router answers admin commands itself, so a login lost
+     * with a replaced connection would go unnoticed otherwise
+     *
+     * @return true if the shard still has the session logged in
+     */
+    protected boolean confirmed()
+    {
+        PooledSession session = sessions.get(shard);
+        try
+        {
+            // resumes the session first if its connection was replaced
+            session.send("PING").join();
+        }
+        catch (IllegalStateException | CompletionException e)
+        {
+            ServerLog.log(ServerLog.Level.WARN, id, "Could not reach the shard {}: " + e.getMessage(), shard);
+            return false;
+        }
+        return session.loggedIn();
+    }
+
+    /**
+     * this function logs the client's session on its shard out, so the
+     * account can't be used through it anymore, a session that can't be
+     * logged out is dropped along with its connection id
+     */
+    protected void logout()
+    {
+        PooledSession session = shard != null ? sessions.get(shard) : null;
+        String address = shard;
+        forget();
+        if (session == null)
+        {
+            return;
+        }
+        try
+        {
+            session.logout().join();
+        }
+        catch (IllegalStateException | CompletionException e)
+        {
+            ServerLog.log(ServerLog.Level.WARN, id, "Could not log out on the shard {}: " + e.getMessage(), address);
+            sessions.remove(address);
+            session.close();
+        }
+    }
+
+    /**
+     * this function forgets the account the client was logged in to, the
+     * shard already logged its session out
+     */
+    protected void forget()
+    {
+        shard = null;
+        user = null;
+    }
+
+    /**
+     * @param line a line of the client
+     * @param command a command
+     * @return true if the line is the command
+     */
+    protected static boolean isCommand(String line, String command)
+    {
+        String trimmed = line.strip();
+        return trimmed.regionMatches(true, 0, command, 0, command.length())
+                && (trimmed.length() == command.length() || trimmed.charAt(command.length()) == ' ');
+    }
+}
@@ -0,0 +1,690 @@
+package org.example.router;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.example.client.AsyncClient;
+import org.example.client.PooledSession;
+import org.example.client.SessionPool;
+import org.example.server.ATMServer;
+import org.example.server.ConnectionRegistry;
+import org.example.server.ServerConfig;
+import org.example.server.ServerLog;
+
+/**
+ * fronts several ATM servers (shards) that each hold a share of the accounts,
+ * clients connect to the router and speak the line protocol as if it were the
+ * server, the router forwards each of their commands to the shard that owns the
+ * account they're logging in to, picked by consistent hashing of the username
+ *
+ * the router keeps a SessionPool to every shard and gives each client a logical
+ * session on every shard it talks to, so a shard sees a few connections however
+ * many clients the router serves, every shard is logged in to as its admin as
+ * well, for moving accounts
+ *
+ * shards join and leave while the router serves: the router then moves the
+ * accounts whose owner changed, each with EXPORT on the old owner and IMPORT on
+ * the new one, a background scan walks through every account while the clients
+ * keep going, and an account a client asks for before the scan reached it moves
+ * first, a client logged in to an account that moved gets "410" and logs in
+ * again, which brings it to the new owner, once every account moved the router
+ * switches to the new ring
+ */
+public class ShardRouter
+{
+    // options
+    public final static int MAX_CLIENTS = 1000;
+    public final static int ACCEPT_BACKLOG = ATMServer.ACCEPT_BACKLOG;
+    public final static int REBALANCE_THREADS = 8;
+
+    // the usernames listed by one ACCOUNTS while rebalancing
+    public final static int ACCOUNTS_PAGE = 500;
+
+    /**
+     * a shard: the pool of connections to it and the admin session moving accounts
+     */
+    protected static final class Shard
+    {
+        final String address;
+        final SessionPool pool;
+        final PooledSession admin;
+
+        Shard(String _address, SessionPool _pool, PooledSession _admin)
+        {
+            this.address = _address;
+            this.pool = _pool;
+            this.admin = _admin;
+        }
+
+        /**
+         * this function connects to a shard and logs its admin in
+         *
+         * @param address "host:port"
+         * @param connections the connections of the pool
+         * @param password the password of the shard's admin
+         * @return the shard
+         * @throws IOException if the shard can't be reached or refuses the admin
+         */
+        static Shard open(String address, int connections, String password) throws IOException
+        {
+            int colon = address.lastIndexOf(':');
+            int port;
+            try
+            {
+                port = colon > 0 ? Integer.parseInt(address.substring(colon + 1)) : -1;
+            }
+            catch (NumberFormatException e)
+            {
+                port = -1;
+            }
+            if (port <= 0)
+            {
+                throw new IOException("Expected host:port, got \"" + address + "\"");
+            }
+
+            SessionPool pool;
+            try
+            {
+                pool = SessionPool.open(address.substring(0, colon), port, connections,
+                        SessionPool.HEALTH_CHECK_MILLIS).join();
+            }
+            catch (CompletionException e)
+            {
+                throw new IOException("Could not connect to " + address + ": " + e.getCause());
+            }
+
+            PooledSession admin = pool.session();
+            AsyncClient.Login login = admin.login(ATMServer.ADMIN_USER, password).join();
+            if (!login.ok())
+            {
+                pool.close();
+                throw new IOException("The admin of " + address + " could not log in: " + login);
+            }
+            return new Shard(address, pool, admin);
+        }
+
+        /**
+         * this function sends an admin command to the shard and waits for it
+         *
+         * @param command the command
+         * @return the reply
+         * @throws IOException if the connection failed
+         */
+        AsyncClient.Reply command(String command) throws IOException
+        {
+            try
+            {
+                return admin.send(command).join().get(0);
+            }
+            catch (CompletionException e)
+            {
+                throw new IOException(address + " failed: " + e.getCause());
+            }
+        }
+    }
+
+    /**
+     * where the accounts are: the ring, and while rebalancing the ring the
+     * accounts move to and the owners of the accounts that moved or are moving
+     */
+    protected static final class Layout
+    {
+        final HashRing ring;
+        // null unless rebalancing
+        final HashRing next;
+        final ConcurrentHashMap<String, CompletableFuture<String>> moves;
+
+        Layout(HashRing _ring, HashRing _next, ConcurrentHashMap<String, CompletableFuture<String>> _moves)
+        {
+            this.ring = _ring;
+            this.next = _next;
+            this.moves = _moves;
+        }
+    }
+
+    protected final ServerConfig config;
+    protected final String adminPassword;
+    protected final int connections;
+    protected final int rebalanceThreads;
+
+    // the shards by address, the ones of both rings while rebalancing
+    protected final ConcurrentHashMap<String, Shard> shards = new ConcurrentHashMap<>();
+
+    protected volatile Layout layout;
+
+    // held by the commands that create accounts, so a rebalance starts once
+    // every account created with the old ring alone is where the scan finds it
+    protected final ReentrantReadWriteLock creating = new ReentrantReadWriteLock(true);
+
+    // the thread of the scan, null when none is running, guarded by this
+    protected Thread scan = null;
+
+    protected final AtomicInteger active = new AtomicInteger();
+    protected int numClients = 0;
+
+    /**
+     * this function connects to the shards of "--shards" (comma separated
+     * host:port), with "--shard-connections" connections each, logging in
+     * their admins with "--admin-password" (default admin), and places
+     * "--virtual-nodes" points of each on the ring
+     *
+     * @param _config the options the router was started with
+     * @throws IOException if a shard can't be reached
+     */
+    public ShardRouter(ServerConfig _config) throws IOException
+    {
+        this.config = _config;
+        this.adminPassword = config.get("admin-password", ATMServer.ADMIN_USER);
+        this.connections = config.getInt("shard-connections", SessionPool.CONNECTIONS);
+        this.rebalanceThreads = Math.max(1, config.getInt("rebalance-threads", REBALANCE_THREADS));
+
+        List<String> addresses = new ArrayList<>();
+        for (String address : config.get("shards", "").split(","))
+        {
+            if (!address.isBlank() && !addresses.contains(address.strip()))
+            {
+                addresses.add(address.strip());
+            }
+        }
+        if (addresses.isEmpty())
+        {
+            throw new IOException("No shards given, e.g. --shards=127.0.0.1:16801,127.0.0.1:16802");
+        }
+        for (String address : addresses)
+        {
+            shards.put(address, Shard.open(address, connections, adminPassword));
+        }
+        this.layout = new Layout(new HashRing(addresses, config.getInt("virtual-nodes", HashRing.VIRTUAL_NODES)),
+                null, null);
+    }
+
+    public static void main(String[] args)
+    {
+        ServerConfig config = new ServerConfig(args);
+        try
+        {
+            ServerLog.start(config);
+        }
+        catch (IOException e)
+        {
+            System.err.println("IOException while opening the log file, logging to the console only:\n" + e);
+        }
+
+        ShardRouter router;
+        try
+        {
+            router = new ShardRouter(config);
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.ERROR, null, "Could not start the router: " + e.getMessage());
+            return;
+        }
+        router.serve();
+    }
+
+    /**
+     * this function accepts clients and runs each one on a virtual thread of
+     * its own, a client mostly waits on its shards
+     */
+    public void serve()
+    {
+        int port = config.getInt("port", ATMServer.SERVER_PORT);
+        int limit = config.getInt("max-clients", MAX_CLIENTS);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+        try (ServerSocket serverSocket = new ServerSocket(port, config.getInt("backlog", ACCEPT_BACKLOG)))
+        {
+            ServerLog.log(ServerLog.Level.INFO, null, "Routing PORT " + port + " to the shards " + layout.ring);
+
+            while (true)
+            {
+                Socket clientSocket = serverSocket.accept();
+                numClients++;
+                String name = "Client #" + numClients;
+
+                if (active.incrementAndGet() > limit)
+                {
+                    active.decrementAndGet();
+                    ServerLog.log(ServerLog.Level.WARN, null, "{} refused, {} clients connected.", name, limit);
+                    try (clientSocket)
+                    {
+                        clientSocket.getOutputStream()
+                                .write((ConnectionRegistry.BUSY + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                    catch (IOException e)
+                    {
+                        // the client is being dropped anyway
+                    }
+                    continue;
+                }
+
+                ServerLog.log(ServerLog.Level.INFO, null, "{} connected.", name);
+                executor.execute(() -> {
+                    try
+                    {
+                        new RouterSession(name, clientSocket, this).run();
+                    }
+                    finally
+                    {
+                        active.decrementAndGet();
+                    }
+                });
+            }
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.ERROR, null,
+                    "IOException while creating router connection. Total connections used to date:" + numClients);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * this function finds the shard that owns a username's account, while
+     * rebalancing, an account whose owner changes is moved first if it hasn't
+     * been yet
+     *
+     * @param user the username
+     * @return the address of the shard
+     */
+    public String route(String user)
+    {
+        Layout current = layout;
+        String owner = current.ring.owner(user);
+        if (current.next == null)
+        {
+            return owner;
+        }
+        String target = current.next.owner(user);
+        return owner.equals(target) ? owner : move(user, owner, target, current.moves);
+    }
+
+    /**
+     * this function finds the shard a new account is created on, and holds
+     * back a rebalance from starting until the account is created
+     *
+     * @param user the username of the new account
+     * @return the address of the shard, the caller calls created() once the
+     *         shard answered
+     */
+    public String create(String user)
+    {
+        creating.readLock().lock();
+        return route(user);
+    }
+
+    /**
+     * this function lets a rebalance start once the account being created is
+     */
+    public void created()
+    {
+        creating.readLock().unlock();
+    }
+
+    /**
+     * this function starts a logical session on a shard
+     *
+     * @param address the address of the shard
+     * @return the session
+     * @throws IllegalStateException if the shard is gone or has no room for another session
+     */
+    public PooledSession session(String address)
+    {
+        Shard shard = shards.get(address);
+        if (shard == null)
+        {
+            throw new IllegalStateException(address + " isn't a shard");
+        }
+        return shard.pool.session();
+    }
+
+    /**
+     * @param address the address of a shard
+     * @return true if the router still sends to the shard
+     */
+    public boolean isShard(String address)
+    {
+        return shards.containsKey(address);
+    }
+
+    /**
+     * @return the shard of the commands of clients that aren't logging in to
+     *         an account, the shard answers them like any server would
+     */
+    public String anyShard()
+    {
+        return layout.ring.nodes().get(0);
+    }
+
+    /**
+     * this function moves an account to its new owner once, however many
+     * sessions and the scan ask for it at the same time
+     *
+     * @param user the username
+     * @param source the shard the account is on
+     * @param target the shard the account moves to
+     * @param moves the moves of the rebalance
+     * @return the shard the account is on afterwards, the source if it couldn't move
+     */
+    protected String move(String user, String source, String target,
+            ConcurrentHashMap<String, CompletableFuture<String>> moves)
+    {
+        CompletableFuture<String> move = new CompletableFuture<>();
+        CompletableFuture<String> earlier = moves.putIfAbsent(user, move);
+        if (earlier != null)
+        {
+            return earlier.join();
+        }
+
+        String owner = transfer(user, source, target);
+        move.complete(owner);
+        if (!owner.equals(target))
+        {
+            // the next one asking tries again
+            moves.remove(user, move);
+        }
+        return owner;
+    }
+
+    /**
+     * this function exports an account from one shard and imports it into
+     * another, if the import fails the account is imported back where it was
+     *
+     * @param user the username
+     * @param source the shard the account is on
+     * @param target the shard the account moves to
+     * @return the shard the account is on afterwards
+     */
+    protected String transfer(String user, String source, String target)
+    {
+        AsyncClient.Reply exported;
+        try
+        {
+            exported = shards.get(source).command("EXPORT " + user);
+        }
+        catch (IOException e)
+        {
+            // the account may be closed on the source, its CLOSE record there has the balance
+            ServerLog.log(ServerLog.Level.ERROR, null, "Could not move the account of " + user + " off " + source
+                    + ", check its write-ahead log for the account: " + e.getMessage());
+            return source;
+        }
+        if (exported.status == 400)
+        {
+            // no account yet, a new one is created on the target
+            return target;
+        }
+        if (!exported.ok())
+        {
+            ServerLog.log(ServerLog.Level.ERROR, null, "{} refused to export {}: " + exported, source, user);
+            return source;
+        }
+
+        String account = user + " " + exported.message;
+        try
+        {
+            AsyncClient.Reply imported = shards.get(target).command("IMPORT " + account);
+            if (imported.ok())
+            {
+                ServerLog.log(ServerLog.Level.DEBUG, null, "Moved {} from {} to " + target, user, source);
+                return target;
+            }
+            ServerLog.log(ServerLog.Level.WARN, null, "{} refused to import {}: " + imported, target, user);
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.WARN, null, "Could not move the account of {} to {}: " + e.getMessage(), user,
+                    target);
+        }
+
+        try
+        {
+            AsyncClient.Reply restored = shards.get(source).command("IMPORT " + account);
+            if (!restored.ok())
+            {
+                throw new IOException(restored.toString());
+            }
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.ERROR, null, "Could not put the account " + account + " back on " + source
+                    + ": " + e.getMessage());
+        }
+        return source;
+    }
+
+    /**
+     * this function adds a shard and moves the accounts it now owns onto it
+     *
+     * @param address "host:port" of the shard, it has to share the password
+     *        hashing of the other shards
+     * @return the reply to the admin's JOIN
+     */
+    public synchronized String join(String address)
+    {
+        Layout current = layout;
+        if (current.next != null)
+        {
+            return "400 Rebalance in progress";
+        }
+        if (current.ring.contains(address))
+        {
+            return "400 Already a shard";
+        }
+        try
+        {
+            shards.put(address, Shard.open(address, connections, adminPassword));
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.WARN, null, "{} could not join: " + e.getMessage(), address);
+            return "503 Could not reach " + address;
+        }
+        rebalance(current.ring.withNode(address));
+        return "200 Rebalancing onto " + address;
+    }
+
+    /**
+     * this function moves every account off a shard and then drops it
+     *
+     * @param address "host:port" of the shard
+     * @return the reply to the admin's LEAVE
+     */
+    public synchronized String leave(String address)
+    {
+        Layout current = layout;
+        if (current.next != null)
+        {
+            return "400 Rebalance in progress";
+        }
+        if (!current.ring.contains(address))
+        {
+            return "400 Not a shard";
+        }
+        if (current.ring.nodes().size() == 1)
+        {
+            return "400 The last shard can't leave";
+        }
+        rebalance(current.ring.withoutNode(address));
+        return "200 Rebalancing off " + address;
+    }
+
+    /**
+     * this function scans the accounts again after a rebalance left some of
+     * them behind
+     *
+     * @return the reply to the admin's REBALANCE
+     */
+    public synchronized String resume()
+    {
+        if (layout.next == null)
+        {
+            return "400 Nothing to rebalance";
+        }
+        if (scan != null)
+        {
+            return "400 Rebalance in progress";
+        }
+        startScan();
+        return "200 Rebalancing onto " + layout.next;
+    }
+
+    /**
+     * @return the reply to the admin's SHARDS, the shards and, while
+     *         rebalancing, the shards the accounts move to
+     */
+    public String describe()
+    {
+        Layout current = layout;
+        return "200 " + current.ring + (current.next == null ? "" : " -> " + current.next);
+    }
+
+    /**
+     * this function starts moving the accounts to a new ring, it's only
+     * called with this held
+     *
+     * @param next the ring to move to
+     */
+    protected void rebalance(HashRing next)
+    {
+        // waiting for the accounts being created on the old ring alone
+        creating.writeLock().lock();
+        try
+        {
+            layout = new Layout(layout.ring, next, new ConcurrentHashMap<>());
+        }
+        finally
+        {
+            creating.writeLock().unlock();
+        }
+        ServerLog.log(ServerLog.Level.INFO, null, "Rebalancing from {} to {}", layout.ring, next);
+        startScan();
+    }
+
+    /**
+     * this function starts the scan of the accounts, it's only called with this held
+     */
+    protected void startScan()
+    {
+        scan = new Thread(this::scan, "Rebalance");
+        scan.setDaemon(true);
+        scan.start();
+    }
+
+    /**
+     * this function walks through the accounts of every shard of the old ring
+     * a page at a time and moves the ones whose owner changes, a few at once,
+     * and switches to the new ring once none is left behind
+     */
+    protected void scan()
+    {
+        Layout current = layout;
+        long started = System.nanoTime();
+        AtomicInteger moved = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService movers = Executors.newFixedThreadPool(rebalanceThreads);
+
+        try
+        {
+            for (String source : current.ring.nodes())
+            {
+                Shard shard = shards.get(source);
+                int from = 0;
+                while (from >= 0)
+                {
+                    AsyncClient.Reply page;
+                    try
+                    {
+                        page = shard.command("ACCOUNTS " + from + " " + ACCOUNTS_PAGE);
+                    }
+                    catch (IOException e)
+                    {
+                        page = new AsyncClient.Reply(0, e.getMessage());
+                    }
+                    if (!page.ok())
+                    {
+                        ServerLog.log(ServerLog.Level.ERROR, null, "Could not list the accounts of {}: " + page, source);
+                        failed.incrementAndGet();
+                        break;
+                    }
+
+                    String[] fields = page.message.split(" ");
+                    from = Integer.parseInt(fields[0]);
+                    List<Future<?>> batch = new ArrayList<>();
+                    for (String user : Arrays.asList(fields).subList(1, fields.length))
+                    {
+                        String target = current.next.owner(user);
+                        if (user.equals(ATMServer.ADMIN_USER) || target.equals(source))
+                        {
+                            continue;
+                        }
+                        batch.add(movers.submit(() -> {
+                            if (move(user, source, target, current.moves).equals(target))
+                            {
+                                moved.incrementAndGet();
+                            }
+                            else
+                            {
+                                failed.incrementAndGet();
+                            }
+                        }));
+                    }
+                    for (Future<?> move : batch)
+                    {
+                        move.get();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            ServerLog.log(ServerLog.Level.ERROR, null, "The rebalance stopped: " + e);
+            failed.incrementAndGet();
+        }
+        finally
+        {
+            movers.shutdown();
+        }
+
+        long millis = (System.nanoTime() - started) / 1_000_000;
+        synchronized (this)
+        {
+            scan = null;
+            if (failed.get() > 0)
+            {
+                ServerLog.log(ServerLog.Level.ERROR, null, "Rebalancing to " + current.next + " left " + failed.get()
+                        + " accounts behind after " + millis + " ms, REBALANCE tries again");
+                return;
+            }
+
+            layout = new Layout(current.next, null, null);
+            for (String address : current.ring.nodes())
+            {
+                if (!current.next.contains(address))
+                {
+                    shards.remove(address).pool.close();
+                }
+            }
+            ServerLog.log(ServerLog.Level.INFO, null, "Rebalanced to " + current.next + ", moved " + moved.get()
+                    + " accounts in " + millis + " ms");
+        }
+    }
+}
@@ -2,78 +2,386 @@ package org.example.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ATMServer {
     // protected modifier means these attributes are accessible inside the same
     // class
     protected Socket clientSocket = null;
-    protected ServerSocket serverSocket = null;
-    protected ATMThread[] threads = null;
+    protected volatile ServerSocket serverSocket = null;
+    protected ConnectionRegistry registry = null;
     protected int numClients = 0;
 
-    // vars to be passed into the thread
-    protected HashMap<String, byte[]> users = new HashMap<>();
-    protected HashMap<String, Integer> balances = new HashMap<>();
+    // the accounts, shared by every session
+    protected Ledger ledger = new Ledger();
+
+    // hashes and checks passwords on a pool of its own
+    protected CredentialService credentials = null;
+
+    // writes periodic snapshots of the ledger, null if the ledger isn't persisted
+    protected Snapshotter snapshotter = null;
+
+    // runs the commands of nio connections, so event loops never block
+    protected ExecutorService workers = null;
+
+    // the accepting channel and the event loops of "--mode=nio"
+    protected volatile ServerSocketChannel acceptor = null;
+    protected volatile EventLoop[] eventLoops = new EventLoop[0];
+
+    // closes idle and expired sessions, and drains them all on shutdown
+    protected SessionLifecycle lifecycle = null;
+
+    // serves the metrics to scrapers, null unless "--metrics-port" is given
+    protected MetricsEndpoint metricsEndpoint = null;
+
+    // follows a primary, null unless "--replica-of" is given
+    protected Replica replica = null;
+
+    // ships the log to replicas, null unless "--replication-port" is given
+    protected ReplicationSource replicationSource = null;
 
     // vars
     public final static int SERVER_PORT = 16789;
     public final static int MAX_CLIENTS = 25;
+    public final static int ACCEPT_BACKLOG = 50;
+    public final static String DATA_DIR = "data";
+    public final static int WAL_BATCH = 256;
+    public final static int WAL_DELAY_MICROS = 1000;
+    public final static int SNAPSHOT_INTERVAL_SECONDS = 60;
+
+    // the account created on a new server, the only one that may see its metrics
+    public final static String ADMIN_USER = "admin";
+
+    // the options the server was started with
+    protected ServerConfig config;
 
     public ATMServer() {
-        /// setup
+        this(new ServerConfig());
+    }
 
-        // admin username (the password is the same)
-        String admin_user = "admin";
+    public ATMServer(ServerConfig config) {
+        this.config = config;
 
-        // hashing default users
+        // starting the log first, everything after it logs through it
         try {
-            // hashing the password, you should NEVER under any circumstance, store any type
-            // of password, yours or another person's as plaintext
-            byte[] admin_pass = MessageDigest.getInstance("MD5").digest(admin_user.getBytes(StandardCharsets.UTF_8));
+            ServerLog.start(config);
+        } catch (IOException e) {
+            System.err.println("IOException while opening the log file, logging to the console only:\n" + e);
+        }
+
+        this.registry = new ConnectionRegistry(config.getInt("max-clients", MAX_CLIENTS));
+        this.lifecycle = new SessionLifecycle(config);
+        ServerMetrics.SERVER.gauge("connections_active", registry::active);
+        metricsEndpoint = MetricsEndpoint.start(config, ServerMetrics.SERVER);
+
+        // letting the connected clients finish when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Shutdown"));
+
+        /// setup
+
+        // rebuilding the accounts from the latest snapshot and the write-ahead log
+        // after it, unless "--persist=false"
+        if (config.getBoolean("persist", true)) {
+            Path logPath = Path.of(config.get("data-dir", DATA_DIR), "ledger.wal");
+            Path snapshotPath = Path.of(config.get("data-dir", DATA_DIR), "ledger.snapshot");
+            try {
+                long started = System.nanoTime();
+                long snapshotLsn = Snapshotter.load(snapshotPath, ledger.table);
+
+                WriteAheadLog log = new WriteAheadLog(logPath, config.getInt("wal-batch", WAL_BATCH),
+                        config.getInt("wal-delay-us", WAL_DELAY_MICROS));
+                long records = ledger.recover(log, snapshotLsn);
+                ServerLog.log(ServerLog.Level.INFO, null, "Recovered " + ledger.table.size() + " accounts from "
+                        + snapshotPath + " and " + records + " records from " + logPath + " in "
+                        + (System.nanoTime() - started) / 1_000_000 + " ms");
+
+                snapshotter = new Snapshotter(snapshotPath, ledger, log, snapshotLsn,
+                        config.getInt("snapshot-interval-s", SNAPSHOT_INTERVAL_SECONDS));
+                snapshotter.start();
+            } catch (IOException e) {
+                // acknowledging changes that can't be made durable would lose money, aborting
+                ServerLog.log(ServerLog.Level.ERROR, null,
+                        "IOException while opening the write-ahead log " + logPath + ":\n" + e);
+                return;
+            }
+        }
+
+        credentials = new CredentialService(config);
+
+        // "--replica-of=host:port" takes the accounts from a primary, with the
+        // same records at the same LSNs, and "--replication-port" ships them on
+        replica = Replica.start(config, ledger);
+        if (replica != null) {
+            ServerMetrics.SERVER.gauge("replication_lsn", replica::position);
+            ServerMetrics.SERVER.gauge("replication_staleness_ms", replica::stalenessMillis);
+        }
+        replicationSource = ReplicationSource.start(config, ledger.log);
+        if (replicationSource != null) {
+            ServerMetrics.SERVER.gauge("replicas_connected", replicationSource::replicas);
+        }
+
+        // admin username (the password is the same)
+        String admin_user = ADMIN_USER;
 
-            // default user & pass is: admin, admin
-            users.put(admin_user, admin_pass);
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("Could not find algorithm:\n" + e);
+        // hashing default users the same way the sessions check them, you should NEVER
+        // under any circumstance, store any type of password, yours or another person's
+        // as plaintext
+        // default user & pass is: admin, admin, with a default balance, the
+        // account is already there if it was recovered from the log, a replica
+        // gets it from its primary
+        if (replica == null && !ledger.exists(admin_user)) {
+            ledger.open(admin_user, credentials.hash(admin_user).join(), 10000);
         }
 
-        // adding default balances
-        balances.put("admin", 10000);
+        // "--import=<file>" opens the accounts of a file before the clients come,
+        // "--export=<file>" writes every account out, see BulkAccounts
+        String importFile = config.get("import", "");
+        if (!importFile.isEmpty()) {
+            if (replica != null) {
+                ServerLog.log(ServerLog.Level.ERROR, null,
+                        "A replica takes its accounts from its primary, not importing " + importFile);
+            } else {
+                try {
+                    new BulkAccounts(ledger, credentials, config.getInt("import-threads", BulkAccounts.THREADS))
+                            .load(Path.of(importFile));
+                } catch (IOException e) {
+                    ServerLog.log(ServerLog.Level.ERROR, null, "IOException while importing " + importFile + ":\n" + e);
+                }
+            }
+        }
+        String exportFile = config.get("export", "");
+        if (!exportFile.isEmpty()) {
+            try {
+                new BulkAccounts(ledger, credentials, 1).dump(Path.of(exportFile));
+            } catch (IOException e) {
+                ServerLog.log(ServerLog.Level.ERROR, null, "IOException while exporting to " + exportFile + ":\n" + e);
+            }
+        }
 
         /// trying to launch the server
 
+        // "--mode=nio" serves every client from a few selector event loops,
+        // "--mode=virtual" runs every session on a virtual thread
+        switch (config.get("mode", "thread").toLowerCase()) {
+            case "nio":
+                serveSelector();
+                break;
+            case "virtual":
+                serveBlocking(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().factory()));
+                break;
+            default:
+                serveBlocking(Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory()));
+                break;
+        }
+    }
+
+    /**
+     * this function accepts clients and runs each session on a thread of its own
+     *
+     * @param executor starts a new thread for every session it's given
+     */
+    protected void serveBlocking(ExecutorService executor) {
+        int port = config.getInt("port", SERVER_PORT);
+        int backlog = config.getInt("backlog", ACCEPT_BACKLOG);
+
         try {
-            serverSocket = new ServerSocket(SERVER_PORT);
-            threads = new ATMThread[MAX_CLIENTS];
+            serverSocket = new ServerSocket(port, backlog);
 
             // setup
-            System.out.println("Listening to PORT " + SERVER_PORT);
-            System.out
-                    .println("Waiting for clients to connect: up-to " + MAX_CLIENTS + " clients in total are allowed.");
+            ServerLog.log(ServerLog.Level.INFO, null, "Listening to PORT " + port);
+            ServerLog.log(ServerLog.Level.INFO, null, "Waiting for clients to connect: up-to " + registry.limit()
+                    + " clients at a time are allowed.");
 
-            // keep listening to the SERVER_PORT, create a thread for each Client connection
+            // keep listening to the port, create a thread for each Client connection
             while (true) {
-                String threadName = "Client #" + (numClients + 1);
-
                 clientSocket = serverSocket.accept();
-                System.out.println(threadName + " connected.");
-                threads[numClients] = new ATMThread(threadName, clientSocket, users, balances);
-                threads[numClients].start();
                 numClients++;
+                String threadName = "Client #" + numClients;
+
+                ATMThread session = new ATMThread(threadName, clientSocket, ledger, credentials, lifecycle);
+                if (!registry.admit(threadName, session)) {
+                    refuse(threadName, clientSocket);
+                    continue;
+                }
+                ServerMetrics.SERVER.connected();
+
+                ServerLog.log(ServerLog.Level.INFO, null, "{} connected.", threadName);
+                executor.execute(() -> {
+                    // giving the slot back however the session ends
+                    try {
+                        session.run();
+                    } finally {
+                        registry.release(threadName);
+                    }
+                });
             }
         } catch (IOException e) {
-            // cannot create socket, aborting
-            System.err.println(
-                    "IOException while creating server connection. Total connections used to date:" + numClients);
+            if (lifecycle.draining()) {
+                ServerLog.log(ServerLog.Level.INFO, null, "Stopped accepting clients.");
+            } else {
+                // cannot create socket, aborting
+                ServerLog.log(ServerLog.Level.ERROR, null,
+                        "IOException while creating server connection. Total connections used to date:" + numClients);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * this function turns away a client the server has no room for, the client
+     * gets a "503 Busy" straight away instead of waiting on a full server
+     *
+     * @param name the name the client would have had
+     * @param socket the client's connection
+     */
+    protected void refuse(String name, Socket socket) {
+        ServerMetrics.SERVER.refused();
+        ServerLog.log(ServerLog.Level.WARN, null, "{} refused, {} clients connected.", name, registry.active());
+        try (socket) {
+            socket.getOutputStream().write((ConnectionRegistry.BUSY + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // the client is being dropped anyway
+        }
+    }
+
+    /**
+     * this function accepts clients and spreads them over a few event loops, so
+     * an idle connection costs a registered channel instead of a thread
+     */
+    protected void serveSelector() {
+        int port = config.getInt("port", SERVER_PORT);
+        int backlog = config.getInt("backlog", ACCEPT_BACKLOG);
+        int loops = config.getInt("event-loops", Runtime.getRuntime().availableProcessors());
+        workers = Executors.newVirtualThreadPerTaskExecutor();
+
+        try {
+            acceptor = ServerSocketChannel.open();
+            acceptor.bind(new InetSocketAddress(port), backlog);
+
+            EventLoop[] started = new EventLoop[loops];
+            for (int i = 0; i < loops; i++) {
+                started[i] = new EventLoop("EventLoop #" + (i + 1), this);
+                started[i].start();
+            }
+            eventLoops = started;
+
+            ServerLog.log(ServerLog.Level.INFO, null, "Listening to PORT " + port);
+            ServerLog.log(ServerLog.Level.INFO, null, "Serving up-to " + registry.limit()
+                    + " clients at a time from " + loops + " event loops.");
+
+            // the accepting thread only hands connections over, round robin
+            while (true) {
+                SocketChannel channel = acceptor.accept();
+                numClients++;
+                String connectionName = "Client #" + numClients;
+
+                lifecycle.configure(channel);
+                NioConnection connection = new NioConnection(connectionName, channel, this);
+                if (!registry.admit(connectionName, connection.session)) {
+                    refuse(connectionName, channel.socket());
+                    continue;
+                }
+                ServerMetrics.SERVER.connected();
+
+                ServerLog.log(ServerLog.Level.INFO, null, "{} connected.", connectionName);
+                eventLoops[numClients % loops].register(connection);
+            }
+        } catch (IOException e) {
+            if (lifecycle.draining()) {
+                ServerLog.log(ServerLog.Level.INFO, null, "Stopped accepting clients.");
+            } else {
+                ServerLog.log(ServerLog.Level.ERROR, null,
+                        "IOException while creating server connection. Total connections used to date:" + numClients);
+            }
+        }
+    }
+
+    /**
+     * this function stops the server gracefully: no client is accepted anymore,
+     * every session answers the commands it already received and is closed, the
+     * server waits "--drain-s" seconds at most for them, then takes a last
+     * snapshot and closes the write-ahead log and the server log
+     */
+    protected void shutdown() {
+        lifecycle.startDraining();
+        ServerLog.log(ServerLog.Level.INFO, null, "Shutting down, draining {} clients.", registry.active());
+
+        // unblocking the accepting thread
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (acceptor != null) {
+                acceptor.close();
+            }
+        } catch (IOException e) {
+            // the server is going away anyway
+        }
+
+        for (ATMThread session : registry.sessions()) {
+            session.drain();
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.wakeup();
+        }
+
+        long deadline = System.currentTimeMillis() + lifecycle.drainMillis();
+        while (registry.active() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (registry.active() > 0) {
+            ServerLog.log(ServerLog.Level.WARN, null, "{} clients still connected, closing anyway.", registry.active());
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (replica != null) {
+            replica.close();
+        }
+        if (replicationSource != null) {
+            replicationSource.close();
+        }
+
+        // a last snapshot, so the next start replays nothing, then the records
+        // still batched are forced before the file is closed
+        try {
+            if (snapshotter != null) {
+                snapshotter.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            ServerLog.log(ServerLog.Level.ERROR, null, "Error writing the last snapshot: " + e);
+        }
+        try {
+            if (ledger.log != null) {
+                ledger.log.close();
+            }
+        } catch (IOException e) {
+            ServerLog.log(ServerLog.Level.ERROR, null, "Error closing the write-ahead log: " + e);
+        }
+
+        // writing what's still in the ring of the log
+        ServerLog log = ServerLog.current;
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                // nothing left to report it to
+            }
         }
     }
 
     public static void main(String[] args) {
         // main program loop
-        new ATMServer();
+        new ATMServer(new ServerConfig(args));
     }
 }
@@ -1,19 +1,59 @@
 package org.example.server;
 
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.util.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-public class ATMThread extends Thread
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.example.protocol.BinaryProtocol;
+
+/**
+ * one client session of the line protocol, the session blocks while it waits
+ * for the client so the server runs it on a thread of its own, either a platform
+ * thread or a virtual thread depending on the server mode
+ *
+ * a client may switch the session to the binary frames of BinaryProtocol with
+ * the BIN command, both framings run the same handlers and only differ in how
+ * the commands are parsed and the replies are encoded
+ */
+public class ATMThread implements Runnable
 {
     // server vars
     protected String id;
     protected Socket socket;
     protected PrintWriter out = null;
-    protected BufferedReader in = null;
+    protected BufferedInputStream in = null;
+
+    // the line being read from the blocking socket, and the parser running over
+    // it, both reused from one command to the next
+    protected byte[] line = new byte[128];
+    protected CommandParser parser = new CommandParser();
+
+    // the text replies are formatted here before they're written
+    protected char[] replyChars = new char[64];
+
+    // the status of the last reply, recorded with the command in the metrics
+    protected int status = 0;
+
+    // set once the client switched to binary frames
+    protected boolean binary = false;
+    protected OutputStream binaryOut = null;
+    protected DataInputStream binaryIn = null;
+
+    // reused for every binary request and response
+    protected ByteBuffer request = null;
+    protected ByteBuffer response = null;
+
+    // reused by every BATCH, allocated by the first one
+    protected long[] batchAmounts = null;
+    protected long[] batchResults = null;
 
     // vars to track the user trying to log in
     protected String attempted_user = null;
@@ -23,10 +63,29 @@ public class ATMThread extends Thread
     protected boolean auth = false;
     protected String user = null;
 
-    // collection of users, storing their <username, password> but their password is
-    // encrypted
-    protected HashMap<String, byte[]> users;
-    protected HashMap<String, Integer> balances;
+    // the ledger slot of the authenticated user, looked up once at login
+    protected int slot = Ledger.NO_ACCOUNT;
+
+    // the accounts of every user, storing their encrypted password and balance
+    protected Ledger ledger;
+
+    // hashes and checks passwords away from the session's thread
+    protected CredentialService credentials;
+
+    // when a blocking session times out, null for sessions driven by an event
+    // loop, the loop enforces the timeouts of those
+    protected SessionLifecycle lifecycle = null;
+    protected final long openedAt = System.nanoTime();
+
+    // the logical sessions multiplexed over the connection, by their id, made by
+    // the first tagged line
+    protected HashMap<Integer, ATMThread> multiplexed = null;
+
+    // "@<id> ", written before every reply of a logical session, null for the
+    // session of the connection itself
+    protected char[] tag = null;
+    // set once a logical session replied to its current line
+    protected boolean replied = false;
 
     /// list of possible commands
 
@@ -37,37 +96,145 @@ public class ATMThread extends Thread
     protected final static String WITH = "WITH"; // withdraw command
     protected final static String VIEW = "VIEW"; // view balance command
     protected final static String LOGOUT = "LOGOUT"; // logout command
+    protected final static String BATCH = "BATCH"; // several deposits/withdrawals applied atomically
+    protected final static String XFER = "XFER"; // moves money to another account
+    protected final static String BIN = BinaryProtocol.SWITCH; // switch to binary frames
+    protected final static String STATS = "STATS"; // the server's metrics, for the admin
+    protected final static String ACCOUNTS = "ACCOUNTS"; // a page of usernames, for the admin
+    protected final static String EXPORT = "EXPORT"; // closes an account so it can move, for the admin
+    protected final static String IMPORT = "IMPORT"; // opens an account that moved in, for the admin
+    protected final static String ROLE = "ROLE"; // primary or replica, and how far the replica is
+    protected final static String LOAD = "LOAD"; // imports the accounts of a file, for the admin
+    protected final static String DUMP = "DUMP"; // exports the accounts to a file, for the admin
+
+    // the most operations a single BATCH may carry
+    public final static int MAX_BATCH = 1000;
+
+    // the most usernames a single ACCOUNTS lists
+    public final static int MAX_ACCOUNTS = 1000;
+
+    // the most logical sessions a connection may carry, and the highest id of one
+    public final static int MAX_MULTIPLEXED = 1024;
+    public final static int MAX_SESSION_ID = 0xFFFF;
 
-    // storing the list of recognized commands
-    protected final static String[] COMMANDS =
-            {
-            PWD,
-            UID,
-            NEW,
-            DEP,
-            WITH,
-            VIEW,
-            LOGOUT
-    };
+    /**
+     * runs a command from the arguments of its line, the parser is on the command
+     */
+    protected interface LineHandler
+    {
+        boolean run(ATMThread session, CommandParser arguments);
+    }
 
-    // constructor
-    public ATMThread(String _id, Socket _socket, HashMap<String, byte[]> _users,
-                     HashMap<String, Integer> _balances)
+    /**
+     * runs a command from the payload of its binary frame
+     */
+    protected interface FrameHandler
+    {
+        boolean run(ATMThread session, ByteBuffer frame);
+    }
+
+    /**
+     * an entry of the dispatch table
+     */
+    protected static final class Command
+    {
+        // true if the command needs a logged in user
+        final boolean authorized;
+        final LineHandler line;
+        // null for the commands that only exist as a line
+        final FrameHandler frame;
+
+        Command(boolean _authorized, LineHandler _line, FrameHandler _frame)
+        {
+            this.authorized = _authorized;
+            this.line = _line;
+            this.frame = _frame;
+        }
+    }
+
+    // the handlers of every command, indexed by opcode, null for UNKNOWN
+    protected final static Command[] DISPATCH = new Command[CommandParser.OPCODES];
+
+    static
     {
-        // calling the Thread super class
-        super();
+        DISPATCH[BinaryProtocol.UID] = new Command(false,
+                (session, arguments) -> session.processUID(arguments.rest()),
+                (session, frame) -> session.processUID(BinaryProtocol.getString(frame)));
+        DISPATCH[BinaryProtocol.PWD] = new Command(false,
+                (session, arguments) -> session.processPWD(arguments.rest()),
+                (session, frame) -> session.processPWD(BinaryProtocol.getString(frame)));
+        DISPATCH[BinaryProtocol.NEW] = new Command(false,
+                (session, arguments) -> session.processNEW(arguments),
+                (session, frame) -> session.createAccount(BinaryProtocol.getString(frame), BinaryProtocol.getString(frame)));
+        DISPATCH[BinaryProtocol.LOGOUT] = new Command(false,
+                (session, arguments) -> session.logout(),
+                (session, frame) -> session.logout());
+        DISPATCH[BinaryProtocol.RESUME] = new Command(false,
+                (session, arguments) -> session.processRESUME(arguments.next() ? arguments.token() : null),
+                (session, frame) -> session.processRESUME(BinaryProtocol.getString(frame)));
+        DISPATCH[BinaryProtocol.PING] = new Command(false,
+                (session, arguments) -> session.processPING(),
+                (session, frame) -> session.processPING());
+        DISPATCH[CommandParser.BIN] = new Command(false,
+                (session, arguments) -> session.processBIN(),
+                null);
+        DISPATCH[CommandParser.STATS] = new Command(true,
+                (session, arguments) -> session.processSTATS(),
+                null);
+        DISPATCH[CommandParser.ACCOUNTS] = new Command(true,
+                (session, arguments) -> session.processACCOUNTS(arguments),
+                null);
+        DISPATCH[CommandParser.EXPORT] = new Command(true,
+                (session, arguments) -> session.processEXPORT(arguments),
+                null);
+        DISPATCH[CommandParser.IMPORT] = new Command(true,
+                (session, arguments) -> session.processIMPORT(arguments),
+                null);
+        DISPATCH[CommandParser.ROLE] = new Command(false,
+                (session, arguments) -> session.processROLE(),
+                null);
+        DISPATCH[CommandParser.LOAD] = new Command(true,
+                (session, arguments) -> session.processLOAD(arguments.rest()),
+                null);
+        DISPATCH[CommandParser.DUMP] = new Command(true,
+                (session, arguments) -> session.processDUMP(arguments.rest()),
+                null);
+        DISPATCH[BinaryProtocol.DEP] = new Command(true,
+                (session, arguments) -> session.processDEP(arguments),
+                (session, frame) -> session.deposit(frame.getLong()));
+        DISPATCH[BinaryProtocol.WITH] = new Command(true,
+                (session, arguments) -> session.processWITH(arguments),
+                (session, frame) -> session.withdraw(frame.getLong()));
+        DISPATCH[BinaryProtocol.VIEW] = new Command(true,
+                (session, arguments) -> session.processVIEW(),
+                (session, frame) -> session.processVIEW());
+        DISPATCH[BinaryProtocol.XFER] = new Command(true,
+                (session, arguments) -> session.processXFER(arguments),
+                (session, frame) -> session.transfer(BinaryProtocol.getString(frame), frame.getLong()));
+        DISPATCH[BinaryProtocol.BATCH] = new Command(true,
+                (session, arguments) -> session.processBATCH(arguments),
+                (session, frame) -> session.processBATCH(frame));
+    }
 
+    // constructor
+    public ATMThread(String _id, Socket _socket, Ledger _ledger, CredentialService _credentials,
+            SessionLifecycle _lifecycle)
+    {
         // copying over the arguments into the class
         this.id = _id;
         this.socket = _socket;
-        this.users = _users;
-        this.balances = _balances;
+        this.ledger = _ledger;
+        this.credentials = _credentials;
+        this.lifecycle = _lifecycle;
+        lifecycle.configure(socket);
 
         // establishing a connection to the server
         try
         {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // no autoflush, the responses to pipelined commands go out in one write,
+            // the bytes are counted on their way through
+            out = new PrintWriter(ServerMetrics.SERVER.count(socket.getOutputStream()), false);
+            in = new BufferedInputStream(ServerMetrics.SERVER.count(socket.getInputStream()));
         }
         catch (IOException e)
         {
@@ -75,39 +242,94 @@ public class ATMThread extends Thread
         }
     }
 
+    /**
+     * constructor for sessions that don't own a blocking socket, e.g. connections
+     * driven by the selector event loop, the responses are written to _responses
+     *
+     * @param _id the name of the session used when logging
+     * @param _responses where the responses to the client are written
+     * @param _ledger the shared accounts
+     * @param _credentials hashes and checks the passwords
+     */
+    public ATMThread(String _id, ResponseBuffer _responses, Ledger _ledger, CredentialService _credentials)
+    {
+        this.id = _id;
+        this.out = new PrintWriter(_responses);
+        this.binaryOut = _responses.asOutputStream();
+        this.ledger = _ledger;
+        this.credentials = _credentials;
+    }
+
+    /**
+     * constructor for a logical session multiplexed over the connection of
+     * another session, it writes its replies to that connection, each of them
+     * tagged with its id
+     *
+     * @param _connection the session of the connection
+     * @param _session the id of the logical session
+     */
+    protected ATMThread(ATMThread _connection, int _session)
+    {
+        this.id = _connection.id + " @" + _session;
+        this.out = _connection.out;
+        this.ledger = _connection.ledger;
+        this.credentials = _connection.credentials;
+        this.tag = ("@" + _session + " ").toCharArray();
+    }
+
     public void run()
     {
-        // initialize interaction
-        out.println("Welcome to the ATM Machine");
-        out.println("100 Ready");
+        try
+        {
+            // initialize interaction
+            greet();
 
-        // main loop
-        while (processCommand())
-            ;
+            // main loop
+            while (processCommand())
+                ;
 
-        /// closing the thread
+            /// closing the thread
 
-        // printing a closing message
-        if (user != null)
-        {
-            this.log(user + " disconnected");
-        }
-        else
-        {
-            this.log("Client disconnected");
-        }
+            // writing the responses still buffered, e.g. the one that ended the session
+            flush();
 
-        // closing the socket
-        try
+            // printing a closing message
+            if (user != null)
+            {
+                this.log(user + " disconnected");
+            }
+            else
+            {
+                this.log("Client disconnected");
+            }
+        }
+        catch (RuntimeException e)
         {
-            socket.close();
+            this.err("Closing the session after an unexpected error: " + e);
         }
-        catch (IOException e)
+        finally
         {
-            e.printStackTrace();
+            // closing the socket, whatever ended the session
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                this.warn("Error closing the socket: {}", e);
+            }
         }
     }
 
+    /**
+     * this function sends the greeting that starts every session
+     */
+    protected void greet()
+    {
+        out.println("Welcome to the ATM Machine");
+        out.println("100 Ready");
+    }
+
     /**
      * this function parses a command from the client
      *
@@ -115,13 +337,32 @@ public class ATMThread extends Thread
      */
     protected boolean processCommand()
     {
-        // the incoming command from the client
-        String message;
+        if (binary)
+        {
+            return processFrame();
+        }
+
+        // the length of the incoming command from the client
+        int length;
 
         // trying to read a message from the client
         try
         {
-            message = in.readLine();
+            // the client is waiting once every pipelined command has been read,
+            // so that's when the responses are written, together
+            if (in.available() == 0)
+            {
+                flush();
+            }
+            if (!armReadTimeout())
+            {
+                return false;
+            }
+            length = readLine();
+        }
+        catch (SocketTimeoutException e)
+        {
+            return timedOut();
         }
         catch (IOException e)
         {
@@ -130,465 +371,1693 @@ public class ATMThread extends Thread
             return false;
         }
 
-        // if no command was passed to the server, ignore and continue
-        if (message == null)
-        {
-            return true;
-        }
-
-        // parsing the message received from client, format: "CMD argument(s)"
-        StringTokenizer st = new StringTokenizer(message);
-        String command = st.nextToken();
-        String args = null;
-        if (st.hasMoreTokens())
+        // the client closed the connection
+        if (length < 0)
         {
-            args = message.substring(command.length() + 1);
+            return false;
         }
 
-        // process command using the cmd and the arguments parsed
-        return processCommand(command, args);
+        return processLine(line, 0, length);
     }
 
     /**
-     * Method processes the known commands:
-     * - UID: receives the username
-     * - PWD: checks if sent password matches the user
-     * - LOGOUT: stops the thread
+     * this function bounds the wait for the next command by the idle timeout and
+     * what's left of the session's lifetime
      *
-     * @return true if the command was valid, false otherwise
+     * @return false if the session is over its lifetime
+     * @throws IOException if the timeout can't be set
      */
-    protected boolean processCommand(String command, String arguments)
+    protected boolean armReadTimeout() throws IOException
     {
-        // uppercasing the command to feed it into a switch statement
-        command = command.toUpperCase();
-
-        // logging the command that was passed to the server
-        this.log("Caught command " + command + " from the user");
-
-        // rejecting any command the server doesn't recognize
-        if (!isValidCommand(command))
+        int timeout = lifecycle.readTimeoutMillis(openedAt, System.nanoTime());
+        if (timeout < 0)
         {
-            out.println("404 Unrecognized Command: " + command);
-            return true;
-        }
-
-        // droppping into a switch statement
-        switch (command.toUpperCase())
-        {
-            case LOGOUT:
-                // grabbing the username from the login exchange
-                return logout();
-            case UID:
-                // grabbing the username from the login exchange
-                return processUID(arguments);
-            case PWD:
-                // grabbing the password from the login exchange
-                return processPWD(arguments);
-            case NEW:
-                // creating a new user
-                return processNEW(arguments);
-            case WITH:
-                // withdrawing money from the user's account
-                return processWITH(arguments);
-            default:
-                // if the user gets here, break and go to the auth section
-                break;
+            this.log("Session reached its maximum lifetime");
+            return false;
         }
+        socket.setSoTimeout(timeout);
+        return true;
+    }
 
-        // if the user is authenticated, allow for more commands
-        if (auth)
+    /**
+     * this function ends a session whose read timed out
+     *
+     * @return false, the session is over
+     */
+    protected boolean timedOut()
+    {
+        if (lifecycle.readTimeoutMillis(openedAt, System.nanoTime()) < 0)
         {
-            this.log("Allowing authorized commands for user: " + user);
-
-            // droppping into a switch statement
-            switch (command.toUpperCase())
-            {
-                case VIEW:
-                    // grabbing the password from the login exchange
-                    return processVIEW();
-                case DEP:
-                    // creating a new user
-                    return processDEP(arguments);
-                default:
-                    // the user should never get here
-                    break;
-            }
+            this.log("Session reached its maximum lifetime");
         }
         else
         {
-            out.println("401 Unauthenticated user");
-            this.log("User tried to send a command without authorization");
+            this.log("Session was idle for too long");
         }
-
-        // base case
-        return true;
+        return false;
     }
 
     /**
-     * this function processes the UID command which is the username
-     *
-     * @param argument the argument to process
-     * @return true if the command was valid, false otherwise
+     * this function stops a blocking session from reading further commands, the
+     * commands it already received are answered and the session ends, it may be
+     * called from any thread
      */
-    protected boolean processUID(String argument)
+    public void drain()
     {
-        // saving the username into the class variable
-        attempted_user = argument;
-        return true;
+        if (socket == null)
+        {
+            return;
+        }
+        this.log("Server is shutting down");
+        try
+        {
+            socket.shutdownInput();
+        }
+        catch (IOException e)
+        {
+            // the connection is already gone
+        }
     }
 
     /**
-     * this function processes the PWD command which is the password
+     * this function reads the next line from the socket into the line buffer
      *
-     * @param argument the argument to process
-     * @return true if the command was valid, false otherwise
+     * @return the length of the line without its terminator, -1 at the end of the stream
+     * @throws IOException if reading the socket fails or the line is too long
      */
-    protected boolean processPWD(String argument)
+    protected int readLine() throws IOException
     {
-        // saving the password into the class variable
-        attempted_pass = argument;
-
-        // if the user has already entered a username, attempt to log them in
-        if (attempted_user != null)
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n')
         {
-            return login();
+            if (b < 0)
+            {
+                // the last line may come without its terminator
+                return length > 0 ? length : -1;
+            }
+            if (length == line.length)
+            {
+                if (length >= NioConnection.MAX_LINE_LENGTH)
+                {
+                    throw new IOException("Line longer than " + NioConnection.MAX_LINE_LENGTH + " bytes");
+                }
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = (byte) b;
         }
-        else
+
+        // dropping the carriage return of clients that send "\r\n"
+        if (length > 0 && line[length - 1] == '\r')
         {
-            // no username, break
-            out.println("Error: No username entered before password.");
-            return true;
+            length--;
         }
+        return length;
     }
 
     /**
-     * this function processes the NEW command which is to create a new account
+     * this function parses a single line of the protocol and runs the command
      *
-     * @param argument the argument to process
+     * @param bytes the bytes holding the line
+     * @param offset the first byte of the line
+     * @param length the length of the line, without its terminator
      * @return true if the command was valid, false otherwise
      */
-    protected boolean processNEW(String argument)
+    protected boolean processLine(byte[] bytes, int offset, int length)
     {
-        // splitting up the argument
-        StringTokenizer st = new StringTokenizer(argument);
-        String username = st.nextToken();
-        String password = st.nextToken();
+        // a line tagged "@<id>" belongs to a logical session of the connection
+        if (tag == null && length > 0 && bytes[offset] == '@')
+        {
+            return processTagged(bytes, offset, length);
+        }
 
-        // check if the user already exists
-        if (users.containsKey(username))
+        // blank lines carry no command, ignore and continue
+        if (!parser.reset(bytes, offset, length).next())
         {
-            out.println("400 Username already exists");
             return true;
         }
 
-        // encrypting the password
-        byte[] encryptedPassword = encryptPassword(password);
-
-        // saving the user's credentials
-        users.put(username, encryptedPassword);
-        balances.put(username, 0);
-
-        // confirming success
-        out.println("201 Created");
-        return true;
+        // process the command, the parser is left on it for the arguments
+        try
+        {
+            return processCommand(parser);
+        }
+        catch (UncheckedIOException e)
+        {
+            // the change couldn't be made durable, so it must not be acknowledged
+            this.err("Error writing to the write-ahead log: " + e.getCause());
+            reply(500, "Internal server error");
+            return false;
+        }
     }
 
     /**
-     * this function processes the WITH command which is to withdraw money from the user's account
+     * this function runs the command of a line tagged "@<id> <command>" in the
+     * logical session with that id, which is made by its first line, so a
+     * gateway can carry many separately logged in terminals over one connection
      *
-     * @param argument the argument to process
-     * @return true if the command was valid, false otherwise
+     * the replies carry the same tag, every tagged line gets exactly one, so a
+     * client can match the replies of each session in order, a tag without a
+     * command gets "400 Bad request", a logical session ends with its LOGOUT or
+     * a failed login, the connection and its other sessions carry on
+     *
+     * @param bytes the bytes holding the line
+     * @param offset the first byte of the line, the '@'
+     * @param length the length of the line, without its terminator
+     * @return true, a logical session never ends the connection
      */
-    protected boolean processWITH(String argument)
+    protected boolean processTagged(byte[] bytes, int offset, int length)
     {
-        // Scenario 1: If the argument is null or empty, respond with the user's balance
-        if (argument == null || argument.isEmpty())
+        int end = offset + length;
+        int at = offset + 1;
+        int session = 0;
+        while (at < end && at - offset <= 5 && bytes[at] >= '0' && bytes[at] <= '9')
         {
-            return processVIEW("100");
+            session = session * 10 + bytes[at++] - '0';
         }
-
-        // Scenario 2: If the argument is "BREAK", log and return true from the function
-        if (argument.equalsIgnoreCase("BREAK"))
+        if (at == offset + 1 || at == end || bytes[at] != ' ' || session > MAX_SESSION_ID)
         {
-            this.log(WITH + " No further requests from the user.");
+            reply(400, "Bad session tag");
             return true;
         }
 
-        // Scenario 3: If the argument is a valid withdrawal amount
-        try
+        if (multiplexed == null)
         {
-            int withdrawalAmount = Integer.parseInt(argument);
-
-            // Check if the user has a balance
-            Integer balance = balances.get(user);
-            if (balance == null)
+            multiplexed = new HashMap<>();
+        }
+        ATMThread logical = multiplexed.get(session);
+        if (logical == null)
+        {
+            if (multiplexed.size() >= MAX_MULTIPLEXED)
             {
-                // Respond with 500 Internal server error if the user doesn't have a balance
-                this.err("User " + user + " has no balance.");
-                out.println("500 Internal server error");
-                return false;
+                this.warn("Turned away logical session {}, the connection carries too many", session);
+                new ATMThread(this, session).reply(503, "Too many sessions");
+                return true;
             }
+            logical = new ATMThread(this, session);
+            multiplexed.put(session, logical);
+        }
 
-            // Check if the amount is greater than the balance
-            if (withdrawalAmount > balance)
+        logical.replied = false;
+        boolean open = logical.processLine(bytes, at + 1, end - at - 1);
+        if (!logical.replied)
+        {
+            // every command replies, a blank line is the only one that doesn't
+            if (parser.reset(bytes, at + 1, end - at - 1).next())
             {
-                // Respond with 400 Bad request if the amount is greater than the balance
-                this.err("User " + user + " tried to withdraw more than their balance.");
-                out.println("400 Bad request");
-                return false;
+                this.err("Logical session " + session + " got no reply to a command");
+                logical.reply(500, "Internal server error");
+            }
+            else
+            {
+                logical.reply(400, "Bad request");
             }
-
-            // Deduct the withdrawal amount from the user's balance
-            balance -= withdrawalAmount;
-            balances.put(user, balance);
-
-            // Respond with "200 <user's new balance>"
-            out.println("200 " + balance);
-
-            // Log the transaction
-            this.log("Withdrawn " + withdrawalAmount + " from the balance of " + user);
-
-            // Return true to indicate successful processing
-            return true;
         }
-        catch (NumberFormatException e)
+        if (!open)
         {
-            // Respond with 400 Bad request if the argument is not a number
-            this.err("Invalid withdrawal amount provided by user " + user);
-            out.println("400 Bad request");
-            return false;
+            multiplexed.remove(session);
+            this.debug("Logical session {} ended", session);
         }
+        return true;
     }
 
     /**
-     * this function processes the VIEW command which is to view the user's account balance
+     * this function reads a binary frame from the socket and runs the command
      *
      * @return true if the command was valid, false otherwise
      */
-    protected boolean processVIEW()
+    protected boolean processFrame()
     {
-        // Get the user's balance
-        Integer balance = balances.get(user);
-
-        // Check if the user has a balance
-        if (balance == null)
+        int length;
+        try
         {
-            // Respond with 500 Internal server error if the user doesn't have a balance
-            this.err("User " + user + " has no balance.");
-            out.println("500 Internal server error");
+            // like the text protocol, the responses are written once the client waits
+            if (binaryIn.available() == 0)
+            {
+                flush();
+            }
+            if (!armReadTimeout())
+            {
+                return false;
+            }
+            length = binaryIn.readUnsignedShort();
+            binaryIn.readFully(request.array(), 0, length);
+        }
+        catch (EOFException e)
+        {
+            // the client closed the connection
             return false;
         }
-
-        // Respond with "200 <user's balance>"
-        out.println("200 " + balance);
-
-        // Log the balance request
-        this.log("Viewed balance: " + balance + " for user " + user);
-
-        return true;
-    }
-
-    /**
-     * this function processes the VIEW command which is to view the user's account balance
-     *
-     * @param argument the argument to process
-     * @return true if the command was valid, false otherwise
-     */
-    protected boolean processVIEW(String argument)
-    {
-        // Get the user's balance
-        Integer balance = balances.get(user);
-
-        // Check if the user has a balance
-        if (balance == null)
+        catch (SocketTimeoutException e)
         {
-            // Respond with 500 Internal server error if the user doesn't have a balance
-            this.err("User " + user + " has no balance.");
-            out.println("500 Internal server error");
+            return timedOut();
+        }
+        catch (IOException e)
+        {
+            this.err("Error reading command from socket.");
             return false;
         }
 
-        // Respond with "200 <user's balance>"
-        out.println("200 " + balance);
-
-        // Log the balance request
-        this.log("Viewed balance: " + balance + " for user " + user);
-
-        return true;
+        request.clear().limit(length);
+        return processFrame(request);
     }
 
     /**
-     * this function processes the DEP command which is to deposit money into the user's account
+     * this function runs the command of a single binary frame
      *
-     * @param argument the argument to process
+     * @param frame the opcode and payload of the frame, without its length
      * @return true if the command was valid, false otherwise
      */
-    protected boolean processDEP(String argument)
+    protected boolean processFrame(ByteBuffer frame)
     {
-        // Scenario 1: If the argument is null or empty, respond with the user's balance
-        if (argument == null || argument.isEmpty())
-        {
-            return processVIEW("100");
-        }
-
-        // Scenario 2: If the argument is "BREAK", log and return true from the function
-        if (argument.equalsIgnoreCase("BREAK"))
-        {
-            this.log(DEP + " No further requests from the user.");
-            return true;
-        }
-
-        // Scenario 3: If the argument is a valid deposit amount
+        long started = System.nanoTime();
+        byte opcode = CommandParser.UNKNOWN;
+        status = 0;
         try
         {
-            int depositAmount = Integer.parseInt(argument);
+            opcode = frame.get();
+            this.debug("Caught binary command {} from the user", (Object) opcode);
 
-            // Check if the user has a balance
-            Integer balance = balances.get(user);
-            if (balance == null)
+            Command command = opcode > 0 && opcode < DISPATCH.length ? DISPATCH[opcode] : null;
+            if (command == null || command.frame == null)
             {
-                // Respond with 500 Internal server error if the user doesn't have a balance
-                this.err("User " + user + " has no balance.");
-                out.println("500 Internal server error");
-                return false;
+                reply(404, "Unrecognized Command: " + opcode);
+                return true;
             }
 
-            // Add the deposit amount to the user's balance
-            balance += depositAmount;
-            balances.put(user, balance);
-
-            // Respond with "200 <user's new balance>"
-            out.println("200 " + balance);
-
-            // Log the transaction
-            this.log("Deposited " + depositAmount + " into the balance of " + user);
-
-            // Return true to indicate successful processing
+            if (command.authorized && !authorized())
+            {
+                return true;
+            }
+            return command.frame.run(this, frame);
+        }
+        catch (BufferUnderflowException e)
+        {
+            // the frame is shorter than its command needs
+            reply(400, "Bad request");
             return true;
         }
-        catch (NumberFormatException e)
+        catch (UncheckedIOException e)
         {
-            // Respond with 400 Bad request if the argument is not a number
-            this.err("Invalid deposit amount provided by user " + user);
-            out.println("400 Bad request");
+            // the change couldn't be made durable, so it must not be acknowledged
+            this.err("Error writing to the write-ahead log: " + e.getCause());
+            reply(500, "Internal server error");
             return false;
         }
+        finally
+        {
+            ServerMetrics.SERVER.command(opcode, status, System.nanoTime() - started);
+        }
     }
 
     /**
-     * this function handles the user login attempt
+     * Method processes the known commands through the dispatch table:
+     * - UID: receives the username
+     * - PWD: checks if sent password matches the user
+     * - LOGOUT: stops the thread
+     * - DEP, WITH, VIEW, BATCH, XFER: once the user is logged in
+     * - STATS, ACCOUNTS, EXPORT, IMPORT, LOAD, DUMP: once the admin is logged in
+     * - ROLE: whether the server is a primary or a replica
+     *
+     * @param arguments the parser, on the command token of the line
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processCommand(CommandParser arguments)
+    {
+        long started = System.nanoTime();
+        byte opcode = arguments.opcode();
+        status = 0;
+        try
+        {
+            // rejecting any command the server doesn't recognize
+            if (opcode == CommandParser.UNKNOWN)
+            {
+                if (ServerLog.enabled(ServerLog.Level.DEBUG))
+                {
+                    this.debug("Caught command {} from the user", arguments.token());
+                }
+                reply(404, "Unrecognized Command: " + arguments.token().toUpperCase());
+                return true;
+            }
+
+            // logging the command that was passed to the server
+            this.debug("Caught command {} from the user", CommandParser.NAMES[opcode]);
+
+            Command command = DISPATCH[opcode];
+            if (command.authorized && !authorized())
+            {
+                return true;
+            }
+            return command.line.run(this, arguments);
+        }
+        finally
+        {
+            // the service time of the command, its reply included
+            ServerMetrics.SERVER.command(opcode, status, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * this function checks that the user is logged in before an authorized
+     * command, and replies 401 if they aren't
+     *
+     * @return true if the user is logged in
+     */
+    protected boolean authorized()
+    {
+        if (!auth)
+        {
+            reply(401, "Unauthenticated user");
+            this.log("User tried to send a command without authorization");
+            return false;
+        }
+
+        this.debug("Allowing authorized commands for user: {}", user);
+        return true;
+    }
+
+    /**
+     * this function processes the UID command which is the username
+     *
+     * @param argument the argument to process
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processUID(String argument)
+    {
+        // saving the username into the class variable
+        attempted_user = argument;
+        reply(100, "Username received");
+        return true;
+    }
+
+    /**
+     * this function processes the PWD command which is the password
+     *
+     * @param argument the argument to process
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processPWD(String argument)
+    {
+        // saving the password into the class variable
+        attempted_pass = argument;
+
+        // if the user has already entered a username, attempt to log them in
+        if (attempted_user != null)
+        {
+            return login();
+        }
+        else
+        {
+            // no username, break
+            reply(400, "No username entered before password");
+            return true;
+        }
+    }
+
+    /**
+     * this function processes the NEW command which is to create a new account
+     *
+     * @param arguments the parser, on the command token of the line
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processNEW(CommandParser arguments)
+    {
+        // splitting up the argument
+        if (!arguments.next())
+        {
+            reply(400, "Bad request");
+            return true;
+        }
+        String username = arguments.token();
+        if (!arguments.next())
+        {
+            reply(400, "Bad request");
+            return true;
+        }
+        String password = arguments.token();
+
+        return createAccount(username, password);
+    }
+
+    /**
+     * this function creates a new account with a zero balance
+     *
+     * @param username the username of the account
+     * @param password the password of the account
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean createAccount(String username, String password)
+    {
+        // a binary NEW carries its strings as they are, they must be tokens the
+        // text NEW could have sent
+        if (!isToken(username) || !isToken(password))
+        {
+            reply(400, "Bad request");
+            return true;
+        }
+
+        if (!writable())
+        {
+            return true;
+        }
+
+        // check if the user already exists
+        if (ledger.exists(username))
+        {
+            reply(400, "Username already exists");
+            return true;
+        }
+
+        // encrypting the password, on the hashing pool
+        byte[] encryptedPassword = await(credentials.hash(password));
+        if (encryptedPassword == null)
+        {
+            return true;
+        }
+
+        // saving the user's credentials, another session may have taken the name
+        // while the password was hashed
+        if (!ledger.open(username, encryptedPassword, 0))
+        {
+            reply(400, "Username already exists");
+            return true;
+        }
+
+        // confirming success
+        reply(201, "Created");
+        return true;
+    }
+
+    /**
+     * @param string a username or a password
+     * @return true if the string is not empty and has no whitespace
+     */
+    protected static boolean isToken(String string)
+    {
+        if (string.isEmpty())
+        {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++)
+        {
+            if (Character.isWhitespace(string.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * this function processes the WITH command which is to withdraw money from the user's account
+     *
+     * @param arguments the parser, on the command token of the line
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processWITH(CommandParser arguments)
+    {
+        // Scenario 1: If there is no argument, respond with the user's balance
+        if (!arguments.next())
+        {
+            return processVIEW(100);
+        }
+
+        // Scenario 2: If the argument is "BREAK", the user cancelled, it's answered like any command
+        if (arguments.is("BREAK") && !arguments.hasNext())
+        {
+            this.debug("{} No further requests from the user.", WITH);
+            reply(200, "Cancelled");
+            return true;
+        }
+
+        // Scenario 3: If the argument is a withdrawal amount
+        long amount = arguments.amount();
+        if (amount == CommandParser.NOT_A_NUMBER || arguments.hasNext())
+        {
+            // Respond with 400 Bad request if the argument is not a number
+            this.warn("Invalid withdrawal amount provided by user {}", user);
+            reply(400, "Bad request");
+            return true;
+        }
+        return withdraw(amount);
+    }
+
+    /**
+     * this function withdraws money from the user's account
+     *
+     * @param withdrawalAmount the amount to withdraw
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean withdraw(long withdrawalAmount)
+    {
+        if (!writable())
+        {
+            return true;
+        }
+        if (withdrawalAmount < 0)
+        {
+            // Respond with 400 Bad request if the amount is negative
+            this.warn("Invalid withdrawal amount provided by user {}", user);
+            reply(400, "Bad request");
+            return true;
+        }
+
+        // Deduct the withdrawal amount from the user's balance, the ledger checks
+        // the balance and debits it in one step
+        long balance = ledger.withdraw(slot, withdrawalAmount);
+        if (balance == Ledger.NO_ACCOUNT)
+        {
+            // Respond with 500 Internal server error if the user doesn't have a balance
+            this.err("User " + user + " has no balance.");
+            reply(500, "Internal server error");
+            return false;
+        }
+        if (balance == Ledger.MOVED)
+        {
+            return moved();
+        }
+
+        // Check if the amount is greater than the balance
+        if (balance == Ledger.INSUFFICIENT_FUNDS)
+        {
+            // Respond with 400 Bad request if the amount is greater than the balance
+            this.warn("User {} tried to withdraw more than their balance.", user);
+            reply(400, "Bad request");
+            return true;
+        }
+
+        // Respond with "200 <user's new balance>"
+        reply(200, balance);
+
+        // Log the transaction
+        this.debug("Withdrawn {} from the balance of {}", withdrawalAmount, user);
+
+        // Return true to indicate successful processing
+        return true;
+    }
+
+    /**
+     * this function processes the XFER command, "XFER <user> <amount>", which
+     * moves money from the user's account to another one
+     *
+     * @param arguments the parser, on the command token of the line
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processXFER(CommandParser arguments)
+    {
+        String recipient = arguments.next() ? arguments.token() : null;
+        long amount = arguments.next() ? arguments.amount() : CommandParser.NOT_A_NUMBER;
+        if (recipient == null || amount == CommandParser.NOT_A_NUMBER || arguments.hasNext())
+        {
+            this.warn("Invalid transfer provided by user {}", user);
+            reply(400, "Bad request");
+            return true;
+        }
+        return transfer(recipient, amount);
+    }
+
+    /**
+     * this function moves money from the user's account to another one, the
+     * debit and the credit happen together or not at all
+     *
+     * @param recipient the username of the receiving account
+     * @param amount the amount to move
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean transfer(String recipient, long amount)
+    {
+        if (!writable())
+        {
+            return true;
+        }
+        if (amount < 0 || recipient.equals(user))
+        {
+            this.warn("Invalid transfer provided by user {}", user);
+            reply(400, "Bad request");
+            return true;
+        }
+
+        long balance = ledger.transfer(slot, ledger.slot(recipient), amount);
+        if (balance == Ledger.NO_ACCOUNT)
+        {
+            this.err("User " + user + " has no balance.");
+            reply(500, "Internal server error");
+            return false;
+        }
+        if (balance == Ledger.MOVED)
+        {
+            return moved();
+        }
+        if (balance == Ledger.NO_RECIPIENT)
+        {
+            // the recipient may be on another server, transfers stay within one
+            reply(400, "No such account");
+            return true;
+        }
+        if (balance == Ledger.INSUFFICIENT_FUNDS || balance == Ledger.OVERFLOW)
+        {
+            this.warn("User {} tried a transfer the balances can't take.", user);
+            reply(400, "Bad request");
+            return true;
+        }
+
+        reply(200, balance);
+        this.debug("Transferred {} from the balance of {}", amount, user);
+        return true;
+    }
+
+    /**
+     * this function processes the VIEW command which is to view the user's account balance
+     *
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processVIEW()
+    {
+        return processVIEW(200);
+    }
+
+    /**
+     * this function replies with the user's account balance under a given status
+     * code, the bare DEP and WITH commands use it with 100 to start an exchange
+     *
+     * @param status the status code to reply with
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processVIEW(int status)
+    {
+        // a replica that fell too far behind its primary sends the client there
+        Replica replica = ledger.replica();
+        if (replica != null && !replica.fresh())
+        {
+            redirect(replica);
+            return true;
+        }
+
+        // Get the user's balance
+        long balance = ledger.balance(slot);
+
+        // Check if the user has a balance
+        if (balance == Ledger.NO_ACCOUNT)
+        {
+            // Respond with 500 Internal server error if the user doesn't have a balance
+            this.err("User " + user + " has no balance.");
+            reply(500, "Internal server error");
+            return false;
+        }
+        if (balance == Ledger.MOVED)
+        {
+            return moved();
+        }
+
+        // Respond with "<status> <user's balance>"
+        reply(status, balance);
+
+        // Log the balance request
+        this.debug("Viewed balance: {} for user {}", balance, user);
+
+        return true;
+    }
+
+    /**
+     * this function processes the DEP command which is to deposit money into the user's account
+     *
+     * @param arguments the parser, on the command token of the line
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processDEP(CommandParser arguments)
+    {
+        // Scenario 1: If there is no argument, respond with the user's balance
+        if (!arguments.next())
+        {
+            return processVIEW(100);
+        }
+
+        // Scenario 2: If the argument is "BREAK", the user cancelled, it's answered like any command
+        if (arguments.is("BREAK") && !arguments.hasNext())
+        {
+            this.debug("{} No further requests from the user.", DEP);
+            reply(200, "Cancelled");
+            return true;
+        }
+
+        // Scenario 3: If the argument is a deposit amount
+        long amount = arguments.amount();
+        if (amount == CommandParser.NOT_A_NUMBER || arguments.hasNext())
+        {
+            // Respond with 400 Bad request if the argument is not a number
+            this.warn("Invalid deposit amount provided by user {}", user);
+            reply(400, "Bad request");
+            return true;
+        }
+        return deposit(amount);
+    }
+
+    /**
+     * this function deposits money into the user's account
+     *
+     * @param depositAmount the amount to deposit
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean deposit(long depositAmount)
+    {
+        if (!writable())
+        {
+            return true;
+        }
+        if (depositAmount < 0)
+        {
+            // Respond with 400 Bad request if the amount is negative
+            this.warn("Invalid deposit amount provided by user {}", user);
+            reply(400, "Bad request");
+            return true;
+        }
+
+        // Add the deposit amount to the user's balance
+        long balance = ledger.deposit(slot, depositAmount);
+        if (balance == Ledger.NO_ACCOUNT)
+        {
+            // Respond with 500 Internal server error if the user doesn't have a balance
+            this.err("User " + user + " has no balance.");
+            reply(500, "Internal server error");
+            return false;
+        }
+        if (balance == Ledger.MOVED)
+        {
+            return moved();
+        }
+
+        // Respond with 400 Bad request if the balance can't hold the deposit
+        if (balance == Ledger.OVERFLOW)
+        {
+            this.warn("User {} tried to deposit past the maximum balance.", user);
+            reply(400, "Bad request");
+            return true;
+        }
+
+        // Respond with "200 <user's new balance>"
+        reply(200, balance);
+
+        // Log the transaction
+        this.debug("Deposited {} into the balance of {}", depositAmount, user);
+
+        // Return true to indicate successful processing
+        return true;
+    }
+
+    /**
+     * this function processes the BATCH command, which carries several deposits
+     * and withdrawals separated by ';', e.g. "BATCH DEP 100;WITH 40;DEP 5"
+     *
+     * the operations are applied to the user's account all together or not at
+     * all, on success the reply is "200" followed by the balance after each
+     * operation, e.g. "200 1100,1060,1065", if an operation is rejected nothing
+     * is applied and the reply is "400" followed by the status of each operation,
+     * "-" for the ones after the rejected one, e.g. "400 200,400,-"
+     *
+     * @param arguments the parser, on the command token of the line
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processBATCH(CommandParser arguments)
+    {
+        int count = arguments.sections((byte) ';');
+        if (count == 0)
+        {
+            reply(400, "Bad request");
+            return true;
+        }
+        if (count > MAX_BATCH)
+        {
+            reply(400, "At most " + MAX_BATCH + " operations per batch");
+            return true;
+        }
+
+        // parsing every operation before anything is applied
+        long[] amounts = batchAmounts();
+        for (int i = 0; i < count; i++)
+        {
+            int lineLimit = arguments.narrow((byte) ';');
+            long amount = CommandParser.NOT_A_NUMBER;
+            if (arguments.next())
+            {
+                boolean deposit = arguments.is(DEP);
+                boolean withdrawal = arguments.is(WITH);
+                if ((deposit || withdrawal) && arguments.next() && !arguments.hasNext())
+                {
+                    amount = arguments.amount();
+                    amounts[i] = deposit ? amount : -amount;
+                }
+            }
+            arguments.widen(lineLimit);
+
+            if (amount < 0)
+            {
+                this.warn("Invalid batch operation {} provided by user {}", i + 1, user);
+                reply(400, "Bad request: operation " + (i + 1));
+                return true;
+            }
+        }
+
+        return batch(amounts, count);
+    }
+
+    /**
+     * this function processes the payload of a binary BATCH frame, a count
+     * followed by the amounts, positive to deposit and negative to withdraw
+     *
+     * @param frame the payload of the frame
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processBATCH(ByteBuffer frame)
+    {
+        int count = Short.toUnsignedInt(frame.getShort());
+        if (count == 0 || count > MAX_BATCH)
+        {
+            reply(400, "Bad request");
+            return true;
+        }
+
+        long[] amounts = batchAmounts();
+        for (int i = 0; i < count; i++)
+        {
+            amounts[i] = frame.getLong();
+        }
+        return batch(amounts, count);
+    }
+
+    /**
+     * this function hands out the arrays reused by every BATCH of the session,
+     * they're only allocated by its first BATCH
+     *
+     * @return the array the amounts of a batch are parsed into
+     */
+    protected long[] batchAmounts()
+    {
+        if (batchAmounts == null)
+        {
+            batchAmounts = new long[MAX_BATCH];
+            batchResults = new long[MAX_BATCH];
+        }
+        return batchAmounts;
+    }
+
+    /**
+     * this function applies several deposits and withdrawals to the user's
+     * account, all together or not at all
+     *
+     * @param amounts the operations, positive to deposit and negative to withdraw
+     * @param count the number of operations
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean batch(long[] amounts, int count)
+    {
+        if (!writable())
+        {
+            return true;
+        }
+
+        long[] results = batchResults;
+        int failed = ledger.batch(slot, amounts, count, results);
+
+        if (failed >= 0 && results[failed] == Ledger.NO_ACCOUNT)
+        {
+            // Respond with 500 Internal server error if the user doesn't have a balance
+            this.err("User " + user + " has no balance.");
+            reply(500, "Internal server error");
+            return false;
+        }
+        if (failed >= 0 && results[failed] == Ledger.MOVED)
+        {
+            return moved();
+        }
+
+        // on rejection, the results become the status of each operation
+        if (failed >= 0)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                results[i] = i < failed ? 200 : i == failed ? 400 : -1;
+            }
+        }
+        reply(failed < 0 ? 200 : 400, results, count);
+
+        if (failed < 0)
+        {
+            this.debug("Applied a batch of {} operations to the balance of {}", count, user);
+        }
+        else
+        {
+            this.warn("Rejected a batch at operation {} from user {}", failed + 1, user);
+        }
+        return true;
+    }
+
+    /**
+     * this function processes the BIN command, which switches the session to the
+     * binary frames of BinaryProtocol once the "200 Binary" reply is sent
+     *
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processBIN()
+    {
+        // the frames carry no tag
+        if (tag != null)
+        {
+            reply(400, "Binary frames can't be multiplexed");
+            return true;
+        }
+
+        if (socket != null)
+        {
+            try
+            {
+                // the lines are read as bytes, so frames already buffered past the
+                // command are read from the same stream
+                binaryIn = new DataInputStream(in);
+                binaryOut = new BufferedOutputStream(ServerMetrics.SERVER.count(socket.getOutputStream()));
+            }
+            catch (IOException e)
+            {
+                this.err("IOException while switching to binary frames");
+                return false;
+            }
+        }
+
+        reply(BinaryProtocol.SWITCHED, "Binary");
+        out.flush();
+
+        binary = true;
+        request = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME);
+        // room for the longest TEXT reply, a u8 length and 255 bytes
+        response = ByteBuffer.allocate(5 + 1 + 0xFF);
+        this.log("Switched to binary frames");
+        return true;
+    }
+
+    /**
+     * this function handles the user login attempt, a session that is logged in
+     * already is logged out first, so it ends up in the new account or in none
      *
      * @return true if the login was successful, false otherwise
      */
-    protected boolean login()
+    protected boolean login()
+    {
+        // logging in again, e.g. to another account, whatever the outcome the old login is over
+        if (auth)
+        {
+            this.log("User " + user + " is logging in again as " + attempted_user);
+            auth = false;
+            user = null;
+            slot = Ledger.NO_ACCOUNT;
+        }
+
+        // check if the user exists
+        int attempted_slot = ledger.slot(attempted_user);
+        if (attempted_slot == Ledger.NO_ACCOUNT)
+        {
+            reply(403, "Invalid Username/Password");
+            return false;
+        }
+
+        // compare the hashes, on the hashing pool
+        Boolean matches = await(credentials.verify(attempted_pass, ledger.credential(attempted_slot)));
+        if (matches == null)
+        {
+            return true;
+        }
+        if (!matches)
+        {
+            reply(403, "Invalid Username/Password");
+            return false;
+        }
+
+        // login success, update auth status and user, the token lets the client
+        // log in again without its password
+        auth = true;
+        user = attempted_user;
+        slot = attempted_slot;
+        replyText(200, credentials.tokens().issue(slot, user));
+        return true;
+    }
+
+    /**
+     * this function processes the RESUME command, which logs in with the token
+     * of an earlier login instead of a username and a password
+     *
+     * @param token the token
+     * @return true if the command was valid, false otherwise
+     */
+    protected boolean processRESUME(String token)
+    {
+        // like a login, the session leaves the account it was logged in to
+        if (auth)
+        {
+            auth = false;
+            user = null;
+            slot = Ledger.NO_ACCOUNT;
+        }
+
+        SessionTokens.Grant grant = token == null ? null : credentials.tokens().check(token);
+
+        // the account must still be the one the token was signed for
+        if (grant == null || ledger.slot(grant.user) != grant.slot)
+        {
+            this.warn("Rejected a session token for user {}", grant == null ? null : grant.user);
+            reply(403, "Invalid or expired token");
+            return true;
+        }
+
+        auth = true;
+        user = grant.user;
+        slot = grant.slot;
+        reply(200, "OK");
+        this.log("Resumed the session of " + user);
+        return true;
+    }
+
+    /**
+     * this function handles the user logout
+     *
+     * @return true if the logout was successful, false otherwise, a logical
+     *         session ends with its logout so its id can be used again
+     */
+    protected boolean logout()
+    {
+        // if the user is not authenticated, there is nothing to undo
+        if (!auth)
+        {
+            reply(200, "OK");
+            return tag == null;
+        }
+
+        // logout success, update auth status and user
+        auth = false;
+        user = null;
+        slot = Ledger.NO_ACCOUNT;
+        reply(200, "OK");
+        return tag == null;
+    }
+
+    /**
+     * this function answers a command on an account that moved out to another
+     * server, the session is logged out so the client logs in again through
+     * its router, which knows where the account went
+     *
+     * @return true, the session goes on
+     */
+    protected boolean moved()
+    {
+        this.log("The account of user " + user + " moved out, logging the session out");
+        auth = false;
+        user = null;
+        slot = Ledger.NO_ACCOUNT;
+        reply(410, "Account moved, log in again");
+        return true;
+    }
+
+    /**
+     * this function checks that the server takes changes before a command
+     * makes one, a replica sends the client to its primary instead
+     *
+     * @return true if the change may go ahead
+     */
+    protected boolean writable()
+    {
+        Replica replica = ledger.replica();
+        return replica == null || redirect(replica);
+    }
+
+    /**
+     * this function sends the client to the primary of a replica with
+     * "307 <host:port>", the session stays logged in so the client can go on
+     * reading here
+     *
+     * @param replica the replica of the server
+     * @return false, the command isn't run here
+     */
+    protected boolean redirect(Replica replica)
     {
-        // if the user is already authenticated, return true
-        if (auth)
+        String primary = replica.primary();
+        if (primary == null)
         {
-            return true;
+            reply(503, "Replica not connected to its primary");
         }
+        else
+        {
+            reply(307, primary);
+        }
+        return false;
+    }
 
-        // check if the user exists
-        byte[] expected = users.get(attempted_user);
-        if (expected == null)
+    /**
+     * this function checks that the admin is the one logged in before an admin
+     * command, and replies 403 if they aren't
+     *
+     * @param command the name of the command
+     * @return true if the admin is logged in
+     */
+    protected boolean admin(String command)
+    {
+        if (!ATMServer.ADMIN_USER.equals(user))
         {
-            out.println("403 Invalid Username/Password");
+            this.warn("User {} tried the admin command " + command, user);
+            reply(403, "Forbidden");
             return false;
         }
+        return true;
+    }
 
-        // compare the hashes
-        byte[] actual = encryptPassword(attempted_pass);
-        if (!Arrays.equals(actual, expected))
+    /**
+     * this function processes the STATS command, which replies with the
+     * metrics of the server on one line, only the admin may see them
+     *
+     * @return true, the command is always valid
+     */
+    protected boolean processSTATS()
+    {
+        if (admin(STATS))
         {
-            out.println("403 Invalid Username/Password");
-            return false;
+            reply(200, ServerMetrics.SERVER.summary());
         }
+        return true;
+    }
 
-        // login success, update auth status and user
-        auth = true;
-        user = attempted_user;
-        out.println("200 OK");
+    /**
+     * this function processes the ACCOUNTS command, "ACCOUNTS <from> <count>",
+     * which lists the usernames of a page of accounts for a router walking
+     * through them, the reply is "200 <next> <user> <user> ...", where next is
+     * the from of the following page, -1 after the last one
+     *
+     * @param arguments the parser, on the command token of the line
+     * @return true, the command is always valid
+     */
+    protected boolean processACCOUNTS(CommandParser arguments)
+    {
+        if (!admin(ACCOUNTS))
+        {
+            return true;
+        }
+        long from = arguments.next() ? arguments.amount() : CommandParser.NOT_A_NUMBER;
+        long count = arguments.next() ? arguments.amount() : CommandParser.NOT_A_NUMBER;
+        if (from < 0 || from > Integer.MAX_VALUE || count <= 0 || arguments.hasNext())
+        {
+            reply(400, "Bad request");
+            return true;
+        }
+
+        List<String> users = new ArrayList<>();
+        int next = ledger.accounts((int) from, (int) Math.min(count, MAX_ACCOUNTS), users);
+        StringBuilder page = new StringBuilder().append(next);
+        for (String account : users)
+        {
+            page.append(' ').append(account);
+        }
+        reply(200, page.toString());
         return true;
     }
 
     /**
-     * this function handles the user logout
+     * this function processes the EXPORT command, "EXPORT <user>", which closes
+     * an account so a router can open it on another server, the reply is
+     * "200 <balance> <credential>" with the hashed password in base64, the
+     * sessions logged in to the account get 410 from then on
      *
-     * @return true if the logout was successful, false otherwise
+     * @param arguments the parser, on the command token of the line
+     * @return true, the command is always valid
      */
-    protected boolean logout()
+    protected boolean processEXPORT(CommandParser arguments)
     {
-        // if the user is not authenticated, return true
-        if (!auth)
+        if (!admin(EXPORT) || !writable())
+        {
+            return true;
+        }
+        if (!arguments.next() || arguments.hasNext())
         {
+            reply(400, "Bad request");
+            return true;
+        }
+        String account = arguments.token();
+        int exported = ledger.slot(account);
+        if (account.equals(ATMServer.ADMIN_USER) || exported == Ledger.NO_ACCOUNT)
+        {
+            // every server keeps an admin of its own
+            reply(400, "No such account");
             return true;
         }
 
-        // logout success, update auth status and user
-        auth = false;
-        user = null;
-        out.println("200 OK");
+        // the credential doesn't change, it's read before closing empties it
+        byte[] credential = ledger.credential(exported);
+        long balance = ledger.close(account);
+        if (balance == Ledger.NO_ACCOUNT)
+        {
+            reply(400, "No such account");
+            return true;
+        }
+        this.log("Exported the account of user " + account + " with a balance of " + balance);
+        reply(200, balance + " " + Base64.getEncoder().encodeToString(credential));
+        return true;
+    }
+
+    /**
+     * this function processes the IMPORT command, "IMPORT <user> <balance>
+     * <credential>", which opens an account exported by another server with
+     * its balance and hashed password, the servers have to hash passwords the
+     * same way for the user to log in afterwards
+     *
+     * @param arguments the parser, on the command token of the line
+     * @return true, the command is always valid
+     */
+    protected boolean processIMPORT(CommandParser arguments)
+    {
+        if (!admin(IMPORT) || !writable())
+        {
+            return true;
+        }
+        String account = arguments.next() ? arguments.token() : null;
+        long balance = arguments.next() ? arguments.amount() : CommandParser.NOT_A_NUMBER;
+        byte[] credential = null;
+        if (arguments.next())
+        {
+            try
+            {
+                credential = Base64.getDecoder().decode(arguments.token());
+            }
+            catch (IllegalArgumentException e)
+            {
+                credential = null;
+            }
+        }
+        if (account == null || balance < 0 || credential == null || credential.length == 0 || arguments.hasNext())
+        {
+            reply(400, "Bad request");
+            return true;
+        }
+
+        if (!ledger.open(account, credential, balance))
+        {
+            reply(400, "Username already exists");
+            return true;
+        }
+        this.log("Imported the account of user " + account + " with a balance of " + balance);
+        reply(201, "Imported");
         return true;
     }
 
     /**
-     * this function encrypts the password provided using SHA-256
+     * this function processes the LOAD command, "LOAD <file>", which imports
+     * the accounts of a file on the server, see BulkAccounts for the formats,
+     * the reply is "200 <imported> <existing> <unreadable>"
      *
-     * @param password the password to encrypt
-     * @return the encrypted password
+     * @param file the path of the file
+     * @return true, the command is always valid
      */
-    protected byte[] encryptPassword(String password)
+    protected boolean processLOAD(String file)
     {
+        if (!admin(LOAD) || !writable())
+        {
+            return true;
+        }
+        if (file == null || file.isBlank())
+        {
+            reply(400, "Bad request");
+            return true;
+        }
+
         try
         {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+            long[] counts = new BulkAccounts(ledger, credentials, BulkAccounts.THREADS).load(Path.of(file.strip()));
+            reply(200, counts[0] + " " + counts[1] + " " + counts[2]);
         }
-        catch (NoSuchAlgorithmException e)
+        catch (IOException | InvalidPathException e)
         {
-            // this should never happen
-            e.printStackTrace();
-            return null;
+            this.warn("Could not import the accounts of {}: " + e, file);
+            reply(400, "Could not read " + file);
         }
+        return true;
     }
 
     /**
-     * this function is a wrapper around System.out.println
-     * it prints the thread id + the message
+     * this function processes the DUMP command, "DUMP <file>", which exports
+     * every account to a file on the server, the reply is "200 <exported>"
      *
-     * @param message the message to print
+     * @param file the path of the file
+     * @return true, the command is always valid
      */
-    protected void log(String message)
+    protected boolean processDUMP(String file)
+    {
+        if (!admin(DUMP))
+        {
+            return true;
+        }
+        if (file == null || file.isBlank())
+        {
+            reply(400, "Bad request");
+            return true;
+        }
+
+        try
+        {
+            reply(200, new BulkAccounts(ledger, credentials, 1).dump(Path.of(file.strip())));
+        }
+        catch (IOException | InvalidPathException e)
+        {
+            this.warn("Could not export the accounts to {}: " + e, file);
+            reply(400, "Could not write " + file);
+        }
+        return true;
+    }
+
+    /**
+     * this function processes the PING command, which a client sends to check
+     * that the connection and the server still answer
+     *
+     * @return true, the command is always valid
+     */
+    protected boolean processPING()
     {
-        System.out.println(this.id + ": " + message);
+        reply(200, "PONG");
+        return true;
     }
 
     /**
-     * this function is a wrapper around System.err.println
-     * it prints the thread id + the message
+     * this function processes the ROLE command, which replies "200 PRIMARY
+     * <lsn>" on a primary and "200 REPLICA <primary> <lsn> <staleness in ms>"
+     * on a replica, the staleness is -1 until the replica caught up with its
+     * primary once
      *
-     * @param message the message to print
+     * @return true, the command is always valid
      */
-    protected void err(String message)
+    protected boolean processROLE()
+    {
+        Replica replica = ledger.replica();
+        if (replica == null)
+        {
+            reply(200, "PRIMARY " + ledger.lsn());
+        }
+        else
+        {
+            reply(200, "REPLICA " + replica.primary() + " " + replica.position() + " " + replica.stalenessMillis());
+        }
+        return true;
+    }
+
+    /**
+     * this function replies with a status and a message, binary replies carry
+     * the status only
+     *
+     * @param status the status code
+     * @param message the message that follows the status in the text protocol
+     */
+    protected void reply(int status, String message)
+    {
+        this.status = status;
+        if (binary)
+        {
+            BinaryProtocol.end(response, BinaryProtocol.beginResponse(response.clear(), status, BinaryProtocol.NONE));
+            writeResponse();
+        }
+        else
+        {
+            writeTag();
+            out.write(replyChars, 0, putLong(0, status));
+            out.write(' ');
+            out.write(message);
+            out.println();
+        }
+    }
+
+    /**
+     * this function replies "OK" followed by a text, e.g. a session token, binary
+     * replies carry the text as TEXT
+     *
+     * @param status the status code
+     * @param text the text, null to reply "OK" only
+     */
+    protected void replyText(int status, String text)
+    {
+        // a binary string holds at most 255 bytes, tokens of very long usernames don't fit
+        if (text == null || (binary && text.length() > 0xFF))
+        {
+            reply(status, "OK");
+        }
+        else if (binary)
+        {
+            this.status = status;
+            int start = BinaryProtocol.beginResponse(response.clear(), status, BinaryProtocol.TEXT);
+            BinaryProtocol.putString(response, text);
+            BinaryProtocol.end(response, start);
+            writeResponse();
+        }
+        else
+        {
+            reply(status, "OK " + text);
+        }
+    }
+
+    /**
+     * this function replies with a status and a value, e.g. a balance
+     *
+     * @param status the status code
+     * @param value the value
+     */
+    protected void reply(int status, long value)
     {
-        System.err.println(this.id + ": " + message);
+        this.status = status;
+        if (binary)
+        {
+            int start = BinaryProtocol.beginResponse(response.clear(), status, BinaryProtocol.VALUE);
+            BinaryProtocol.end(response.putLong(value), start);
+            writeResponse();
+        }
+        else
+        {
+            int length = putLong(0, status);
+            replyChars[length++] = ' ';
+            writeTag();
+            out.write(replyChars, 0, putLong(length, value));
+            out.println();
+        }
     }
 
     /**
-     * this function tests if the list contains target
+     * this function replies with a status and a list of values, negative values
+     * are written as "-" in the text protocol
      *
-     * @param target the target to look for
-     * @return true if found, false otherwise
+     * @param status the status code
+     * @param values the values
+     * @param count the number of values
      */
-    protected boolean isValidCommand(String target)
+    protected void reply(int status, long[] values, int count)
     {
-        for (String e : ATMThread.COMMANDS)
+        this.status = status;
+        if (binary)
         {
-            if (e.equalsIgnoreCase(target))
+            if (response.capacity() < 7 + 8 * count)
             {
-                return true;
+                response = ByteBuffer.allocate(7 + 8 * MAX_BATCH);
+            }
+            int start = BinaryProtocol.beginResponse(response.clear(), status, BinaryProtocol.VECTOR);
+            response.putShort((short) count);
+            for (int i = 0; i < count; i++)
+            {
+                response.putLong(values[i]);
             }
+            BinaryProtocol.end(response, start);
+            writeResponse();
+            return;
         }
-        return false;
+
+        int length = putLong(0, status);
+        replyChars[length++] = ' ';
+        for (int i = 0; i < count; i++)
+        {
+            // room for a separator and the longest value
+            if (replyChars.length < length + 21)
+            {
+                replyChars = Arrays.copyOf(replyChars, Math.max(length + 21, replyChars.length * 2));
+            }
+            if (i > 0)
+            {
+                replyChars[length++] = ',';
+            }
+            if (values[i] < 0)
+            {
+                replyChars[length++] = '-';
+            }
+            else
+            {
+                length = putLong(length, values[i]);
+            }
+        }
+        writeTag();
+        out.write(replyChars, 0, length);
+        out.println();
+    }
+
+    /**
+     * this function starts the text reply of a logical session with its tag
+     */
+    protected void writeTag()
+    {
+        if (tag != null)
+        {
+            out.write(tag);
+            replied = true;
+        }
+    }
+
+    /**
+     * this function writes the decimal digits of a value into the reply being
+     * formatted, without going through a String
+     *
+     * @param at where the digits go in replyChars
+     * @param value the value, not negative
+     * @return the position after the digits
+     */
+    protected int putLong(int at, long value)
+    {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10)
+        {
+            digits++;
+        }
+        for (int i = at + digits - 1; i >= at; i--)
+        {
+            replyChars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return at + digits;
+    }
+
+    /**
+     * this function writes the encoded binary response
+     */
+    protected void writeResponse()
+    {
+        try
+        {
+            binaryOut.write(response.array(), 0, response.position());
+        }
+        catch (IOException e)
+        {
+            // the next read notices the broken connection
+            this.err("Error writing response to socket.");
+        }
+    }
+
+    /**
+     * this function writes the buffered responses to the client
+     */
+    protected void flush()
+    {
+        out.flush();
+        if (binaryOut != null)
+        {
+            try
+            {
+                binaryOut.flush();
+            }
+            catch (IOException e)
+            {
+                this.err("Error writing response to socket.");
+            }
+        }
+    }
+
+    /**
+     * this function waits for the hashing pool, the session's thread (a virtual
+     * thread in the "virtual" and "nio" modes) waits while other sessions carry on,
+     * and the replies keep the order of the commands
+     *
+     * @param hashing the hashing request
+     * @return its result, or null once the client was told the server is busy
+     */
+    protected <T> T await(CompletableFuture<T> hashing)
+    {
+        try
+        {
+            return hashing.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RejectedExecutionException)
+            {
+                this.warn("Too many passwords waiting to be hashed, turning away user {}", attempted_user);
+                reply(503, "Busy");
+            }
+            else
+            {
+                this.err("Error hashing a password: " + e.getCause());
+                reply(500, "Internal server error");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * this function logs a message of the session, prefixed with the session id
+     *
+     * @param message the message to log
+     */
+    protected void log(String message)
+    {
+        ServerLog.log(ServerLog.Level.INFO, this.id, message);
+    }
+
+    /**
+     * this function logs an error of the session, prefixed with the session id
+     *
+     * @param message the message to log
+     */
+    protected void err(String message)
+    {
+        ServerLog.log(ServerLog.Level.ERROR, this.id, message);
+    }
+
+    /**
+     * this function logs a rejected request, the "{}" placeholder of the format
+     * is only filled in if the message is written
+     *
+     * @param format the message
+     * @param argument fills the placeholder
+     */
+    protected void warn(String format, Object argument)
+    {
+        ServerLog.log(ServerLog.Level.WARN, this.id, format, argument);
+    }
+
+    /**
+     * this function logs a rejected request with a number and an argument
+     *
+     * @param format the message, with two placeholders
+     * @param number fills the first placeholder
+     * @param argument fills the second placeholder
+     */
+    protected void warn(String format, long number, Object argument)
+    {
+        ServerLog.log(ServerLog.Level.WARN, this.id, format, number, argument);
+    }
+
+    /**
+     * this function traces a command, it costs a level check unless the server
+     * runs with "--log-level=debug"
+     *
+     * @param format the message
+     * @param argument fills the placeholder
+     */
+    protected void debug(String format, Object argument)
+    {
+        ServerLog.log(ServerLog.Level.DEBUG, this.id, format, argument);
+    }
+
+    /**
+     * this function traces a command with a number and an argument
+     *
+     * @param format the message, with two placeholders
+     * @param number fills the first placeholder
+     * @param argument fills the second placeholder
+     */
+    protected void debug(String format, long number, Object argument)
+    {
+        ServerLog.log(ServerLog.Level.DEBUG, this.id, format, number, argument);
     }
 }
@@ -0,0 +1,224 @@
+package org.example.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * the storage behind the ledger, every account gets a dense slot when it's
+ * created and the slot indexes primitive pages, so a balance costs 8 bytes and
+ * reading or updating it never allocates
+ *
+ * pages are allocated as the table grows and are never moved, so a slot stays
+ * valid for the lifetime of the table
+ *
+ * a balance is a single 64-bit word and every change to it, however many
+ * operations it's made of, is installed with one compare-and-set, so the word
+ * only ever holds a balance some change left behind, readers load it without a
+ * lock or a version to check and can't see half of a change, nor wait for one
+ */
+public class AccountTable
+{
+    // 64k accounts per page
+    public final static int PAGE_BITS = 16;
+    public final static int PAGE_SIZE = 1 << PAGE_BITS;
+    public final static int PAGE_MASK = PAGE_SIZE - 1;
+
+    // returned by slot(String) for unknown users
+    public final static int NO_SLOT = -1;
+
+    // the balance of a slot whose account moved out to another server, its
+    // credential is emptied and its name no longer finds it, the slot itself is
+    // never reused
+    public final static long CLOSED = Long.MIN_VALUE;
+    protected final static byte[] NO_CREDENTIAL = new byte[0];
+
+    // atomic access to the elements of a balance page
+    protected final static VarHandle BALANCE = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // username -> slot, the only per-account object besides the name and credential
+    protected final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+
+    // the pages, replaced by bigger arrays of pages as the table grows
+    protected volatile long[][] balances = new long[0][];
+    protected volatile byte[][][] credentials = new byte[0][][];
+    protected volatile String[][] names = new String[0][];
+
+    // the number of slots handed out
+    protected volatile int size = 0;
+
+    /**
+     * this function creates an account in the next free slot, unless the
+     * username is taken
+     *
+     * @param user the username
+     * @param credential the hashed password
+     * @param balance the opening balance
+     * @return the slot of the new account, or NO_SLOT if the username exists
+     */
+    public synchronized int add(String user, byte[] credential, long balance)
+    {
+        if (slots.containsKey(user))
+        {
+            return NO_SLOT;
+        }
+
+        int slot = size;
+        ensureCapacity(slot + 1);
+        names[slot >>> PAGE_BITS][slot & PAGE_MASK] = user;
+        credentials[slot >>> PAGE_BITS][slot & PAGE_MASK] = credential;
+        BALANCE.setVolatile(balances[slot >>> PAGE_BITS], slot & PAGE_MASK, balance);
+        size = slot + 1;
+
+        // publishing the slot last, whoever finds it sees a complete account
+        slots.put(user, slot);
+        return slot;
+    }
+
+    /**
+     * this function puts an account back into the slot it had before a restart,
+     * slots may be restored in any order, an account restored without a
+     * credential had moved out and stays closed
+     *
+     * @param slot the slot of the account
+     * @param user the username
+     * @param credential the hashed password
+     * @param balance the balance
+     */
+    public synchronized void restore(int slot, String user, byte[] credential, long balance)
+    {
+        ensureCapacity(slot + 1);
+        names[slot >>> PAGE_BITS][slot & PAGE_MASK] = user;
+        credentials[slot >>> PAGE_BITS][slot & PAGE_MASK] = credential;
+        BALANCE.setVolatile(balances[slot >>> PAGE_BITS], slot & PAGE_MASK, balance);
+        size = Math.max(size, slot + 1);
+        if (credential.length == 0)
+        {
+            BALANCE.setVolatile(balances[slot >>> PAGE_BITS], slot & PAGE_MASK, CLOSED);
+            return;
+        }
+        slots.put(user, slot);
+    }
+
+    /**
+     * this function forgets the name and the credential of an account whose
+     * balance was already set to CLOSED, so the username is free for an account
+     * that moves back later
+     *
+     * @param slot the slot of the account
+     */
+    public synchronized void close(int slot)
+    {
+        BALANCE.setVolatile(balances[slot >>> PAGE_BITS], slot & PAGE_MASK, CLOSED);
+        credentials[slot >>> PAGE_BITS][slot & PAGE_MASK] = NO_CREDENTIAL;
+        slots.remove(name(slot), slot);
+    }
+
+    /**
+     * @param user the username
+     * @return the slot of the user's account, or NO_SLOT
+     */
+    public int slot(String user)
+    {
+        Integer slot = slots.get(user);
+        return slot == null ? NO_SLOT : slot;
+    }
+
+    /**
+     * @return the number of accounts in the table
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param slot the slot of an account
+     * @return the username of the account
+     */
+    public String name(int slot)
+    {
+        return names[slot >>> PAGE_BITS][slot & PAGE_MASK];
+    }
+
+    /**
+     * @param slot the slot of an account
+     * @return the hashed password of the account
+     */
+    public byte[] credential(int slot)
+    {
+        return credentials[slot >>> PAGE_BITS][slot & PAGE_MASK];
+    }
+
+    /**
+     * this function reads a balance without waiting for the changes under way,
+     * the read is volatile so it sees every change that returned before it, on
+     * x86 that's a plain load, reads of any number of threads don't slow each
+     * other down, LedgerBenchmark's reads measure it
+     *
+     * @param slot the slot of an account
+     * @return the balance of the account
+     */
+    public long balance(int slot)
+    {
+        return (long) BALANCE.getVolatile(balances[slot >>> PAGE_BITS], slot & PAGE_MASK);
+    }
+
+    /**
+     * this function replaces a balance if it still holds the expected value
+     *
+     * @param slot the slot of an account
+     * @param expected the balance the caller read
+     * @param balance the new balance
+     * @return true if the balance was replaced
+     */
+    public boolean compareAndSet(int slot, long expected, long balance)
+    {
+        return BALANCE.compareAndSet(balances[slot >>> PAGE_BITS], slot & PAGE_MASK, expected, balance);
+    }
+
+    /**
+     * this function adds to a balance without any check, it's meant for replaying
+     * changes that were checked when they first happened, and for changes checked
+     * under a lock every other change to the account takes
+     *
+     * @param slot the slot of an account
+     * @param delta the amount to add, negative to subtract
+     * @return the new balance
+     */
+    public long addAndGet(int slot, long delta)
+    {
+        return (long) BALANCE.getAndAdd(balances[slot >>> PAGE_BITS], slot & PAGE_MASK, delta) + delta;
+    }
+
+    /**
+     * this function makes sure the pages cover the given number of slots, it's
+     * only called with the table's lock held
+     *
+     * @param capacity the number of slots needed
+     */
+    protected void ensureCapacity(int capacity)
+    {
+        int pages = (capacity + PAGE_MASK) >>> PAGE_BITS;
+        if (pages <= balances.length)
+        {
+            return;
+        }
+
+        long[][] newBalances = Arrays.copyOf(balances, pages);
+        byte[][][] newCredentials = Arrays.copyOf(credentials, pages);
+        String[][] newNames = Arrays.copyOf(names, pages);
+        for (int page = balances.length; page < pages; page++)
+        {
+            newBalances[page] = new long[PAGE_SIZE];
+            newCredentials[page] = new byte[PAGE_SIZE][];
+            newNames[page] = new String[PAGE_SIZE];
+        }
+
+        // the existing pages are shared, so readers of the old arrays stay correct
+        names = newNames;
+        credentials = newCredentials;
+        balances = newBalances;
+    }
+}
@@ -0,0 +1,486 @@
+package org.example.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * imports and exports the accounts in bulk, to onboard a bank in one go rather
+ * than one NEW at a time, and to take the accounts elsewhere
+ *
+ * a file ending in ".csv" is text, one account per line, the first line may name
+ * the columns: "user,password,balance" (the default, the balance is optional)
+ * for new accounts whose passwords are hashed here, or "user,balance,credential"
+ * for the accounts a server exported, with their hashed passwords in base64,
+ * a column holding a comma or a quote, or starting with "#", is quoted with
+ * double quotes, a quote inside doubled, any other file is binary, "ATMA" followed by [UTF user][long balance][u16
+ * length][credential] for every account, which only holds exported accounts
+ *
+ * both directions stream: an import reads a chunk of accounts, hashes its
+ * passwords on every core with fork/join, and opens the whole chunk waiting for
+ * the disk once, an export writes the accounts slot by slot, each with the
+ * balance it has when it's written, to a temporary file renamed into place
+ *
+ * an instance runs one import or export, usernames that exist are skipped and
+ * lines that can't be read are counted and skipped
+ */
+public class BulkAccounts
+{
+    // options
+    public final static int THREADS = Runtime.getRuntime().availableProcessors();
+
+    // the accounts opened together
+    public final static int CHUNK = 4096;
+
+    // the headers of the two kinds of CSV files
+    public final static String CSV_NEW = "user,password,balance";
+    public final static String CSV_EXPORTED = "user,balance,credential";
+
+    // the first int of a binary file, "ATMA"
+    public final static int MAGIC = 0x41544d41;
+
+    // the passwords a fork/join task hashes without splitting
+    protected final static int HASH_SPLIT = 8;
+
+    // how often an import logs its progress, in accounts
+    protected final static int PROGRESS = 100_000;
+
+    protected final Ledger ledger;
+    protected final CredentialService credentialService;
+    protected final int threads;
+
+    // the chunk being read, a null password stands for an exported credential
+    protected final String[] users = new String[CHUNK];
+    protected final String[] passwords = new String[CHUNK];
+    protected final byte[][] credentials = new byte[CHUNK][];
+    protected final long[] balances = new long[CHUNK];
+    protected int count = 0;
+
+    // what the import did so far
+    protected long imported = 0;
+    protected long existing = 0;
+    protected long rejected = 0;
+
+    protected ForkJoinPool pool = null;
+
+    /**
+     * @param _ledger the accounts
+     * @param _credentialService hashes the passwords the way logins check them
+     * @param _threads the threads hashing the passwords of an import
+     */
+    public BulkAccounts(Ledger _ledger, CredentialService _credentialService, int _threads)
+    {
+        this.ledger = _ledger;
+        this.credentialService = _credentialService;
+        this.threads = Math.max(1, _threads);
+    }
+
+    /**
+     * this function imports the accounts of a file
+     *
+     * @param file a CSV or binary file
+     * @return the accounts imported, the ones skipped because the username
+     *         exists, and the lines or records that couldn't be read
+     * @throws IOException if the file can't be read
+     */
+    public long[] load(Path file) throws IOException
+    {
+        long started = System.nanoTime();
+        pool = new ForkJoinPool(threads);
+        try
+        {
+            if (isCsv(file))
+            {
+                loadCsv(file);
+            }
+            else
+            {
+                loadBinary(file);
+            }
+            flush();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        ServerLog.log(ServerLog.Level.INFO, null, "Imported " + imported + " accounts from " + file + " in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms, " + existing + " existed and " + rejected
+                + " couldn't be read");
+        return new long[] { imported, existing, rejected };
+    }
+
+    /**
+     * this function reads the accounts of a CSV file
+     */
+    protected void loadCsv(Path file) throws IOException
+    {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            boolean exported = false;
+            boolean first = true;
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#"))
+                {
+                    continue;
+                }
+                if (first)
+                {
+                    first = false;
+                    String header = line.replace(" ", "").toLowerCase(Locale.ROOT);
+                    if (header.equals(CSV_EXPORTED))
+                    {
+                        exported = true;
+                        continue;
+                    }
+                    if (header.equals(CSV_NEW) || header.equals("user,password"))
+                    {
+                        continue;
+                    }
+                }
+
+                String[] columns = columns(line);
+                if (columns == null)
+                {
+                    rejected++;
+                    continue;
+                }
+                if (exported)
+                {
+                    if (columns.length != 3)
+                    {
+                        rejected++;
+                        continue;
+                    }
+                    byte[] credential;
+                    try
+                    {
+                        credential = Base64.getDecoder().decode(columns[2].strip());
+                    }
+                    catch (IllegalArgumentException e)
+                    {
+                        rejected++;
+                        continue;
+                    }
+                    add(columns[0], null, credential, balance(columns[1]));
+                }
+                else
+                {
+                    if (columns.length != 2 && columns.length != 3)
+                    {
+                        rejected++;
+                        continue;
+                    }
+                    add(columns[0], columns[1], null, columns.length == 3 ? balance(columns[2]) : 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * this function reads the accounts of a binary file
+     */
+    protected void loadBinary(Path file) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024)))
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException(file + " is neither a CSV file nor an account export");
+            }
+            while (true)
+            {
+                String user;
+                try
+                {
+                    user = in.readUTF();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                long balance = in.readLong();
+                byte[] credential = new byte[in.readUnsignedShort()];
+                in.readFully(credential);
+                add(user, null, credential, balance);
+            }
+        }
+    }
+
+    /**
+     * this function adds an account to the chunk, and opens the chunk once it's full
+     *
+     * @param user the username
+     * @param password the password to hash, null if the credential is given
+     * @param credential the hashed password, null if the password is given
+     * @param balance the balance, negative if it couldn't be read
+     */
+    protected void add(String user, String password, byte[] credential, long balance)
+    {
+        if (user.isEmpty() || user.chars().anyMatch(Character::isWhitespace) || balance < 0
+                || (password != null ? password.isEmpty() : credential.length == 0))
+        {
+            rejected++;
+            return;
+        }
+
+        users[count] = user;
+        passwords[count] = password;
+        credentials[count] = credential;
+        balances[count] = balance;
+        if (++count == CHUNK)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * this function hashes the passwords of the chunk and opens its accounts
+     */
+    protected void flush()
+    {
+        if (count == 0)
+        {
+            return;
+        }
+        pool.invoke(new HashTask(0, count));
+
+        int opened = ledger.openAll(users, credentials, balances, count);
+        long before = imported;
+        imported += opened;
+        existing += count - opened;
+        count = 0;
+
+        if (imported / PROGRESS != before / PROGRESS)
+        {
+            ServerLog.log(ServerLog.Level.INFO, null, "Imported {} accounts so far", imported);
+        }
+    }
+
+    /**
+     * hashes the passwords of a range of the chunk, splitting it in halves
+     * until a range is small enough to hash on one thread
+     */
+    protected class HashTask extends RecursiveAction
+    {
+        private final static long serialVersionUID = 1L;
+
+        protected final int from;
+        protected final int to;
+
+        protected HashTask(int _from, int _to)
+        {
+            this.from = _from;
+            this.to = _to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= HASH_SPLIT)
+            {
+                for (int i = from; i < to; i++)
+                {
+                    if (passwords[i] != null)
+                    {
+                        credentials[i] = credentialService.credential(passwords[i]);
+                        passwords[i] = null;
+                    }
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new HashTask(from, middle), new HashTask(middle, to));
+        }
+    }
+
+    /**
+     * this function exports every open account
+     *
+     * @param file the file written, CSV if it ends in ".csv", binary otherwise
+     * @return the number of accounts exported
+     * @throws IOException if the file can't be written
+     */
+    public long dump(Path file) throws IOException
+    {
+        long started = System.nanoTime();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long exported = 0;
+        AccountTable table = ledger.table;
+
+        if (isCsv(file))
+        {
+            try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))
+            {
+                out.write(CSV_EXPORTED);
+                out.newLine();
+                Base64.Encoder base64 = Base64.getEncoder();
+                for (int slot = 0, size = table.size(); slot < size; slot++)
+                {
+                    byte[] credential = table.credential(slot);
+                    long balance = table.balance(slot);
+                    if (balance == AccountTable.CLOSED || credential.length == 0)
+                    {
+                        continue;
+                    }
+                    out.write(quote(table.name(slot)));
+                    out.write(',');
+                    out.write(Long.toString(balance));
+                    out.write(',');
+                    out.write(base64.encodeToString(credential));
+                    out.newLine();
+                    exported++;
+                }
+            }
+        }
+        else
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary), 64 * 1024)))
+            {
+                out.writeInt(MAGIC);
+                for (int slot = 0, size = table.size(); slot < size; slot++)
+                {
+                    byte[] credential = table.credential(slot);
+                    long balance = table.balance(slot);
+                    if (balance == AccountTable.CLOSED || credential.length == 0)
+                    {
+                        continue;
+                    }
+                    out.writeUTF(table.name(slot));
+                    out.writeLong(balance);
+                    out.writeShort(credential.length);
+                    out.write(credential);
+                    exported++;
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        ServerLog.log(ServerLog.Level.INFO, null, "Exported " + exported + " accounts to " + file + " in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+        return exported;
+    }
+
+    /**
+     * @param file a file
+     * @return true if the file is a CSV file
+     */
+    protected static boolean isCsv(Path file)
+    {
+        return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv");
+    }
+
+    /**
+     * this function splits a CSV line into its columns, a quoted column is
+     * taken as it is, the others are stripped
+     *
+     * @param line the line
+     * @return the columns, null if a quoted column isn't closed or is followed
+     *         by something else than a comma
+     */
+    protected static String[] columns(String line)
+    {
+        ArrayList<String> columns = new ArrayList<>(3);
+        int i = 0;
+        while (true)
+        {
+            while (i < line.length() && line.charAt(i) == ' ')
+            {
+                i++;
+            }
+            if (i < line.length() && line.charAt(i) == '"')
+            {
+                StringBuilder column = new StringBuilder();
+                for (i++;; i++)
+                {
+                    if (i == line.length())
+                    {
+                        return null;
+                    }
+                    char c = line.charAt(i);
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"')
+                    {
+                        column.append('"');
+                        i++;
+                    }
+                    else if (c == '"')
+                    {
+                        break;
+                    }
+                    else
+                    {
+                        column.append(c);
+                    }
+                }
+                columns.add(column.toString());
+                for (i++; i < line.length() && line.charAt(i) == ' '; i++)
+                    ;
+                if (i < line.length() && line.charAt(i) != ',')
+                {
+                    return null;
+                }
+            }
+            else
+            {
+                int comma = line.indexOf(',', i);
+                columns.add(line.substring(i, comma < 0 ? line.length() : comma).strip());
+                i = comma < 0 ? line.length() : comma;
+            }
+            if (i == line.length())
+            {
+                return columns.toArray(new String[0]);
+            }
+            // past the comma
+            i++;
+        }
+    }
+
+    /**
+     * @param column a column of a CSV line
+     * @return the column, quoted if it has a comma or a quote, or starts like
+     *         a comment or with a space
+     */
+    protected static String quote(String column)
+    {
+        if (column.indexOf(',') < 0 && column.indexOf('"') < 0 && !column.startsWith("#")
+                && column.equals(column.strip()))
+        {
+            return column;
+        }
+        return '"' + column.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * @param column the balance column of a CSV line
+     * @return the balance, -1 if it isn't a number
+     */
+    protected static long balance(String column)
+    {
+        try
+        {
+            return Long.parseLong(column.strip());
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package org.example.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.example.protocol.BinaryProtocol;
+
+/**
+ * a reusable parser for the lines of the text protocol, it works on the bytes
+ * of the line where they were read, so recognizing a command and parsing an
+ * amount doesn't allocate
+ *
+ * the commands are recognized as opcodes, the text commands share their opcode
+ * with the binary request they match, so both framings dispatch through the same
+ * table, BIN, STATS and the commands moving accounts between servers only
+ * exist as lines
+ *
+ * a line is read as whitespace separated tokens, next() moves to the following
+ * token and its bounds are in start and end
+ */
+public final class CommandParser
+{
+    // the opcode of the BIN command, past the opcodes of BinaryProtocol
+    public final static byte BIN = 9;
+
+    // the opcode of the STATS command, which only exists as a line
+    public final static byte STATS = 12;
+
+    // the opcodes of the commands a router moves accounts between servers with
+    public final static byte ACCOUNTS = 13;
+    public final static byte EXPORT = 14;
+    public final static byte IMPORT = 15;
+
+    // the opcode of the ROLE command, which tells a primary from a replica
+    public final static byte ROLE = 16;
+
+    // the opcodes of the commands importing and exporting the accounts in bulk
+    public final static byte LOAD = 17;
+    public final static byte DUMP = 18;
+
+    // the opcode of a command that isn't part of the protocol
+    public final static byte UNKNOWN = 0;
+
+    // the number of opcodes, including UNKNOWN
+    public final static int OPCODES = 20;
+
+    // returned by amount() for a token that isn't a number, every amount below
+    // zero is rejected by the commands anyway
+    public final static long NOT_A_NUMBER = Long.MIN_VALUE;
+
+    // the name of each command, indexed by opcode
+    public final static String[] NAMES = new String[OPCODES];
+
+    // the opcodes of the commands starting with each letter, indexed by letter
+    private final static byte[][] BY_INITIAL = new byte[26][];
+
+    static
+    {
+        NAMES[UNKNOWN] = "?";
+        NAMES[BinaryProtocol.UID] = "UID";
+        NAMES[BinaryProtocol.PWD] = "PWD";
+        NAMES[BinaryProtocol.NEW] = "NEW";
+        NAMES[BinaryProtocol.DEP] = "DEP";
+        NAMES[BinaryProtocol.WITH] = "WITH";
+        NAMES[BinaryProtocol.VIEW] = "VIEW";
+        NAMES[BinaryProtocol.LOGOUT] = "LOGOUT";
+        NAMES[BinaryProtocol.BATCH] = "BATCH";
+        NAMES[BIN] = BinaryProtocol.SWITCH;
+        NAMES[BinaryProtocol.RESUME] = "RESUME";
+        NAMES[BinaryProtocol.PING] = "PING";
+        NAMES[STATS] = "STATS";
+        NAMES[ACCOUNTS] = "ACCOUNTS";
+        NAMES[EXPORT] = "EXPORT";
+        NAMES[IMPORT] = "IMPORT";
+        NAMES[ROLE] = "ROLE";
+        NAMES[LOAD] = "LOAD";
+        NAMES[DUMP] = "DUMP";
+        NAMES[BinaryProtocol.XFER] = "XFER";
+
+        for (byte opcode = 1; opcode < OPCODES; opcode++)
+        {
+            int initial = NAMES[opcode].charAt(0) - 'A';
+            byte[] opcodes = BY_INITIAL[initial] == null ? new byte[0] : BY_INITIAL[initial];
+            opcodes = Arrays.copyOf(opcodes, opcodes.length + 1);
+            opcodes[opcodes.length - 1] = opcode;
+            BY_INITIAL[initial] = opcodes;
+        }
+    }
+
+    // the line being parsed
+    private byte[] bytes;
+    private int limit;
+
+    // the bounds of the current token
+    public int start;
+    public int end;
+
+    /**
+     * this function starts parsing a line
+     *
+     * @param _bytes the bytes holding the line
+     * @param offset the first byte of the line
+     * @param length the length of the line, without its terminator
+     * @return this parser
+     */
+    public CommandParser reset(byte[] _bytes, int offset, int length)
+    {
+        this.bytes = _bytes;
+        this.start = offset;
+        this.end = offset;
+        this.limit = offset + length;
+        return this;
+    }
+
+    /**
+     * this function moves to the next token
+     *
+     * @return true if there was a token, false at the end of the line
+     */
+    public boolean next()
+    {
+        int i = end;
+        while (i < limit && isWhitespace(bytes[i]))
+        {
+            i++;
+        }
+        start = i;
+        while (i < limit && !isWhitespace(bytes[i]))
+        {
+            i++;
+        }
+        end = i;
+        return start < end;
+    }
+
+    /**
+     * @return true if there is another token after the current one
+     */
+    public boolean hasNext()
+    {
+        for (int i = end; i < limit; i++)
+        {
+            if (!isWhitespace(bytes[i]))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * this function narrows the line to the bytes before the next separator,
+     * e.g. one operation of a BATCH, the current token stays where it is
+     *
+     * @param separator the byte ending the section
+     * @return the limit of the line before it was narrowed, to pass to widen(int)
+     */
+    public int narrow(byte separator)
+    {
+        int lineLimit = limit;
+        for (int i = end; i < lineLimit; i++)
+        {
+            if (bytes[i] == separator)
+            {
+                limit = i;
+                break;
+            }
+        }
+        return lineLimit;
+    }
+
+    /**
+     * this function gives back the bytes hidden by narrow(byte) and moves past
+     * the separator
+     *
+     * @param lineLimit the limit returned by narrow(byte)
+     */
+    public void widen(int lineLimit)
+    {
+        end = start = Math.min(limit + 1, lineLimit);
+        limit = lineLimit;
+    }
+
+    /**
+     * this function counts the sections of what's left of the line, the way
+     * String.split(String) does, empty sections at the end aren't counted
+     *
+     * @param separator the byte between two sections
+     * @return the number of sections
+     */
+    public int sections(byte separator)
+    {
+        // every separator before the last byte of a section starts another one
+        int sections = 0;
+        int separators = 0;
+        for (int i = end; i < limit; i++)
+        {
+            if (bytes[i] == separator)
+            {
+                separators++;
+            }
+            else
+            {
+                sections = separators + 1;
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * this function recognizes the current token as a command, ignoring case
+     *
+     * @return the opcode of the command, UNKNOWN if it isn't one
+     */
+    public byte opcode()
+    {
+        int initial = (bytes[start] | 0x20) - 'a';
+        if (initial < 0 || initial >= BY_INITIAL.length || BY_INITIAL[initial] == null)
+        {
+            return UNKNOWN;
+        }
+
+        for (byte opcode : BY_INITIAL[initial])
+        {
+            if (is(NAMES[opcode]))
+            {
+                return opcode;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * this function compares the current token to a word, ignoring case
+     *
+     * @param word the word in upper case, letters only
+     * @return true if the token is the word
+     */
+    public boolean is(String word)
+    {
+        if (end - start != word.length())
+        {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++)
+        {
+            // letters only differ from their upper case in the 0x20 bit
+            if ((bytes[start + i] | 0x20) != (word.charAt(i) | 0x20))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * this function parses the current token as a decimal amount, the way
+     * Long.parseLong(String) does
+     *
+     * @return the amount, or NOT_A_NUMBER if the token isn't a number that fits a long
+     */
+    public long amount()
+    {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+'))
+        {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        if (i == end)
+        {
+            return NOT_A_NUMBER;
+        }
+
+        // accumulating negatively, so Long.MIN_VALUE fits
+        long amount = 0;
+        for (; i < end; i++)
+        {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || amount < Long.MIN_VALUE / 10)
+            {
+                return NOT_A_NUMBER;
+            }
+            amount *= 10;
+            if (amount < Long.MIN_VALUE + digit)
+            {
+                return NOT_A_NUMBER;
+            }
+            amount -= digit;
+        }
+
+        if (negative)
+        {
+            return amount;
+        }
+        return amount == Long.MIN_VALUE ? NOT_A_NUMBER : -amount;
+    }
+
+    /**
+     * @return the current token
+     */
+    public String token()
+    {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * this function takes the rest of the line after the current token, without
+     * the one separator that follows the token
+     *
+     * @return the rest of the line, or null if there is no other token
+     */
+    public String rest()
+    {
+        if (!hasNext())
+        {
+            return null;
+        }
+        return new String(bytes, end + 1, limit - end - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param b a byte of the line
+     * @return true for the whitespace StringTokenizer splits on
+     */
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+}
@@ -0,0 +1,91 @@
+package org.example.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * the sessions that are currently connected to the server, a slot is taken when
+ * a client is admitted and given back when its session ends, so the limit is on
+ * concurrent clients rather than on clients over the lifetime of the server
+ */
+public class ConnectionRegistry
+{
+    // the reply sent to clients that can't be admitted
+    public final static String BUSY = "503 Busy";
+
+    protected final int limit;
+    protected final AtomicInteger active = new AtomicInteger();
+    protected final ConcurrentHashMap<String, ATMThread> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * @param _limit the maximum number of concurrent sessions
+     */
+    public ConnectionRegistry(int _limit)
+    {
+        this.limit = _limit;
+    }
+
+    /**
+     * this function takes a slot for a new session, if one is free
+     *
+     * @param id the name of the session
+     * @param session the session to track
+     * @return true if the session was admitted, false if the server is full
+     */
+    public boolean admit(String id, ATMThread session)
+    {
+        // reserving the slot first so concurrent admissions can't overshoot the limit
+        int current;
+        do
+        {
+            current = active.get();
+            if (current >= limit)
+            {
+                return false;
+            }
+        }
+        while (!active.compareAndSet(current, current + 1));
+
+        sessions.put(id, session);
+        return true;
+    }
+
+    /**
+     * this function gives back the slot of a session that ended, calling it more
+     * than once for the same session is harmless
+     *
+     * @param id the name of the session
+     */
+    public void release(String id)
+    {
+        if (sessions.remove(id) != null)
+        {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of sessions currently connected
+     */
+    public int active()
+    {
+        return active.get();
+    }
+
+    /**
+     * @return the maximum number of concurrent sessions
+     */
+    public int limit()
+    {
+        return limit;
+    }
+
+    /**
+     * @return a live view of the connected sessions
+     */
+    public Collection<ATMThread> sessions()
+    {
+        return sessions.values();
+    }
+}
@@ -0,0 +1,386 @@
+package org.example.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * hashes and checks passwords on a small pool of its own, so a slow password
+ * hash only ever holds up the logins and account creations waiting for it, the
+ * money commands never wait behind a storm of logins
+ *
+ * the pool is bounded, both in threads and in queued requests, a request that
+ * doesn't fit is failed straight away with a RejectedExecutionException, and
+ * every hashing thread keeps its own MessageDigest/SecretKeyFactory instances
+ *
+ * a credential records how it was made, [byte algorithm][int cost][u8 salt
+ * length][salt][hash], so the algorithm and the cost can be changed without
+ * breaking the accounts that already exist, credentials written before this
+ * format (a bare SHA-256 or MD5 digest) are still checked
+ */
+public class CredentialService
+{
+    // options
+    public final static String ALGORITHM = "pbkdf2";
+    public final static int PBKDF2_ITERATIONS = 100_000;
+    public final static int SHA256_ROUNDS = 1;
+    public final static int QUEUE = 1024;
+
+    // the ids of the algorithms, stored in the credentials
+    public final static byte SHA256_ID = 1;
+    public final static byte PBKDF2_ID = 2;
+
+    protected final static int SALT_BYTES = 16;
+    protected final static int HEADER = 1 + 4 + 1;
+
+    /**
+     * a way of hashing passwords, one instance is shared by every hashing thread
+     */
+    public interface Algorithm
+    {
+        // the id stored as the first byte of the credentials it makes
+        byte id();
+
+        // the name used by "--password-hash"
+        String name();
+
+        byte[] hash(String password, byte[] salt, int cost) throws GeneralSecurityException;
+    }
+
+    /**
+     * PBKDF2 with HMAC-SHA256, the cost is the number of iterations
+     */
+    public static class Pbkdf2 implements Algorithm
+    {
+        protected final ThreadLocal<SecretKeyFactory> factories = ThreadLocal.withInitial(() -> {
+            try
+            {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        public byte id()
+        {
+            return PBKDF2_ID;
+        }
+
+        public String name()
+        {
+            return "pbkdf2";
+        }
+
+        public byte[] hash(String password, byte[] salt, int cost) throws InvalidKeySpecException
+        {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, cost, 256);
+            try
+            {
+                return factories.get().generateSecret(spec).getEncoded();
+            }
+            finally
+            {
+                spec.clearPassword();
+            }
+        }
+    }
+
+    /**
+     * salted SHA-256, the cost is the number of rounds, cheap, for tests and
+     * machines that can't afford PBKDF2
+     */
+    public static class Sha256 implements Algorithm
+    {
+        protected final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> digest("SHA-256"));
+
+        public byte id()
+        {
+            return SHA256_ID;
+        }
+
+        public String name()
+        {
+            return "sha256";
+        }
+
+        public byte[] hash(String password, byte[] salt, int cost)
+        {
+            MessageDigest digest = digests.get();
+            digest.update(salt);
+            byte[] hash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
+            for (int i = 1; i < cost; i++)
+            {
+                hash = digest.digest(hash);
+            }
+            return hash;
+        }
+    }
+
+    // every algorithm a credential may have been made with, indexed by id
+    protected final Algorithm[] algorithms = new Algorithm[3];
+
+    // the algorithm and cost new credentials are made with
+    protected final Algorithm algorithm;
+    protected final int cost;
+
+    // the digests of the credentials made before they recorded their algorithm
+    protected final ThreadLocal<MessageDigest> legacyMd5 = ThreadLocal.withInitial(() -> digest("MD5"));
+    protected final ThreadLocal<MessageDigest> legacySha256 = ThreadLocal.withInitial(() -> digest("SHA-256"));
+
+    protected final ThreadPoolExecutor pool;
+    protected final SecureRandom random = new SecureRandom();
+
+    // the tokens that let a client log in again without its password
+    protected final SessionTokens tokens;
+
+    /**
+     * this function creates the service from the options "--password-hash"
+     * (pbkdf2 or sha256), "--password-cost", "--hash-threads" and "--hash-queue",
+     * and the session tokens from theirs
+     *
+     * @param config the options the server was started with
+     */
+    public CredentialService(ServerConfig config)
+    {
+        this(config.get("password-hash", ALGORITHM),
+                config.getInt("password-cost", -1),
+                config.getInt("hash-threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                config.getInt("hash-queue", QUEUE),
+                new SessionTokens(config));
+    }
+
+    /**
+     * @param algorithmName the algorithm new credentials are made with, pbkdf2 or sha256
+     * @param _cost the cost of the algorithm, -1 for its default
+     * @param threads the number of hashing threads
+     * @param queue the number of requests waiting for a hashing thread
+     * @param _tokens the session tokens handed out on login
+     */
+    public CredentialService(String algorithmName, int _cost, int threads, int queue, SessionTokens _tokens)
+    {
+        this.tokens = _tokens;
+        register(new Sha256());
+        register(new Pbkdf2());
+
+        Algorithm chosen = null;
+        for (Algorithm candidate : algorithms)
+        {
+            if (candidate != null && candidate.name().equalsIgnoreCase(algorithmName))
+            {
+                chosen = candidate;
+            }
+        }
+        if (chosen == null)
+        {
+            ServerLog.log(ServerLog.Level.WARN, null, "Unknown password hash {}, using {}", algorithmName, ALGORITHM);
+            chosen = algorithms[PBKDF2_ID];
+        }
+        this.algorithm = chosen;
+        this.cost = _cost > 0 ? _cost : chosen instanceof Pbkdf2 ? PBKDF2_ITERATIONS : SHA256_ROUNDS;
+
+        AtomicInteger hashers = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), task -> {
+                    Thread thread = new Thread(task, "Hasher #" + hashers.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * @return the session tokens handed out on login
+     */
+    public SessionTokens tokens()
+    {
+        return tokens;
+    }
+
+    /**
+     * this function adds an algorithm credentials can be checked against
+     *
+     * @param _algorithm the algorithm
+     */
+    protected void register(Algorithm _algorithm)
+    {
+        algorithms[_algorithm.id()] = _algorithm;
+    }
+
+    /**
+     * this function makes the credential of a new password, with a fresh salt
+     *
+     * @param password the password
+     * @return the credential, failed with a RejectedExecutionException if the pool is full
+     */
+    public CompletableFuture<byte[]> hash(String password)
+    {
+        return submit(() -> credential(password));
+    }
+
+    /**
+     * this function makes the credential of a new password on the caller's
+     * thread, a bulk import calls it from a fork/join pool of its own rather
+     * than queueing millions of passwords in front of the logins
+     *
+     * @param password the password
+     * @return the credential
+     */
+    public byte[] credential(String password)
+    {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = run(algorithm, password, salt, cost);
+
+        return ByteBuffer.allocate(HEADER + salt.length + hash.length)
+                .put(algorithm.id())
+                .putInt(cost)
+                .put((byte) salt.length)
+                .put(salt)
+                .put(hash)
+                .array();
+    }
+
+    /**
+     * this function checks a password against the credential of an account
+     *
+     * @param password the password, null never matches
+     * @param credential the credential stored with the account
+     * @return true if the password matches, failed with a RejectedExecutionException if the pool is full
+     */
+    public CompletableFuture<Boolean> verify(String password, byte[] credential)
+    {
+        if (password == null || credential == null)
+        {
+            return CompletableFuture.completedFuture(false);
+        }
+        return submit(() -> MessageDigest.isEqual(rehash(password, credential), expectedHash(credential)));
+    }
+
+    /**
+     * this function hashes a password the way a credential was made
+     *
+     * @param password the password
+     * @param credential the credential
+     * @return the hash to compare with the one of the credential
+     */
+    protected byte[] rehash(String password, byte[] credential)
+    {
+        // credentials made before they recorded their algorithm
+        if (isLegacy(credential))
+        {
+            MessageDigest digest = (credential.length == 16 ? legacyMd5 : legacySha256).get();
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(credential);
+        byte id = buffer.get();
+        int credentialCost = buffer.getInt();
+        byte[] salt = new byte[Byte.toUnsignedInt(buffer.get())];
+        buffer.get(salt);
+
+        Algorithm credentialAlgorithm = id > 0 && id < algorithms.length ? algorithms[id] : null;
+        if (credentialAlgorithm == null)
+        {
+            // nothing can match a credential of an unknown algorithm
+            return new byte[0];
+        }
+        return run(credentialAlgorithm, password, salt, credentialCost);
+    }
+
+    /**
+     * @param credential a credential
+     * @return the hash part of the credential
+     */
+    protected static byte[] expectedHash(byte[] credential)
+    {
+        if (isLegacy(credential))
+        {
+            return credential;
+        }
+        int start = HEADER + Byte.toUnsignedInt(credential[HEADER - 1]);
+        return Arrays.copyOfRange(credential, Math.min(start, credential.length), credential.length);
+    }
+
+    /**
+     * @param credential a credential
+     * @return true for the bare MD5 and SHA-256 digests stored by older servers
+     */
+    protected static boolean isLegacy(byte[] credential)
+    {
+        return credential.length == 16 || credential.length == 32;
+    }
+
+    /**
+     * this function runs an algorithm, turning its failures into unchecked ones
+     */
+    protected static byte[] run(Algorithm _algorithm, String password, byte[] salt, int _cost)
+    {
+        try
+        {
+            return _algorithm.hash(password, salt, _cost);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Error hashing with " + _algorithm.name(), e);
+        }
+    }
+
+    /**
+     * this function hands a hashing task to the pool
+     *
+     * @param task the task
+     * @return the result of the task
+     */
+    protected <T> CompletableFuture<T> submit(Supplier<T> task)
+    {
+        try
+        {
+            return CompletableFuture.supplyAsync(task, pool);
+        }
+        catch (RejectedExecutionException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @param name the name of a digest every JVM has
+     * @return a new instance of the digest
+     */
+    protected static MessageDigest digest(String name)
+    {
+        try
+        {
+            return MessageDigest.getInstance(name);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // MD5 and SHA-256 are required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * this function stops the hashing threads once the queued requests are done
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+}
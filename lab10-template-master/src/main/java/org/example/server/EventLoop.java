@@ -0,0 +1,195 @@
+package org.example.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a thread that multiplexes many client connections over one selector, every
+ * connection handed to the loop is served by it until it closes
+ */
+public class EventLoop extends Thread
+{
+    protected ATMServer server;
+    protected Selector selector;
+
+    // connections accepted by the server, waiting to be registered by this loop
+    protected ConcurrentLinkedQueue<NioConnection> pending = new ConcurrentLinkedQueue<>();
+
+    // connections whose worker finished running their commands
+    protected ConcurrentLinkedQueue<NioConnection> completed = new ConcurrentLinkedQueue<>();
+
+    // shared by every connection of the loop, only one of them reads at a time
+    protected ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    // when the connections were last checked for timeouts
+    protected long lastSweep = System.nanoTime();
+
+    public EventLoop(String _name, ATMServer _server) throws IOException
+    {
+        super(_name);
+
+        this.server = _server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * this function hands an accepted connection over to the loop, it may be
+     * called from any thread
+     *
+     * @param connection the accepted connection
+     */
+    public void register(NioConnection connection)
+    {
+        pending.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * this function tells the loop that a connection's worker is done, it may be
+     * called from any thread
+     *
+     * @param connection the connection
+     */
+    public void complete(NioConnection connection)
+    {
+        completed.add(connection);
+        selector.wakeup();
+    }
+
+    public void run()
+    {
+        while (!isInterrupted())
+        {
+            try
+            {
+                // waking up now and then to close the connections that timed out
+                selector.select(SessionLifecycle.SWEEP_MILLIS);
+            }
+            catch (IOException e)
+            {
+                ServerLog.log(ServerLog.Level.ERROR, getName(), "Error waiting on the selector.");
+                return;
+            }
+
+            registerPending();
+            resumeCompleted();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioConnection connection = (NioConnection) key.attachment();
+                try
+                {
+                    if (key.isValid() && key.isWritable())
+                    {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable())
+                    {
+                        connection.onReadable(readBuffer);
+                    }
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // a broken connection must never take the loop down with it
+                    ServerLog.log(ServerLog.Level.ERROR, connection.id, "{}", e);
+                    connection.close();
+                }
+            }
+
+            sweep();
+        }
+    }
+
+    /**
+     * this function ends the connections that were idle or open for too long, and
+     * every connection once the server is shutting down, a connection whose worker
+     * is running is ended once the worker is done
+     */
+    protected void sweep()
+    {
+        long now = System.nanoTime();
+        boolean draining = server.lifecycle.draining();
+        if (!draining && now - lastSweep < TimeUnit.MILLISECONDS.toNanos(SessionLifecycle.SWEEP_MILLIS))
+        {
+            return;
+        }
+        lastSweep = now;
+
+        for (SelectionKey key : selector.keys())
+        {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection == null || connection.working || connection.closing)
+            {
+                continue;
+            }
+
+            String reason = draining ? "Server is shutting down"
+                    : server.lifecycle.expired(connection.openedAt, connection.lastActive, now);
+            if (reason != null)
+            {
+                connection.drain(reason);
+            }
+        }
+    }
+
+    /**
+     * this function wakes the loop up, e.g. so it notices the server is shutting
+     * down, it may be called from any thread
+     */
+    public void wakeup()
+    {
+        selector.wakeup();
+    }
+
+    /**
+     * this function registers the connections accepted since the last select
+     */
+    protected void registerPending()
+    {
+        NioConnection connection;
+        while ((connection = pending.poll()) != null)
+        {
+            try
+            {
+                connection.channel.configureBlocking(false);
+                SelectionKey key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.open(this, key);
+            }
+            catch (IOException e)
+            {
+                ServerLog.log(ServerLog.Level.ERROR, connection.id, "Error registering the connection.");
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * this function flushes the connections whose worker finished since the last
+     * select and lets them read again
+     */
+    protected void resumeCompleted()
+    {
+        NioConnection connection;
+        while ((connection = completed.poll()) != null)
+        {
+            try
+            {
+                connection.onWorkDone();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                ServerLog.log(ServerLog.Level.ERROR, connection.id, "{}", e);
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,624 @@
+package org.example.server;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * the accounts of the bank, shared by every session
+ *
+ * every operation is atomic on its own, money operations update the balance of a
+ * single account with compare-and-set under the lock of one of many stripes of
+ * accounts, so operations on accounts of different stripes never wait on each
+ * other, and operations on the same account never lose an update
+ *
+ * sessions look their account up once and then work on its slot, so deposits,
+ * withdrawals and balance reads don't allocate
+ *
+ * reading a balance never takes a lock: changes that check several operations,
+ * like a batch, work out the final balance on the side and install it with a
+ * single compare-and-set, so a VIEW costs one load however busy the account is,
+ * a change spanning several accounts installs each balance with its own, so a
+ * read sees every balance whole, but not all of them changed at once
+ *
+ * a change holds the lock of its account's stripe while it's applied and, when a
+ * write-ahead log is attached, while it's logged, so a change made on top of
+ * another one to the same account is logged after it and can't reach the disk
+ * ahead of it, the operation only returns once the record is on disk, so a
+ * change that was acknowledged survives a restart, a balance read may show a
+ * change that isn't on disk yet, but it's never acknowledged before it is
+ *
+ * a transfer holds the locks of both accounts' stripes, taken in the order of
+ * the stripes so two transfers can't deadlock, it checks both accounts before
+ * either changes, then debits, credits and logs both in one record, so it's
+ * atomic for every other change, which waits for the locks and can't act on
+ * one half without the other, and for recovery, which replays both halves or
+ * neither, it isn't for balance reads, which take no lock: a VIEW may see the
+ * payer debited before the payee is credited, and both halves before they're
+ * logged, unrelated transfers only meet when their accounts share a stripe,
+ * and the transfers to one popular account wait on its lock for a few loads
+ * and stores
+ *
+ * an account can move out to another server: it's closed here and the
+ * operations of the sessions still holding its slot fail with MOVED
+ *
+ * on a replica the accounts only change with the records shipped by its
+ * primary, the sessions refuse the changes of their clients
+ */
+public class Ledger
+{
+    // results of the money operations that aren't a balance
+    public final static int NO_ACCOUNT = AccountTable.NO_SLOT;
+    public final static long INSUFFICIENT_FUNDS = -2;
+    public final static long OVERFLOW = -3;
+    public final static long MOVED = -4;
+    public final static long NO_RECIPIENT = -5;
+
+    // the locks of the accounts, by slot
+    protected final static int STRIPES = 1024;
+
+    protected final AccountTable table = new AccountTable();
+
+    // null if the ledger only lives in memory
+    protected WriteAheadLog log = null;
+
+    // held by every change to an account while it's applied and logged, a
+    // transfer takes two in the order of the stripes, close() takes one after
+    // the table's lock
+    protected final Object[] locks = new Object[STRIPES];
+
+    // set on a replica, whose accounts only change with the records of its primary
+    protected volatile Replica replica = null;
+
+    public Ledger()
+    {
+        for (int i = 0; i < STRIPES; i++)
+        {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * this function rebuilds the ledger from a log and then logs every later
+     * change to it, it must be called before the ledger is shared
+     *
+     * @param _log the log, not started yet
+     * @param from the LSN of the snapshot the ledger was loaded from, 0 if none
+     * @return the number of records replayed
+     * @throws IOException if the log can't be read
+     */
+    public long recover(WriteAheadLog _log, long from) throws IOException
+    {
+        long records = _log.replay(applier(), from);
+
+        this.log = _log;
+        _log.start();
+        return records;
+    }
+
+    /**
+     * this function makes the handler that applies the records of a log to the
+     * accounts, recovery replays the ledger's own log with it, and a replica
+     * the records its primary ships, which it appends to its own log as well,
+     * so the same records end up at the same LSNs
+     *
+     * @return the handler
+     */
+    protected WriteAheadLog.Handler applier()
+    {
+        return new WriteAheadLog.Handler()
+        {
+            @Override
+            public void onOpen(int slot, String user, byte[] credential, long balance)
+            {
+                table.restore(slot, user, credential, balance);
+                if (log != null)
+                {
+                    log.appendOpen(slot, user, credential, balance);
+                }
+            }
+
+            @Override
+            public void onDeposit(int slot, long amount)
+            {
+                replay(slot, amount);
+                if (log != null)
+                {
+                    log.appendAmount(WriteAheadLog.DEPOSIT, slot, amount);
+                }
+            }
+
+            @Override
+            public void onWithdraw(int slot, long amount)
+            {
+                replay(slot, -amount);
+                if (log != null)
+                {
+                    log.appendAmount(WriteAheadLog.WITHDRAW, slot, amount);
+                }
+            }
+
+            @Override
+            public void onBatch(int slot, long[] amounts)
+            {
+                for (long amount : amounts)
+                {
+                    replay(slot, amount);
+                }
+                if (log != null)
+                {
+                    log.appendBatch(slot, amounts, amounts.length);
+                }
+            }
+
+            @Override
+            public void onClose(int slot, long balance)
+            {
+                table.close(slot);
+                if (log != null)
+                {
+                    log.appendClose(slot, balance);
+                }
+            }
+
+            @Override
+            public void onTransfer(int from, int to, long amount)
+            {
+                replay(from, -amount);
+                replay(to, amount);
+                if (log != null)
+                {
+                    log.appendTransfer(from, to, amount);
+                }
+            }
+        };
+    }
+
+    /**
+     * this function applies a logged change to a balance
+     *
+     * @param slot the slot of the account
+     * @param amount the change, negative for a withdrawal
+     */
+    protected void replay(int slot, long amount)
+    {
+        // a log has no change of an account after its CLOSE, unless it was
+        // written before changes were logged in the step that applies them
+        if (table.balance(slot) != AccountTable.CLOSED)
+        {
+            table.addAndGet(slot, amount);
+        }
+    }
+
+    /**
+     * @return the replica this ledger follows its primary with, null on a primary
+     */
+    public Replica replica()
+    {
+        return replica;
+    }
+
+    /**
+     * @return the end of the log on disk, 0 if the ledger only lives in memory
+     */
+    public long lsn()
+    {
+        return log == null ? 0 : log.durableLsn();
+    }
+
+    /**
+     * this function creates an account unless the username is taken
+     *
+     * @param user the username
+     * @param credential the hashed password
+     * @param balance the opening balance
+     * @return true if the account was created, false if the username exists
+     */
+    public boolean open(String user, byte[] credential, long balance)
+    {
+        long lsn = 0;
+
+        // logging the account before its slot is published, so no change to the
+        // account can reach the log ahead of it
+        synchronized (table)
+        {
+            if (exists(user))
+            {
+                return false;
+            }
+            if (log != null)
+            {
+                lsn = log.appendOpen(table.size(), user, credential, balance);
+            }
+            table.add(user, credential, balance);
+        }
+
+        awaitDurable(lsn);
+        return true;
+    }
+
+    /**
+     * this function creates many accounts at once, like open() does one at a
+     * time, but the accounts are logged together and the disk is waited for once
+     *
+     * @param users the usernames
+     * @param credentials the hashed passwords
+     * @param balances the opening balances
+     * @param count the number of accounts
+     * @return the number of accounts created, the usernames that exist are skipped
+     */
+    public int openAll(String[] users, byte[][] credentials, long[] balances, int count)
+    {
+        long lsn = 0;
+        int opened = 0;
+
+        synchronized (table)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                if (exists(users[i]))
+                {
+                    continue;
+                }
+                if (log != null)
+                {
+                    lsn = log.appendOpen(table.size(), users[i], credentials[i], balances[i]);
+                }
+                table.add(users[i], credentials[i], balances[i]);
+                opened++;
+            }
+        }
+
+        awaitDurable(lsn);
+        return opened;
+    }
+
+    /**
+     * this function closes an account so it can move to another server, the
+     * sessions logged in to it get MOVED from then on
+     *
+     * @param user the username
+     * @return the balance the account had when it closed, or NO_ACCOUNT
+     */
+    public long close(String user)
+    {
+        long lsn = 0;
+        long current;
+
+        synchronized (table)
+        {
+            int slot = table.slot(user);
+            if (slot == AccountTable.NO_SLOT)
+            {
+                return NO_ACCOUNT;
+            }
+
+            // waiting for the changes under way to be logged
+            synchronized (lock(slot))
+            {
+                do
+                {
+                    current = table.balance(slot);
+                }
+                while (!table.compareAndSet(slot, current, AccountTable.CLOSED));
+
+                if (log != null)
+                {
+                    lsn = log.appendClose(slot, current);
+                }
+                table.close(slot);
+            }
+        }
+
+        awaitDurable(lsn);
+        return current;
+    }
+
+    /**
+     * this function lists the open accounts a page at a time, in slot order
+     *
+     * @param from the slot to start at, 0 for the first page
+     * @param count the most usernames to list
+     * @param users receives the usernames
+     * @return the slot the next page starts at, -1 after the last page
+     */
+    public int accounts(int from, int count, List<String> users)
+    {
+        int size = table.size();
+        int slot = Math.max(0, from);
+        for (; slot < size && users.size() < count; slot++)
+        {
+            if (table.balance(slot) != AccountTable.CLOSED)
+            {
+                users.add(table.name(slot));
+            }
+        }
+        return slot < size ? slot : -1;
+    }
+
+    /**
+     * @param user the username
+     * @return true if the user has an account
+     */
+    public boolean exists(String user)
+    {
+        return table.slot(user) != AccountTable.NO_SLOT;
+    }
+
+    /**
+     * @param user the username
+     * @return the slot of the user's account, or NO_ACCOUNT
+     */
+    public int slot(String user)
+    {
+        return table.slot(user);
+    }
+
+    /**
+     * @param slot the slot of an account
+     * @return the hashed password of the account
+     */
+    public byte[] credential(int slot)
+    {
+        return table.credential(slot);
+    }
+
+    /**
+     * this function reads a balance, it never waits, not even for a change to
+     * the same account, and sees the balance the last change left
+     *
+     * @param slot the slot of an account, or NO_ACCOUNT
+     * @return the balance of the account, NO_ACCOUNT or MOVED
+     */
+    public long balance(int slot)
+    {
+        if (slot == NO_ACCOUNT)
+        {
+            return NO_ACCOUNT;
+        }
+        long balance = table.balance(slot);
+        return balance == AccountTable.CLOSED ? MOVED : balance;
+    }
+
+    /**
+     * this function adds money to an account
+     *
+     * @param slot the slot of an account, or NO_ACCOUNT
+     * @param amount the amount to add, not negative
+     * @return the new balance of the account, NO_ACCOUNT, MOVED or OVERFLOW
+     */
+    public long deposit(int slot, long amount)
+    {
+        if (slot == NO_ACCOUNT)
+        {
+            return NO_ACCOUNT;
+        }
+
+        long lsn = 0;
+        long current;
+        synchronized (lock(slot))
+        {
+            do
+            {
+                current = table.balance(slot);
+                if (current == AccountTable.CLOSED)
+                {
+                    return MOVED;
+                }
+                if (amount > Long.MAX_VALUE - current)
+                {
+                    return OVERFLOW;
+                }
+            }
+            while (!table.compareAndSet(slot, current, current + amount));
+
+            if (log != null)
+            {
+                lsn = log.appendAmount(WriteAheadLog.DEPOSIT, slot, amount);
+            }
+        }
+
+        awaitDurable(lsn);
+        return current + amount;
+    }
+
+    /**
+     * this function takes money out of an account if the balance covers it, the
+     * check and the debit happen as one step
+     *
+     * @param slot the slot of an account, or NO_ACCOUNT
+     * @param amount the amount to take out, not negative
+     * @return the new balance of the account, NO_ACCOUNT, MOVED or INSUFFICIENT_FUNDS
+     */
+    public long withdraw(int slot, long amount)
+    {
+        if (slot == NO_ACCOUNT)
+        {
+            return NO_ACCOUNT;
+        }
+
+        long lsn = 0;
+        long current;
+        synchronized (lock(slot))
+        {
+            do
+            {
+                current = table.balance(slot);
+                if (current == AccountTable.CLOSED)
+                {
+                    return MOVED;
+                }
+                if (amount > current)
+                {
+                    return INSUFFICIENT_FUNDS;
+                }
+            }
+            while (!table.compareAndSet(slot, current, current - amount));
+
+            if (log != null)
+            {
+                lsn = log.appendAmount(WriteAheadLog.WITHDRAW, slot, amount);
+            }
+        }
+
+        awaitDurable(lsn);
+        return current - amount;
+    }
+
+    /**
+     * this function applies several deposits and withdrawals to one account as a
+     * single change, either every operation is applied or none is
+     *
+     * the operations are checked in order against the running balance, and the
+     * final balance replaces the balance they were checked against in one
+     * compare-and-set, so no other change can land in the middle of the batch
+     *
+     * @param slot the slot of an account, or NO_ACCOUNT
+     * @param amounts the operations, positive to deposit and negative to withdraw
+     * @param count the number of operations to apply
+     * @param results receives the balance after each operation, or the reason
+     *                (NO_ACCOUNT, MOVED, INSUFFICIENT_FUNDS, OVERFLOW) the failing
+     *                operation was rejected
+     * @return -1 if the batch was applied, the index of the failing operation
+     *         otherwise
+     */
+    public int batch(int slot, long[] amounts, int count, long[] results)
+    {
+        if (slot == NO_ACCOUNT)
+        {
+            results[0] = NO_ACCOUNT;
+            return 0;
+        }
+
+        long lsn = 0;
+        long current;
+        long balance;
+        synchronized (lock(slot))
+        {
+            do
+            {
+                current = table.balance(slot);
+                if (current == AccountTable.CLOSED)
+                {
+                    results[0] = MOVED;
+                    return 0;
+                }
+                balance = current;
+                for (int i = 0; i < count; i++)
+                {
+                    long amount = amounts[i];
+                    if (amount < 0 && -amount > balance)
+                    {
+                        results[i] = INSUFFICIENT_FUNDS;
+                        return i;
+                    }
+                    if (amount > 0 && amount > Long.MAX_VALUE - balance)
+                    {
+                        results[i] = OVERFLOW;
+                        return i;
+                    }
+                    balance += amount;
+                    results[i] = balance;
+                }
+            }
+            while (!table.compareAndSet(slot, current, balance));
+
+            if (log != null)
+            {
+                lsn = log.appendBatch(slot, amounts, count);
+            }
+        }
+
+        awaitDurable(lsn);
+        return -1;
+    }
+
+    /**
+     * this function moves money from one account to another as a single change:
+     * both accounts are checked while their locks keep them from changing, then
+     * the paying account is debited, the receiving account credited and both are
+     * logged in one record before the locks are let go
+     *
+     * @param from the slot of the paying account, or NO_ACCOUNT
+     * @param to the slot of the receiving account, or NO_ACCOUNT
+     * @param amount the amount to move, not negative
+     * @return the new balance of the paying account, NO_ACCOUNT, MOVED,
+     *         NO_RECIPIENT, INSUFFICIENT_FUNDS or OVERFLOW
+     */
+    public long transfer(int from, int to, long amount)
+    {
+        if (from == NO_ACCOUNT)
+        {
+            return NO_ACCOUNT;
+        }
+        if (to == NO_ACCOUNT)
+        {
+            return NO_RECIPIENT;
+        }
+
+        // the lower stripe first, two accounts of one stripe take the same lock twice
+        Object first = lock(Math.min(from & (STRIPES - 1), to & (STRIPES - 1)));
+        Object second = lock(Math.max(from & (STRIPES - 1), to & (STRIPES - 1)));
+
+        long lsn = 0;
+        long current;
+        synchronized (first)
+        {
+            synchronized (second)
+            {
+                current = table.balance(from);
+                if (current == AccountTable.CLOSED)
+                {
+                    return MOVED;
+                }
+                if (amount > current)
+                {
+                    return INSUFFICIENT_FUNDS;
+                }
+                long received = table.balance(to);
+                if (received == AccountTable.CLOSED)
+                {
+                    return NO_RECIPIENT;
+                }
+                if (amount > Long.MAX_VALUE - received)
+                {
+                    return OVERFLOW;
+                }
+
+                // every other change to the two accounts waits for the locks,
+                // so the checks still hold
+                table.addAndGet(from, -amount);
+                table.addAndGet(to, amount);
+                if (log != null)
+                {
+                    lsn = log.appendTransfer(from, to, amount);
+                }
+            }
+        }
+
+        awaitDurable(lsn);
+        return current - amount;
+    }
+
+    /**
+     * @param slot the slot of an account
+     * @return the lock the changes to the account hold
+     */
+    protected Object lock(int slot)
+    {
+        return locks[slot & (STRIPES - 1)];
+    }
+
+    /**
+     * this function waits for a logged change to reach the disk
+     *
+     * @param lsn the LSN of the change, 0 if nothing was logged
+     * @throws java.io.UncheckedIOException if the log failed
+     */
+    protected void awaitDurable(long lsn)
+    {
+        if (log != null && lsn > 0)
+        {
+            log.awaitDurable(lsn);
+        }
+    }
+}
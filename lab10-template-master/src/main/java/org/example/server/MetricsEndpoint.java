@@ -0,0 +1,106 @@
+package org.example.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * serves the metrics of the server over HTTP for scrapers, "GET /metrics"
+ * answers with the text format of Prometheus, it listens on the loopback
+ * address unless told otherwise, since anyone reaching it sees the traffic of
+ * the server
+ */
+public class MetricsEndpoint
+{
+    // options
+    public final static String HOST = "127.0.0.1";
+    public final static String PATH = "/metrics";
+
+    protected final HttpServer http;
+    protected final ServerMetrics metrics;
+
+    /**
+     * this function starts the endpoint on its own thread
+     *
+     * @param host the address to listen on
+     * @param port the port to listen on
+     * @param _metrics the metrics served
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsEndpoint(String host, int port, ServerMetrics _metrics) throws IOException
+    {
+        this.metrics = _metrics;
+        this.http = HttpServer.create(new InetSocketAddress(host, port), 0);
+        http.createContext(PATH, this::handle);
+        http.start();
+    }
+
+    /**
+     * this function starts the endpoint if the server was given "--metrics-port",
+     * and "--metrics-host" (default 127.0.0.1)
+     *
+     * @param config the options the server was started with
+     * @param metrics the metrics served
+     * @return the endpoint, null if it's turned off or its port can't be bound
+     */
+    public static MetricsEndpoint start(ServerConfig config, ServerMetrics metrics)
+    {
+        int port = config.getInt("metrics-port", 0);
+        if (port <= 0)
+        {
+            return null;
+        }
+        String host = config.get("metrics-host", HOST);
+        try
+        {
+            MetricsEndpoint endpoint = new MetricsEndpoint(host, port, metrics);
+            ServerLog.log(ServerLog.Level.INFO, null, "Serving metrics on http://" + host + ":" + port + PATH);
+            return endpoint;
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.WARN, null, "Could not serve metrics on port {}: {}", port, e);
+            return null;
+        }
+    }
+
+    /**
+     * this function answers a request of a scraper
+     *
+     * @param exchange the request and its response
+     * @throws IOException if the response can't be written
+     */
+    protected void handle(HttpExchange exchange) throws IOException
+    {
+        try (exchange)
+        {
+            if (!exchange.getRequestMethod().equals("GET") || !exchange.getRequestURI().getPath().equals(PATH))
+            {
+                exchange.sendResponseHeaders(exchange.getRequestMethod().equals("GET") ? 404 : 405, -1);
+                return;
+            }
+
+            StringBuilder text = new StringBuilder(4096);
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * this function stops serving the metrics
+     */
+    public void stop()
+    {
+        http.stop(0);
+    }
+}
@@ -0,0 +1,367 @@
+package org.example.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.example.protocol.BinaryProtocol;
+
+/**
+ * the state of one client connection owned by an event loop, it frames the line
+ * protocol, or the binary frames once the session switched to them, out of the
+ * bytes read from the channel and hands the complete commands to an ATMThread
+ * session
+ *
+ * commands may block (a durable change waits for the write-ahead log), so the
+ * loop never runs them itself, the lines of a read are run in order by a worker
+ * on a virtual thread and the loop stops reading the connection until the worker
+ * is done, an idle connection holds no thread at all
+ */
+public class NioConnection
+{
+    // lines longer than this are not part of the protocol, drop the client
+    public final static int MAX_LINE_LENGTH = 8 * 1024;
+
+    protected String id;
+    protected ATMServer server;
+    protected SocketChannel channel;
+    protected SelectionKey key = null;
+    protected EventLoop loop = null;
+
+    // the command logic, its responses are collected in the buffer below
+    protected ResponseBuffer responses = new ResponseBuffer();
+    protected ATMThread session;
+
+    // the bytes read and not run yet, in write mode, only touched by the loop
+    // while no worker runs, and by the worker while it runs
+    protected ByteBuffer inbound = ByteBuffer.allocate(64);
+    protected boolean working = false;
+
+    // how far the inbound bytes were searched for the end of a line
+    protected int scanned = 0;
+
+    // bytes the channel couldn't accept yet
+    protected ByteBuffer pendingOut = null;
+
+    // set once the session is over, the connection closes after the last flush
+    protected boolean closing = false;
+    protected boolean closed = false;
+
+    // for the timeouts of the session, only touched by the loop
+    protected final long openedAt = System.nanoTime();
+    protected long lastActive = openedAt;
+
+    public NioConnection(String _id, SocketChannel _channel, ATMServer _server)
+    {
+        this.id = _id;
+        this.server = _server;
+        this.channel = _channel;
+        this.session = new ATMThread(_id, responses, _server.ledger, _server.credentials);
+    }
+
+    /**
+     * this function starts the session once the loop has registered the channel,
+     * and sends the greeting
+     *
+     * @param _loop the loop serving the connection
+     * @param _key the registration of the channel with the loop's selector
+     * @throws IOException if the greeting couldn't be written
+     */
+    public void open(EventLoop _loop, SelectionKey _key) throws IOException
+    {
+        this.loop = _loop;
+        this.key = _key;
+        session.greet();
+        flush();
+    }
+
+    /**
+     * this function reads what's available on the channel and hands the complete
+     * commands to a worker
+     *
+     * @param buffer the event loop's read buffer
+     * @throws IOException if reading the channel fails
+     */
+    public void onReadable(ByteBuffer buffer) throws IOException
+    {
+        buffer.clear();
+        int read = channel.read(buffer);
+
+        // the client closed its side of the connection
+        if (read < 0)
+        {
+            close();
+            return;
+        }
+
+        lastActive = System.nanoTime();
+        ServerMetrics.SERVER.bytesIn(read);
+        buffer.flip();
+        if (inbound.remaining() < read)
+        {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(inbound.position() + read, inbound.capacity() * 2));
+            inbound = grown.put(inbound.flip());
+        }
+        inbound.put(buffer);
+
+        if (hasCommand())
+        {
+            working = true;
+            updateInterest();
+            server.workers.execute(this::work);
+        }
+        else if (!session.binary && inbound.position() > MAX_LINE_LENGTH)
+        {
+            throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+        }
+    }
+
+    /**
+     * this function tells whether the inbound bytes hold a complete command of the
+     * session's current framing
+     *
+     * @return true if there is a command to run
+     */
+    protected boolean hasCommand()
+    {
+        if (session.binary)
+        {
+            return inbound.position() >= 2
+                    && inbound.position() >= 2 + Short.toUnsignedInt(inbound.getShort(0));
+        }
+
+        byte[] bytes = inbound.array();
+        for (; scanned < inbound.position(); scanned++)
+        {
+            if (bytes[scanned] == '\n')
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * this function runs the complete commands of the inbound bytes through the
+     * session, on a worker, a BIN command switches the framing of the commands
+     * that follow it
+     */
+    protected void work()
+    {
+        inbound.flip();
+        try
+        {
+            // a command returning false ends the session just like ATMThread.run()
+            while (!closing)
+            {
+                if (session.binary)
+                {
+                    int length = BinaryProtocol.completeFrame(inbound);
+                    if (length == 0)
+                    {
+                        break;
+                    }
+
+                    int limit = inbound.limit();
+                    int end = inbound.position() + length;
+                    inbound.position(inbound.position() + 2).limit(end);
+                    closing = !session.processFrame(inbound);
+                    inbound.limit(limit).position(end);
+                    continue;
+                }
+
+                // the line is parsed where it was read, without copying it
+                int start = inbound.position();
+                int end = lineEnd();
+                if (end < 0)
+                {
+                    break;
+                }
+
+                // dropping the carriage return of clients that send "\r\n"
+                int length = end - start;
+                if (length > 0 && inbound.get(end - 1) == '\r')
+                {
+                    length--;
+                }
+
+                inbound.position(end + 1);
+                closing = !session.processLine(inbound.array(), start, length);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            session.err("Error running command: " + e);
+            closing = true;
+        }
+        finally
+        {
+            inbound.compact();
+            scanned = 0;
+            loop.complete(this);
+        }
+    }
+
+    /**
+     * this function finds the end of the next complete line of the inbound bytes
+     *
+     * @return the position of the line's '\n', or -1 if no line is complete
+     */
+    protected int lineEnd()
+    {
+        byte[] bytes = inbound.array();
+        for (int i = inbound.position(); i < inbound.limit(); i++)
+        {
+            if (bytes[i] == '\n')
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * this function is called by the loop once the worker is done, it writes the
+     * responses of every command of the read and resumes reading
+     *
+     * @throws IOException if writing the channel fails
+     */
+    public void onWorkDone() throws IOException
+    {
+        working = false;
+
+        // the commands that were received are answered, then a draining server lets go
+        if (server.lifecycle.draining())
+        {
+            closing = true;
+        }
+        if (!closed)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * this function ends the session once its responses are written, it's called
+     * by the loop while no worker runs, e.g. when the session timed out or the
+     * server shuts down
+     *
+     * @param reason why the session ends
+     */
+    public void drain(String reason)
+    {
+        session.log(reason);
+        closing = true;
+        try
+        {
+            flush();
+        }
+        catch (IOException e)
+        {
+            close();
+        }
+    }
+
+    /**
+     * this function writes the responses that the channel couldn't take earlier
+     *
+     * @throws IOException if writing the channel fails
+     */
+    public void onWritable() throws IOException
+    {
+        flush();
+    }
+
+    /**
+     * this function writes as much of the buffered responses as the channel
+     * accepts, and waits for the channel to become writable for the rest
+     *
+     * @throws IOException if writing the channel fails
+     */
+    protected void flush() throws IOException
+    {
+        // the responses belong to the worker while it runs
+        if (!working && !responses.isEmpty())
+        {
+            ByteBuffer bytes = responses.drain();
+            if (pendingOut != null && pendingOut.hasRemaining())
+            {
+                // keeping the order of the responses
+                ByteBuffer joined = ByteBuffer.allocate(pendingOut.remaining() + bytes.remaining());
+                joined.put(pendingOut).put(bytes).flip();
+                bytes = joined;
+            }
+            pendingOut = bytes;
+        }
+
+        if (pendingOut != null)
+        {
+            ServerMetrics.SERVER.bytesOut(channel.write(pendingOut));
+            if (!pendingOut.hasRemaining())
+            {
+                pendingOut = null;
+            }
+        }
+
+        if (closing && !working && pendingOut == null)
+        {
+            close();
+            return;
+        }
+        updateInterest();
+    }
+
+    /**
+     * this function tells the selector what the connection is waiting for
+     */
+    protected void updateInterest()
+    {
+        int ops = 0;
+        if (!working && !closing)
+        {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (pendingOut != null)
+        {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * this function closes the connection, gives back its slot in the registry
+     * and logs the disconnect
+     */
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+
+        if (key != null)
+        {
+            key.cancel();
+        }
+        server.registry.release(id);
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            session.warn("Error closing the connection: {}", e);
+        }
+
+        if (session.user != null)
+        {
+            session.log(session.user + " disconnected");
+        }
+        else
+        {
+            session.log("Client disconnected");
+        }
+    }
+}
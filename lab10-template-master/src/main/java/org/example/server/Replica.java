@@ -0,0 +1,266 @@
+package org.example.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * follows a primary: it connects to the "--replication-port" of the primary,
+ * applies the records the primary ships in the order of its log, appends them
+ * to its own log, and reconnects from where it stopped when the connection drops
+ *
+ * the sessions of a replica serve logins and balances and send every change to
+ * the primary with "307 <host:port>", a balance read on a replica is as old as
+ * its staleness, the time since it last had every record the primary had on
+ * disk, past "--max-staleness-ms" balances go to the primary as well
+ */
+public class Replica extends Thread
+{
+    // options
+    public final static int MAX_STALENESS_MILLIS = 5000;
+    public final static int RECONNECT_MILLIS = 1000;
+
+    // a primary that sent nothing for this long is taken for gone, it sends a heartbeat every 100 ms
+    public final static int TIMEOUT_MILLIS = 5000;
+
+    protected final String host;
+    protected final int port;
+    protected final Ledger ledger;
+    protected final WriteAheadLog.Handler applier;
+    protected final long maxStalenessNanos;
+    protected final byte[] secret;
+
+    // the LSN of the primary's log the ledger has the records up to
+    protected volatile long position;
+
+    // System.nanoTime() when the ledger last had every record of the primary, 0 if it never had
+    protected volatile long currentAt = 0;
+
+    // host:port the clients are sent to for changes, null until the primary answers
+    protected volatile String primary = null;
+
+    protected volatile Socket socket = null;
+    protected volatile boolean closed = false;
+
+    /**
+     * @param _address host:port of the replication port of the primary
+     * @param _ledger the ledger following the primary, recovered from its own log if it has one
+     * @param _maxStalenessMillis how old the balances read on the replica may be
+     * @param _secret the "--replication-secret" of the primary
+     */
+    public Replica(String _address, Ledger _ledger, long _maxStalenessMillis, String _secret)
+    {
+        super("Replica");
+        setDaemon(true);
+
+        int colon = _address.lastIndexOf(':');
+        if (colon <= 0)
+        {
+            throw new IllegalArgumentException("The primary must be host:port, not " + _address);
+        }
+        this.host = _address.substring(0, colon);
+        this.port = Integer.parseInt(_address.substring(colon + 1));
+        this.ledger = _ledger;
+        this.applier = _ledger.applier();
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(_maxStalenessMillis);
+        if (_secret.isEmpty())
+        {
+            throw new IllegalArgumentException("A replica needs the --replication-secret of its primary");
+        }
+        this.secret = _secret.getBytes(StandardCharsets.UTF_8);
+        this.position = _ledger.lsn();
+    }
+
+    /**
+     * this function makes the server a replica if it was given "--replica-of",
+     * with "--replication-secret" and "--max-staleness-ms", it must be called
+     * once the ledger is recovered and before it's shared
+     *
+     * @param config the options the server was started with
+     * @param ledger the ledger of the server
+     * @return the replica, null if the server is a primary
+     */
+    public static Replica start(ServerConfig config, Ledger ledger)
+    {
+        String address = config.get("replica-of", "");
+        if (address.isEmpty())
+        {
+            return null;
+        }
+        Replica replica = new Replica(address, ledger, config.getInt("max-staleness-ms", MAX_STALENESS_MILLIS),
+                config.get("replication-secret", ""));
+        ledger.replica = replica;
+        replica.start();
+        ServerLog.log(ServerLog.Level.INFO, null, "Replicating {} from LSN {}", address, replica.position);
+        return replica;
+    }
+
+    public void run()
+    {
+        while (!closed)
+        {
+            try
+            {
+                follow();
+            }
+            catch (IOException e)
+            {
+                if (closed)
+                {
+                    break;
+                }
+                ServerLog.log(ServerLog.Level.WARN, getName(), "Lost the primary {}:{}: " + e.getMessage(), host, port);
+            }
+            catch (RuntimeException e)
+            {
+                // some records of a message may be applied and others not, only
+                // a restart, which recovers from the replica's own log, can tell
+                ServerLog.log(ServerLog.Level.ERROR, getName(), "Stopped replicating, restart the replica: " + e);
+                return;
+            }
+
+            try
+            {
+                Thread.sleep(RECONNECT_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * this function connects to the primary and applies what it ships until the
+     * connection drops
+     *
+     * @throws IOException if the connection drops or the primary refuses the replica
+     */
+    protected void follow() throws IOException
+    {
+        try (Socket s = new Socket())
+        {
+            socket = s;
+            s.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+            s.setSoTimeout(TIMEOUT_MILLIS);
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+            out.writeInt(ReplicationSource.MAGIC);
+            out.writeLong(position);
+            out.flush();
+            if (in.readInt() != ReplicationSource.MAGIC)
+            {
+                throw new IOException("The primary refused the replica: " + in.readUTF());
+            }
+
+            // proving the replica knows the secret, without sending it
+            byte[] challenge = new byte[ReplicationSource.CHALLENGE];
+            in.readFully(challenge);
+            out.write(ReplicationSource.answer(secret, challenge));
+            out.flush();
+            if (in.readInt() != ReplicationSource.MAGIC)
+            {
+                throw new IOException("The primary refused the replica: " + in.readUTF());
+            }
+            int clientPort = in.readInt();
+            String advertised = in.readUTF();
+            primary = advertised.isEmpty() ? host + ":" + clientPort : advertised;
+            ServerLog.log(ServerLog.Level.INFO, getName(), "Following the primary {} from LSN {}", primary, position);
+
+            byte[] records = new byte[ReplicationSource.MAX_MESSAGE];
+            while (!closed)
+            {
+                long primaryLsn = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > records.length)
+                {
+                    throw new IOException("A message of " + length + " bytes");
+                }
+                in.readFully(records, 0, length);
+
+                try
+                {
+                    WriteAheadLog.decodeRecords(ByteBuffer.wrap(records, 0, length), applier);
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+                position += length;
+                if (position >= primaryLsn)
+                {
+                    currentAt = System.nanoTime();
+                }
+            }
+        }
+        finally
+        {
+            socket = null;
+        }
+    }
+
+    /**
+     * @return host:port of the primary for the clients, null until it answered
+     */
+    public String primary()
+    {
+        return primary;
+    }
+
+    /**
+     * @return the LSN of the primary's log the replica has the records up to
+     */
+    public long position()
+    {
+        return position;
+    }
+
+    /**
+     * @return the milliseconds since the replica last had every record of the
+     *         primary, -1 if it never had
+     */
+    public long stalenessMillis()
+    {
+        long at = currentAt;
+        return at == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - at);
+    }
+
+    /**
+     * @return true if the balances are within "--max-staleness-ms" of the primary
+     */
+    public boolean fresh()
+    {
+        long at = currentAt;
+        return at != 0 && System.nanoTime() - at <= maxStalenessNanos;
+    }
+
+    /**
+     * this function stops following the primary
+     */
+    public void close()
+    {
+        closed = true;
+        Socket s = socket;
+        if (s != null)
+        {
+            try
+            {
+                s.close();
+            }
+            catch (IOException e)
+            {
+                // the thread sees closed and exits
+            }
+        }
+        interrupt();
+    }
+}
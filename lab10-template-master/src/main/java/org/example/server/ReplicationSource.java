@@ -0,0 +1,304 @@
+package org.example.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ships the write-ahead log of a primary to its replicas: a replica connects to
+ * "--replication-port" and sends the LSN it has, and the primary streams the
+ * records after it as they reach the disk, every replica on a thread of its own
+ *
+ * the log holds every credential and balance, so the port listens on the
+ * loopback address unless told otherwise, and a replica has to prove it knows
+ * the "--replication-secret" of the primary before it gets anything: the
+ * handshake is [int MAGIC][long LSN] from the replica, a challenge [int MAGIC]
+ * [32 random bytes] from the primary, the HMAC-SHA256 of the challenge keyed
+ * with the secret from the replica, answered by [int MAGIC][int client port]
+ * [UTF address clients are redirected to, empty for the host the replica
+ * connected to], either side may answer [int 0][UTF reason] instead of its
+ * MAGIC, the records themselves aren't encrypted, after the handshake every
+ * message is [long durable LSN][int length][records], the records are whole and
+ * framed as they are in the log, a message without records goes out every
+ * heartbeat when nothing changed, so a replica can tell being current from
+ * being cut off
+ *
+ * replication is asynchronous: a change is acknowledged once it's durable on
+ * the primary, its replicas get it a moment later
+ */
+public class ReplicationSource extends Thread
+{
+    // options
+    public final static int HEARTBEAT_MILLIS = 100;
+    public final static String HOST = "127.0.0.1";
+
+    // the first int of both sides of the handshake, "ATMR"
+    public final static int MAGIC = 0x41544d52;
+
+    // the most bytes of records in one message
+    public final static int MAX_MESSAGE = 1 << 20;
+
+    // the bytes of a challenge and of its answer
+    public final static int CHALLENGE = 32;
+    protected final static String MAC = "HmacSHA256";
+
+    protected final ServerSocket serverSocket;
+    protected final WriteAheadLog log;
+    protected final int clientPort;
+    protected final String advertised;
+    protected final long heartbeatMillis;
+    protected final byte[] secret;
+    protected final SecureRandom random = new SecureRandom();
+
+    protected final AtomicInteger replicas = new AtomicInteger();
+    protected int numReplicas = 0;
+
+    /**
+     * @param _serverSocket where the replicas connect
+     * @param _log the log shipped
+     * @param _clientPort the port the clients of the primary connect to
+     * @param _advertised "host:port" the replicas redirect changes to, empty for
+     *        the host they connected to and the client port
+     * @param _heartbeatMillis the time between two messages when nothing changes
+     * @param _secret the secret the replicas must know
+     */
+    public ReplicationSource(ServerSocket _serverSocket, WriteAheadLog _log, int _clientPort, String _advertised,
+            long _heartbeatMillis, String _secret)
+    {
+        super("ReplicationSource");
+        setDaemon(true);
+
+        this.serverSocket = _serverSocket;
+        this.log = _log;
+        this.clientPort = _clientPort;
+        this.advertised = _advertised;
+        this.heartbeatMillis = _heartbeatMillis;
+        this.secret = _secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * this function starts shipping the log if the server was given
+     * "--replication-port" and "--replication-secret", with "--replication-host"
+     * (default 127.0.0.1), "--advertise" (host:port of the clients) and
+     * "--replication-heartbeat-ms"
+     *
+     * @param config the options the server was started with
+     * @param log the log of the server, null if it isn't persisted
+     * @return the source, null if replication is off or can't start
+     */
+    public static ReplicationSource start(ServerConfig config, WriteAheadLog log)
+    {
+        int port = config.getInt("replication-port", 0);
+        if (port <= 0)
+        {
+            return null;
+        }
+        if (log == null)
+        {
+            ServerLog.log(ServerLog.Level.ERROR, null, "Replication ships the write-ahead log, --persist=false has none");
+            return null;
+        }
+        String secret = config.get("replication-secret", "");
+        if (secret.isEmpty())
+        {
+            ServerLog.log(ServerLog.Level.ERROR, null, "Replication ships every account, it needs a --replication-secret");
+            return null;
+        }
+        String host = config.get("replication-host", HOST);
+        try
+        {
+            ReplicationSource source = new ReplicationSource(new ServerSocket(port, 0, InetAddress.getByName(host)),
+                    log, config.getInt("port", ATMServer.SERVER_PORT), config.get("advertise", ""),
+                    config.getInt("replication-heartbeat-ms", HEARTBEAT_MILLIS), secret);
+            source.start();
+            ServerLog.log(ServerLog.Level.INFO, null, "Shipping the write-ahead log to replicas on " + host + ":" + port);
+            return source;
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.ERROR, null, "Could not ship the log on port {}: {}", port, e);
+            return null;
+        }
+    }
+
+    public void run()
+    {
+        while (!serverSocket.isClosed())
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                numReplicas++;
+                String name = "Replica #" + numReplicas;
+                Thread shipper = new Thread(() -> ship(name, socket), name);
+                shipper.setDaemon(true);
+                shipper.start();
+            }
+            catch (IOException e)
+            {
+                if (!serverSocket.isClosed())
+                {
+                    ServerLog.log(ServerLog.Level.ERROR, getName(), "IOException while accepting a replica: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * this function streams the log to one replica until it disconnects
+     *
+     * @param name the name of the replica
+     * @param socket its connection
+     */
+    protected void ship(String name, Socket socket)
+    {
+        try (socket)
+        {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+
+            // a connection that isn't a replica doesn't hold the shipper for long
+            socket.setSoTimeout(Replica.TIMEOUT_MILLIS);
+            if (in.readInt() != MAGIC)
+            {
+                ServerLog.log(ServerLog.Level.WARN, name, "Dropping a connection that isn't a replica");
+                return;
+            }
+            long position = in.readLong();
+
+            byte[] challenge = new byte[CHALLENGE];
+            random.nextBytes(challenge);
+            out.writeInt(MAGIC);
+            out.write(challenge);
+            out.flush();
+            byte[] answer = new byte[CHALLENGE];
+            in.readFully(answer);
+            if (!MessageDigest.isEqual(answer, answer(secret, challenge)))
+            {
+                ServerLog.log(ServerLog.Level.WARN, name, "Refusing {}, it doesn't know the replication secret",
+                        socket.getRemoteSocketAddress());
+                out.writeInt(0);
+                out.writeUTF("Wrong replication secret");
+                out.flush();
+                return;
+            }
+            socket.setSoTimeout(0);
+
+            long durable = log.durableLsn();
+            if (position < 0 || position > durable)
+            {
+                // the replica followed another log
+                ServerLog.log(ServerLog.Level.ERROR, name, "Refusing a replica at LSN {}, past the end of the log at "
+                        + durable, position);
+                out.writeInt(0);
+                out.writeUTF("LSN " + position + " is past the end of the primary's log at " + durable);
+                out.flush();
+                return;
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(clientPort);
+            out.writeUTF(advertised);
+            out.flush();
+
+            ServerLog.log(ServerLog.Level.INFO, name, "Connected from {} at LSN {}", socket.getRemoteSocketAddress(),
+                    position);
+            replicas.incrementAndGet();
+            try
+            {
+                ByteBuffer records = ByteBuffer.allocate(MAX_MESSAGE);
+                while (!serverSocket.isClosed())
+                {
+                    durable = log.awaitPast(position, heartbeatMillis);
+                    long next = position;
+                    if (durable > position)
+                    {
+                        next = log.readDurable(position, records);
+                        if (next == position)
+                        {
+                            throw new IOException("A record at LSN " + position + " is larger than a message");
+                        }
+                    }
+                    else
+                    {
+                        records.clear().limit(0);
+                    }
+
+                    out.writeLong(Math.max(durable, next));
+                    out.writeInt(records.remaining());
+                    out.write(records.array(), 0, records.remaining());
+                    out.flush();
+                    position = next;
+                }
+            }
+            finally
+            {
+                replicas.decrementAndGet();
+            }
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.INFO, name, "Disconnected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * this function answers a challenge of the handshake
+     *
+     * @param secret the replication secret
+     * @param challenge the random bytes the primary sent
+     * @return the HMAC-SHA256 of the challenge, keyed with the secret
+     */
+    protected static byte[] answer(byte[] secret, byte[] challenge)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(new SecretKeySpec(secret, MAC));
+            return mac.doFinal(challenge);
+        }
+        catch (GeneralSecurityException e)
+        {
+            // HmacSHA256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of replicas connected
+     */
+    public long replicas()
+    {
+        return replicas.get();
+    }
+
+    /**
+     * this function stops accepting replicas, the connected ones are dropped
+     * once the server exits
+     */
+    public void close()
+    {
+        try
+        {
+            serverSocket.close();
+        }
+        catch (IOException e)
+        {
+            // the server is going away anyway
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.example.server;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * a writer that collects the responses of a session in memory until the event
+ * loop writes them to the channel, it starts tiny so idle connections stay cheap
+ *
+ * text responses are encoded to UTF-8 as they're written, and binary responses
+ * go through asOutputStream() into the same bytes, so the two stay in order
+ */
+public class ResponseBuffer extends Writer
+{
+    protected byte[] bytes = new byte[0];
+    protected int length = 0;
+
+    // the binary view of the buffer
+    protected OutputStream stream = new OutputStream()
+    {
+        @Override
+        public void write(int b)
+        {
+            ensureCapacity(1);
+            bytes[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count)
+        {
+            append(buffer, offset, count);
+        }
+    };
+
+    @Override
+    public void write(char[] buffer, int offset, int count)
+    {
+        // replies are formatted into a char[] by the session, so copying them
+        // must not go through a String
+        ensureCapacity(count);
+        for (int i = offset; i < offset + count; i++)
+        {
+            char c = buffer[i];
+            if (c >= 0x80)
+            {
+                byte[] encoded = new String(buffer, i, offset + count - i).getBytes(StandardCharsets.UTF_8);
+                append(encoded, 0, encoded.length);
+                return;
+            }
+            bytes[length++] = (byte) c;
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int count)
+    {
+        // responses are ASCII but for usernames, which are copied as they are
+        ensureCapacity(count);
+        for (int i = offset; i < offset + count; i++)
+        {
+            char c = string.charAt(i);
+            if (c >= 0x80)
+            {
+                byte[] encoded = string.substring(i, offset + count).getBytes(StandardCharsets.UTF_8);
+                append(encoded, 0, encoded.length);
+                return;
+            }
+            bytes[length++] = (byte) c;
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        // nothing to do, the event loop drains the buffer
+    }
+
+    @Override
+    public void close()
+    {
+        // nothing to do, the event loop owns the channel
+    }
+
+    /**
+     * @return the stream binary responses are written to
+     */
+    public OutputStream asOutputStream()
+    {
+        return stream;
+    }
+
+    /**
+     * @return true if there are responses waiting to be written
+     */
+    public boolean isEmpty()
+    {
+        return length == 0;
+    }
+
+    /**
+     * this function hands out every buffered response and empties the buffer
+     *
+     * @return the encoded responses
+     */
+    public ByteBuffer drain()
+    {
+        ByteBuffer drained = ByteBuffer.wrap(Arrays.copyOf(bytes, length));
+        length = 0;
+        return drained;
+    }
+
+    /**
+     * this function appends encoded bytes
+     *
+     * @param buffer the bytes
+     * @param offset the first byte to append
+     * @param count the number of bytes to append
+     */
+    protected void append(byte[] buffer, int offset, int count)
+    {
+        ensureCapacity(count);
+        System.arraycopy(buffer, offset, bytes, length, count);
+        length += count;
+    }
+
+    /**
+     * this function makes room for more bytes
+     *
+     * @param count the number of bytes about to be written
+     */
+    protected void ensureCapacity(int count)
+    {
+        if (length + count > bytes.length)
+        {
+            bytes = Arrays.copyOf(bytes, Math.max(length + count, Math.max(64, bytes.length * 2)));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.example.server;
+
+import java.util.HashMap;
+
+/**
+ * the options the server was started with, parsed from arguments of the form
+ * "--key=value" (a bare "--key" is read as "--key=true")
+ */
+public class ServerConfig
+{
+    // the parsed <key, value> pairs
+    protected HashMap<String, String> options = new HashMap<>();
+
+    public ServerConfig(String... args)
+    {
+        for (String arg : args)
+        {
+            // ignoring anything that isn't an option
+            if (!arg.startsWith("--"))
+            {
+                System.err.println("Ignoring unknown argument: " + arg);
+                continue;
+            }
+
+            int split = arg.indexOf('=');
+            if (split < 0)
+            {
+                options.put(arg.substring(2), "true");
+            }
+            else
+            {
+                options.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+    }
+
+    /**
+     * this function reads an option as a string
+     *
+     * @param key the name of the option, without the leading "--"
+     * @param fallback the value returned if the option wasn't passed
+     * @return the value of the option
+     */
+    public String get(String key, String fallback)
+    {
+        return options.getOrDefault(key, fallback);
+    }
+
+    /**
+     * this function reads an option as an integer
+     *
+     * @param key the name of the option, without the leading "--"
+     * @param fallback the value returned if the option wasn't passed or isn't a number
+     * @return the value of the option
+     */
+    public int getInt(String key, int fallback)
+    {
+        String value = options.get(key);
+        if (value == null)
+        {
+            return fallback;
+        }
+
+        try
+        {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e)
+        {
+            System.err.println("Option --" + key + " expects a number, using " + fallback);
+            return fallback;
+        }
+    }
+
+    /**
+     * this function reads an option as a boolean
+     *
+     * @param key the name of the option, without the leading "--"
+     * @param fallback the value returned if the option wasn't passed
+     * @return the value of the option
+     */
+    public boolean getBoolean(String key, boolean fallback)
+    {
+        String value = options.get(key);
+        return value == null ? fallback : Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,544 @@
+package org.example.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * the server's log, sessions never write to the console or a file themselves,
+ * they fill a record of a lock-free ring and a single writer thread formats the
+ * records and writes them to rotating files (and the console, unless
+ * "--log-console=false"), so a slow disk or terminal never holds up a command
+ *
+ * a record keeps the format and the arguments of its message, "{}" placeholders
+ * are only filled in by the writer, and records below the level the server was
+ * started with are dropped before anything is done, so logging from the command
+ * path costs a level check when it's off and no allocation when it's on
+ *
+ * if the ring is full the record is dropped rather than making the session wait,
+ * the writer reports how many were dropped
+ *
+ * until start(ServerConfig) is called, records are written straight to the
+ * console like System.out.println
+ */
+public class ServerLog extends Thread implements Closeable
+{
+    public enum Level
+    {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    // options
+    public final static String LEVEL = "info";
+    public final static String LOG_DIR = "logs";
+    public final static int FILE_MB = 16;
+    public final static int FILES = 5;
+    public final static int RING_SIZE = 8192;
+
+    // how long the writer sleeps once the ring is empty
+    protected final static long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    protected final static DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    // the running log, null until start(ServerConfig)
+    protected static volatile ServerLog current = null;
+    protected static volatile Level threshold = Level.INFO;
+
+    /**
+     * a slot of the ring, filled by a session and read by the writer
+     */
+    protected static final class Record
+    {
+        // the position this slot expects next, see publish()
+        volatile long sequence;
+
+        Level level;
+        long time;
+        String source;
+        String format;
+        Object first;
+        Object second;
+        long number;
+        boolean hasNumber;
+        int arguments;
+    }
+
+    protected final Record[] ring;
+    protected final int mask;
+
+    // the next position a session claims, and the next one the writer reads
+    protected final AtomicLong tail = new AtomicLong();
+    protected long head = 0;
+
+    // records lost to a full ring, reported by the writer
+    protected final AtomicLong dropped = new AtomicLong();
+
+    protected final Path file;
+    protected final long maxFileBytes;
+    protected final int maxFiles;
+    protected final boolean console;
+
+    // only touched by the writer
+    protected Writer out = null;
+    protected long fileBytes = 0;
+    protected final StringBuilder line = new StringBuilder(256);
+
+    protected volatile boolean closed = false;
+
+    /**
+     * @param _file the current log file, older ones are kept next to it as file.1, file.2, ...
+     * @param fileMegabytes the size a file is rotated at
+     * @param _maxFiles the number of files kept, the current one included
+     * @param _console true to also write the records to the console
+     * @param ringSize the number of records waiting for the writer, rounded up to a power of two
+     * @throws IOException if the log file can't be opened
+     */
+    public ServerLog(Path _file, int fileMegabytes, int _maxFiles, boolean _console, int ringSize)
+            throws IOException
+    {
+        super("ServerLog");
+        setDaemon(true);
+
+        this.file = _file;
+        this.maxFileBytes = Math.max(1, fileMegabytes) * 1024L * 1024L;
+        this.maxFiles = Math.max(1, _maxFiles);
+        this.console = _console;
+
+        int capacity = Integer.highestOneBit(Math.max(2, ringSize) - 1) << 1;
+        this.ring = new Record[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++)
+        {
+            ring[i] = new Record();
+            ring[i].sequence = i;
+        }
+
+        if (file.getParent() != null)
+        {
+            Files.createDirectories(file.getParent());
+        }
+        open();
+    }
+
+    /**
+     * this function starts the server's log from the options "--log-level",
+     * "--log-dir", "--log-file-mb", "--log-files", "--log-console" and
+     * "--log-buffer"
+     *
+     * @param config the options the server was started with
+     * @return the running log
+     * @throws IOException if the log file can't be opened
+     */
+    public static ServerLog start(ServerConfig config) throws IOException
+    {
+        String level = config.get("log-level", LEVEL);
+        try
+        {
+            threshold = Level.valueOf(level.toUpperCase());
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println("Option --log-level expects debug, info, warn or error, using " + LEVEL);
+        }
+
+        ServerLog log = new ServerLog(Path.of(config.get("log-dir", LOG_DIR), "server.log"),
+                config.getInt("log-file-mb", FILE_MB), config.getInt("log-files", FILES),
+                config.getBoolean("log-console", true), config.getInt("log-buffer", RING_SIZE));
+        log.start();
+        current = log;
+
+        // the server closes the log once its sessions are drained, so what they
+        // log on the way out isn't lost
+        return log;
+    }
+
+    /**
+     * this function tells whether records of a level are kept, so a caller can
+     * skip the work of preparing the arguments of a record that would be dropped
+     *
+     * @param level the level of the record
+     * @return true if the record would be logged
+     */
+    public static boolean enabled(Level level)
+    {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * this function logs a message
+     *
+     * @param level the level of the message
+     * @param source who the message is about, e.g. the session, null for none
+     * @param message the message
+     */
+    public static void log(Level level, String source, String message)
+    {
+        log(level, source, message, null, null, 0, false, 0);
+    }
+
+    /**
+     * this function logs a message with a "{}" placeholder
+     *
+     * @param level the level of the message
+     * @param source who the message is about, e.g. the session, null for none
+     * @param format the message
+     * @param argument fills the placeholder
+     */
+    public static void log(Level level, String source, String format, Object argument)
+    {
+        log(level, source, format, argument, null, 0, false, 1);
+    }
+
+    /**
+     * this function logs a message with two "{}" placeholders
+     *
+     * @param level the level of the message
+     * @param source who the message is about, e.g. the session, null for none
+     * @param format the message
+     * @param first fills the first placeholder
+     * @param second fills the second placeholder
+     */
+    public static void log(Level level, String source, String format, Object first, Object second)
+    {
+        log(level, source, format, first, second, 0, false, 2);
+    }
+
+    /**
+     * this function logs a message with two "{}" placeholders, the first one a
+     * number, which isn't boxed
+     *
+     * @param level the level of the message
+     * @param source who the message is about, e.g. the session, null for none
+     * @param format the message
+     * @param number fills the first placeholder
+     * @param argument fills the second placeholder
+     */
+    public static void log(Level level, String source, String format, long number, Object argument)
+    {
+        log(level, source, format, argument, null, number, true, 2);
+    }
+
+    /**
+     * this function hands a record to the writer, or drops it if its level is off
+     */
+    protected static void log(Level level, String source, String format, Object first, Object second, long number,
+            boolean hasNumber, int arguments)
+    {
+        if (!enabled(level))
+        {
+            return;
+        }
+
+        ServerLog log = current;
+        if (log == null)
+        {
+            // nothing started the writer, writing to the console straight away
+            StringBuilder line = new StringBuilder();
+            appendMessage(line, source, format, first, second, number, hasNumber, arguments);
+            (level.compareTo(Level.WARN) >= 0 ? System.err : System.out).println(line);
+            return;
+        }
+        log.publish(level, source, format, first, second, number, hasNumber, arguments);
+    }
+
+    /**
+     * this function claims the next slot of the ring and fills it, a slot is free
+     * once its sequence equals the position claiming it, and is handed to the
+     * writer by setting its sequence one past the position
+     *
+     * @return false if the ring was full and the record was dropped
+     */
+    protected boolean publish(Level level, String source, String format, Object first, Object second, long number,
+            boolean hasNumber, int arguments)
+    {
+        long position = tail.get();
+        while (true)
+        {
+            Record record = ring[(int) position & mask];
+            long behind = record.sequence - position;
+            if (behind == 0)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    record.level = level;
+                    record.time = System.currentTimeMillis();
+                    record.source = source;
+                    record.format = format;
+                    record.first = first;
+                    record.second = second;
+                    record.number = number;
+                    record.hasNumber = hasNumber;
+                    record.arguments = arguments;
+                    record.sequence = position + 1;
+                    return true;
+                }
+                position = tail.get();
+            }
+            else if (behind < 0)
+            {
+                // the writer hasn't read this slot yet, the ring is full
+                dropped.incrementAndGet();
+                return false;
+            }
+            else
+            {
+                // another session claimed the position first
+                position = tail.get();
+            }
+        }
+    }
+
+    public void run()
+    {
+        while (true)
+        {
+            boolean wrote = false;
+            Record record;
+            while ((record = ring[(int) head & mask]).sequence == head + 1)
+            {
+                write(record);
+
+                // handing the slot back to the sessions for the next lap of the ring
+                record.source = null;
+                record.format = null;
+                record.first = null;
+                record.second = null;
+                record.sequence = head + ring.length;
+                head++;
+                wrote = true;
+            }
+
+            long lost = dropped.getAndSet(0);
+            if (lost > 0)
+            {
+                Record notice = new Record();
+                notice.level = Level.WARN;
+                notice.time = System.currentTimeMillis();
+                notice.format = "Dropped {} log records, the log couldn't keep up";
+                notice.number = lost;
+                notice.hasNumber = true;
+                notice.arguments = 1;
+                write(notice);
+                wrote = true;
+            }
+
+            if (wrote)
+            {
+                flush();
+            }
+            else if (closed)
+            {
+                return;
+            }
+            else
+            {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * this function formats a record and writes it to the file and the console
+     *
+     * @param record the record
+     */
+    protected void write(Record record)
+    {
+        line.setLength(0);
+        appendMessage(line, record.source, record.format, record.first, record.second, record.number,
+                record.hasNumber, record.arguments);
+
+        if (console)
+        {
+            (record.level.compareTo(Level.WARN) >= 0 ? System.err : System.out).println(line);
+        }
+
+        if (out == null)
+        {
+            return;
+        }
+        try
+        {
+            String level = record.level.name();
+            out.write(TIMESTAMP.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(record.time),
+                    ZoneId.systemDefault())));
+            out.write(' ');
+            out.write(level);
+            for (int i = level.length(); i < 6; i++)
+            {
+                out.write(' ');
+            }
+            out.append(line).write('\n');
+            fileBytes += 24 + 6 + line.length() + 1;
+
+            if (fileBytes >= maxFileBytes)
+            {
+                rotate();
+            }
+        }
+        catch (IOException e)
+        {
+            disable(e);
+        }
+    }
+
+    /**
+     * this function writes what the file writer buffered
+     */
+    protected void flush()
+    {
+        if (out == null)
+        {
+            return;
+        }
+        try
+        {
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            disable(e);
+        }
+    }
+
+    /**
+     * this function opens the current log file, appending to it
+     *
+     * @throws IOException if the file can't be opened
+     */
+    protected void open() throws IOException
+    {
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        fileBytes = Files.size(file);
+    }
+
+    /**
+     * this function moves the current file to file.1, file.1 to file.2 and so
+     * on, drops the oldest one and starts a new current file
+     *
+     * @throws IOException if the files can't be moved
+     */
+    protected void rotate() throws IOException
+    {
+        out.close();
+        out = null;
+
+        String name = file.getFileName().toString();
+        Files.deleteIfExists(file.resolveSibling(name + "." + (maxFiles - 1)));
+        for (int i = maxFiles - 2; i >= 1; i--)
+        {
+            Path older = file.resolveSibling(name + "." + i);
+            if (Files.exists(older))
+            {
+                Files.move(older, file.resolveSibling(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1)
+        {
+            Files.move(file, file.resolveSibling(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        else
+        {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    /**
+     * this function stops writing to the file after an error, the console still
+     * gets the records
+     *
+     * @param e the error
+     */
+    protected void disable(IOException e)
+    {
+        System.err.println("Error writing the log file " + file + ", only logging to the console: " + e);
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException ignored)
+            {
+                // the file is already broken
+            }
+        }
+        out = null;
+    }
+
+    /**
+     * this function writes a message with its placeholders filled in, a message
+     * without arguments is written as it is
+     */
+    protected static void appendMessage(StringBuilder line, String source, String format, Object first,
+            Object second, long number, boolean hasNumber, int arguments)
+    {
+        if (source != null)
+        {
+            line.append(source).append(": ");
+        }
+
+        int filled = 0;
+        int from = 0;
+        int at;
+        while (filled < arguments && (at = format.indexOf("{}", from)) >= 0)
+        {
+            line.append(format, from, at);
+            if (filled == 0)
+            {
+                if (hasNumber)
+                {
+                    line.append(number);
+                }
+                else
+                {
+                    line.append(first);
+                }
+            }
+            else
+            {
+                line.append(hasNumber ? first : second);
+            }
+            filled++;
+            from = at + 2;
+        }
+        line.append(format, from, format.length());
+    }
+
+    /**
+     * this function writes the records still in the ring, stops the writer and
+     * closes the file
+     */
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        LockSupport.unpark(this);
+        try
+        {
+            join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (out != null)
+        {
+            out.close();
+        }
+    }
+}
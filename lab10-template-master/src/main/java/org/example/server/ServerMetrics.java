@@ -0,0 +1,343 @@
+package org.example.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * what the server has been doing: the commands it ran by type and status, how
+ * long each type took to run, the connections it accepted and the bytes it
+ * read and wrote, read by the admin's STATS command and the metrics endpoint
+ *
+ * every session records into the same counters, they're LongAdders and striped
+ * histograms so sessions on different cores don't fight over a cache line, a
+ * command costs two System.nanoTime() calls and a few uncontended adds
+ */
+public class ServerMetrics
+{
+    // the status codes of the protocol, counted apart, any other status is counted as "other"
+    protected final static int[] STATUSES = { 100, 200, 201, 307, 400, 401, 403, 404, 410, 500, 503 };
+
+    // the percentiles reported for the service times
+    protected final static double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    protected final static String[] QUANTILES = { "0.5", "0.9", "0.99", "0.999" };
+
+    // the metrics of the server, shared by every session, made once the constants above are set
+    public final static ServerMetrics SERVER = new ServerMetrics();
+
+    // the commands run, indexed by opcode and status
+    protected final LongAdder[][] commands = new LongAdder[CommandParser.OPCODES][STATUSES.length + 1];
+
+    // how long the commands took to run, indexed by opcode
+    protected final StripedHistogram[] serviceTimes = new StripedHistogram[CommandParser.OPCODES];
+
+    protected final LongAdder connections = new LongAdder();
+    protected final LongAdder refused = new LongAdder();
+    protected final LongAdder bytesIn = new LongAdder();
+    protected final LongAdder bytesOut = new LongAdder();
+
+    // values read when the metrics are, e.g. the clients connected, guarded by itself
+    protected final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    protected ServerMetrics()
+    {
+        for (int opcode = 0; opcode < CommandParser.OPCODES; opcode++)
+        {
+            for (int status = 0; status <= STATUSES.length; status++)
+            {
+                commands[opcode][status] = new LongAdder();
+            }
+            serviceTimes[opcode] = new StripedHistogram();
+        }
+    }
+
+    /**
+     * this function records a command that was run
+     *
+     * @param opcode the command, UNKNOWN for one the server didn't recognize
+     * @param status the status of its reply, 0 if it got none
+     * @param nanos how long it took to run, in nanoseconds
+     */
+    public void command(byte opcode, int status, long nanos)
+    {
+        if (opcode <= 0 || opcode >= CommandParser.OPCODES)
+        {
+            opcode = CommandParser.UNKNOWN;
+        }
+        commands[opcode][statusIndex(status)].increment();
+        serviceTimes[opcode].record(nanos);
+    }
+
+    /**
+     * @param status a status code
+     * @return where the status is counted
+     */
+    protected static int statusIndex(int status)
+    {
+        for (int i = 0; i < STATUSES.length; i++)
+        {
+            if (STATUSES[i] == status)
+            {
+                return i;
+            }
+        }
+        return STATUSES.length;
+    }
+
+    /**
+     * this function records a client that was admitted
+     */
+    public void connected()
+    {
+        connections.increment();
+    }
+
+    /**
+     * this function records a client that was turned away because the server was full
+     */
+    public void refused()
+    {
+        refused.increment();
+    }
+
+    /**
+     * @param count bytes read from a client
+     */
+    public void bytesIn(long count)
+    {
+        bytesIn.add(count);
+    }
+
+    /**
+     * @param count bytes written to a client
+     */
+    public void bytesOut(long count)
+    {
+        bytesOut.add(count);
+    }
+
+    /**
+     * this function adds a value that's read along with the metrics, a gauge
+     * registered again under the same name replaces the earlier one
+     *
+     * @param name the name of the value, e.g. "connections_active"
+     * @param value reads the value
+     */
+    public void gauge(String name, LongSupplier value)
+    {
+        synchronized (gauges)
+        {
+            gauges.put(name, value);
+        }
+    }
+
+    /**
+     * @param in the input of a client connection
+     * @return the same input, counting the bytes read from it
+     */
+    public InputStream count(InputStream in)
+    {
+        return new FilterInputStream(in)
+        {
+            @Override
+            public int read() throws IOException
+            {
+                int b = super.read();
+                if (b >= 0)
+                {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException
+            {
+                int read = in.read(buffer, offset, length);
+                if (read > 0)
+                {
+                    bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * @param out the output of a client connection
+     * @return the same output, counting the bytes written to it
+     */
+    public OutputStream count(OutputStream out)
+    {
+        return new FilterOutputStream(out)
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException
+            {
+                // FilterOutputStream would write the bytes one at a time
+                out.write(buffer, offset, length);
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    /**
+     * this function sums the metrics up on one line, e.g. for the reply to
+     * STATS: "connections_total=12 ... VIEW:200=118 VIEW:401=2 VIEW.p99_us=84 ..."
+     *
+     * @return space separated name=value pairs, times in microseconds
+     */
+    public String summary()
+    {
+        StringBuilder line = new StringBuilder();
+        line.append("connections_total=").append(connections.sum());
+        line.append(" connections_refused=").append(refused.sum());
+        synchronized (gauges)
+        {
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet())
+            {
+                line.append(' ').append(gauge.getKey()).append('=').append(gauge.getValue().getAsLong());
+            }
+        }
+        line.append(" bytes_in=").append(bytesIn.sum());
+        line.append(" bytes_out=").append(bytesOut.sum());
+
+        for (int opcode = 0; opcode < CommandParser.OPCODES; opcode++)
+        {
+            String name = commandName(opcode);
+            boolean ran = false;
+            for (int status = 0; status <= STATUSES.length; status++)
+            {
+                long count = commands[opcode][status].sum();
+                if (count > 0)
+                {
+                    line.append(' ').append(name).append(':').append(statusName(status)).append('=').append(count);
+                    ran = true;
+                }
+            }
+            if (!ran)
+            {
+                continue;
+            }
+            long[] times = serviceTimes[opcode].percentiles(PERCENTILES);
+            for (int i = 0; i < PERCENTILES.length; i++)
+            {
+                line.append(' ').append(name).append(".p").append(percentileName(PERCENTILES[i])).append("_us=")
+                        .append(times[i] / 1000);
+            }
+            line.append(' ').append(name).append(".max_us=").append(serviceTimes[opcode].max() / 1000);
+        }
+        return line.toString();
+    }
+
+    /**
+     * this function writes the metrics in the text format of Prometheus, so any
+     * scraper that speaks it can collect them
+     *
+     * @param out where the metrics are written
+     */
+    public void writePrometheus(StringBuilder out)
+    {
+        out.append("# TYPE atm_connections_total counter\n");
+        out.append("atm_connections_total ").append(connections.sum()).append('\n');
+        out.append("# TYPE atm_connections_refused_total counter\n");
+        out.append("atm_connections_refused_total ").append(refused.sum()).append('\n');
+        synchronized (gauges)
+        {
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet())
+            {
+                out.append("# TYPE atm_").append(gauge.getKey()).append(" gauge\n");
+                out.append("atm_").append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+            }
+        }
+        out.append("# TYPE atm_bytes_received_total counter\n");
+        out.append("atm_bytes_received_total ").append(bytesIn.sum()).append('\n');
+        out.append("# TYPE atm_bytes_sent_total counter\n");
+        out.append("atm_bytes_sent_total ").append(bytesOut.sum()).append('\n');
+
+        out.append("# TYPE atm_commands_total counter\n");
+        for (int opcode = 0; opcode < CommandParser.OPCODES; opcode++)
+        {
+            for (int status = 0; status <= STATUSES.length; status++)
+            {
+                long count = commands[opcode][status].sum();
+                if (count > 0)
+                {
+                    out.append("atm_commands_total{command=\"").append(commandName(opcode)).append("\",status=\"")
+                            .append(statusName(status)).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        out.append("# TYPE atm_command_duration_seconds summary\n");
+        for (int opcode = 0; opcode < CommandParser.OPCODES; opcode++)
+        {
+            StripedHistogram histogram = serviceTimes[opcode];
+            long count = histogram.count();
+            if (count == 0)
+            {
+                continue;
+            }
+            String label = "command=\"" + commandName(opcode) + "\"";
+            long[] times = histogram.percentiles(PERCENTILES);
+            for (int i = 0; i < PERCENTILES.length; i++)
+            {
+                out.append("atm_command_duration_seconds{").append(label).append(",quantile=\"")
+                        .append(QUANTILES[i]).append("\"} ").append(seconds(times[i])).append('\n');
+            }
+            out.append("atm_command_duration_seconds_sum{").append(label).append("} ")
+                    .append(seconds(histogram.sum())).append('\n');
+            out.append("atm_command_duration_seconds_count{").append(label).append("} ").append(count).append('\n');
+        }
+    }
+
+    /**
+     * @param opcode an opcode
+     * @return the name of its command, "UNKNOWN" for the commands the server didn't recognize
+     */
+    protected static String commandName(int opcode)
+    {
+        return opcode == CommandParser.UNKNOWN ? "UNKNOWN" : CommandParser.NAMES[opcode];
+    }
+
+    /**
+     * @param index where a status is counted
+     * @return the status code, or "other"
+     */
+    protected static String statusName(int index)
+    {
+        return index < STATUSES.length ? Integer.toString(STATUSES[index]) : "other";
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return the percentile without a trailing ".0", e.g. "50" or "99.9"
+     */
+    protected static String percentileName(double percentile)
+    {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+    }
+
+    /**
+     * @param nanos a duration in nanoseconds
+     * @return the duration in seconds
+     */
+    protected static String seconds(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
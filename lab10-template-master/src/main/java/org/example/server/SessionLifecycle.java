@@ -0,0 +1,173 @@
+package org.example.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.util.concurrent.TimeUnit;
+
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * decides when a session ends besides the client leaving: a session that has
+ * been idle for too long, or that has been open for too long, is closed, and so
+ * are all of them when the server shuts down, once the commands they already
+ * received are answered
+ *
+ * blocking sessions enforce the timeouts themselves through the read timeout of
+ * their socket, the event loops sweep their connections, TCP keepalive takes
+ * care of peers that vanished without closing the connection
+ */
+public class SessionLifecycle
+{
+    // options
+    public final static int IDLE_TIMEOUT_SECONDS = 300;
+    public final static int MAX_SESSION_SECONDS = 8 * 3600;
+    public final static int DRAIN_SECONDS = 10;
+
+    // how often an event loop looks for expired connections
+    public final static long SWEEP_MILLIS = 1000;
+
+    protected final long idleNanos;
+    protected final long lifetimeNanos;
+    protected final boolean keepAlive;
+    protected final int keepAliveIdleSeconds;
+    protected final long drainMillis;
+
+    // set once the server is shutting down
+    protected volatile boolean draining = false;
+
+    /**
+     * this function reads the options "--idle-timeout-s", "--max-session-s" (0
+     * for no limit), "--keepalive", "--keepalive-idle-s" (0 for the system's
+     * default) and "--drain-s"
+     *
+     * @param config the options the server was started with
+     */
+    public SessionLifecycle(ServerConfig config)
+    {
+        this.idleNanos = TimeUnit.SECONDS.toNanos(config.getInt("idle-timeout-s", IDLE_TIMEOUT_SECONDS));
+        this.lifetimeNanos = TimeUnit.SECONDS.toNanos(config.getInt("max-session-s", MAX_SESSION_SECONDS));
+        this.keepAlive = config.getBoolean("keepalive", true);
+        this.keepAliveIdleSeconds = config.getInt("keepalive-idle-s", 0);
+        this.drainMillis = TimeUnit.SECONDS.toMillis(config.getInt("drain-s", DRAIN_SECONDS));
+    }
+
+    /**
+     * this function sets the keepalive options of a blocking client connection
+     *
+     * @param socket the connection
+     */
+    public void configure(Socket socket)
+    {
+        try
+        {
+            socket.setKeepAlive(keepAlive);
+            SocketOption<Integer> idle = ExtendedSocketOptions.TCP_KEEPIDLE;
+            if (keepAlive && keepAliveIdleSeconds > 0 && socket.supportedOptions().contains(idle))
+            {
+                socket.setOption(idle, keepAliveIdleSeconds);
+            }
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.WARN, null, "Could not set keepalive on a connection: {}", e);
+        }
+    }
+
+    /**
+     * this function sets the keepalive options of a client connection of an
+     * event loop
+     *
+     * @param channel the connection
+     */
+    public void configure(NetworkChannel channel)
+    {
+        try
+        {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+            SocketOption<Integer> idle = ExtendedSocketOptions.TCP_KEEPIDLE;
+            if (keepAlive && keepAliveIdleSeconds > 0 && channel.supportedOptions().contains(idle))
+            {
+                channel.setOption(idle, keepAliveIdleSeconds);
+            }
+        }
+        catch (IOException e)
+        {
+            ServerLog.log(ServerLog.Level.WARN, null, "Could not set keepalive on a connection: {}", e);
+        }
+    }
+
+    /**
+     * this function tells how long a session may wait for its next command
+     *
+     * @param openedAt when the session started, in System.nanoTime()
+     * @param now the current System.nanoTime()
+     * @return the read timeout in milliseconds, 0 for none, -1 if the session is over its lifetime
+     */
+    public int readTimeoutMillis(long openedAt, long now)
+    {
+        long timeout = idleNanos > 0 ? idleNanos : Long.MAX_VALUE;
+        if (lifetimeNanos > 0)
+        {
+            long remaining = openedAt + lifetimeNanos - now;
+            if (remaining <= 0)
+            {
+                return -1;
+            }
+            timeout = Math.min(timeout, remaining);
+        }
+        if (timeout == Long.MAX_VALUE)
+        {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+    }
+
+    /**
+     * this function tells whether a session has to be closed
+     *
+     * @param openedAt when the session started, in System.nanoTime()
+     * @param lastActive when the session last received a command, in System.nanoTime()
+     * @param now the current System.nanoTime()
+     * @return why the session has to be closed, null if it may go on
+     */
+    public String expired(long openedAt, long lastActive, long now)
+    {
+        if (lifetimeNanos > 0 && now - openedAt >= lifetimeNanos)
+        {
+            return "Session reached its maximum lifetime";
+        }
+        if (idleNanos > 0 && now - lastActive >= idleNanos)
+        {
+            return "Session was idle for too long";
+        }
+        return null;
+    }
+
+    /**
+     * this function starts the shutdown, sessions finish the commands they
+     * received and no new command is read
+     */
+    public void startDraining()
+    {
+        draining = true;
+    }
+
+    /**
+     * @return true once the server is shutting down
+     */
+    public boolean draining()
+    {
+        return draining;
+    }
+
+    /**
+     * @return how long the shutdown waits for the sessions to finish, in milliseconds
+     */
+    public long drainMillis()
+    {
+        return drainMillis;
+    }
+}
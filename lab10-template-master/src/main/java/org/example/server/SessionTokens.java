@@ -0,0 +1,256 @@
+package org.example.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * issues and checks the session tokens handed out on login, a client that
+ * reconnects sends "RESUME <token>" instead of its username and password, so
+ * it skips a round trip and the password hash
+ *
+ * a token is the URL-safe base64 of [long expiry][int slot][u8 length][user]
+ * followed by the HMAC-SHA256 of those bytes, the server keeps no state to
+ * check one, the signature is compared in constant time and the key is made
+ * when the server starts, so a restart invalidates every token
+ *
+ * tokens that were checked once are kept in a small LRU cache, so a terminal
+ * resuming again skips the HMAC as well, the cache holds at most cacheSize
+ * tokens and drops expired ones when they're looked up
+ *
+ * a token stays valid until it expires, logging out doesn't revoke it
+ */
+public class SessionTokens
+{
+    // options
+    public final static int TTL_SECONDS = 3600;
+    public final static int CACHE_SIZE = 10_000;
+
+    protected final static String MAC = "HmacSHA256";
+    protected final static int MAC_BYTES = 32;
+    protected final static int HEADER = 8 + 4 + 1;
+
+    /**
+     * the account a valid token logs into
+     */
+    public static final class Grant
+    {
+        public final int slot;
+        public final String user;
+        public final long expiresAt;
+
+        Grant(int _slot, String _user, long _expiresAt)
+        {
+            this.slot = _slot;
+            this.user = _user;
+            this.expiresAt = _expiresAt;
+        }
+    }
+
+    protected final SecretKeySpec key;
+    protected final long ttlMillis;
+
+    // every thread signing or checking tokens keeps its own Mac
+    protected final ThreadLocal<Mac> macs;
+
+    // the tokens checked recently, least recently used first, guarded by itself
+    protected final LinkedHashMap<String, Grant> cache;
+
+    /**
+     * this function creates the tokens from the options "--token-ttl-s" and
+     * "--token-cache", with a fresh random key
+     *
+     * @param config the options the server was started with
+     */
+    public SessionTokens(ServerConfig config)
+    {
+        this(randomKey(), config.getInt("token-ttl-s", TTL_SECONDS), config.getInt("token-cache", CACHE_SIZE));
+    }
+
+    /**
+     * @param _key the key tokens are signed with
+     * @param ttlSeconds how long a token stays valid
+     * @param cacheSize the most checked tokens remembered
+     */
+    public SessionTokens(byte[] _key, long ttlSeconds, int cacheSize)
+    {
+        this.key = new SecretKeySpec(_key, MAC);
+        this.ttlMillis = ttlSeconds * 1000;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try
+            {
+                Mac mac = Mac.getInstance(MAC);
+                mac.init(key);
+                return mac;
+            }
+            catch (GeneralSecurityException e)
+            {
+                // HmacSHA256 is required of every Java platform
+                throw new IllegalStateException(e);
+            }
+        });
+
+        int limit = Math.max(1, cacheSize);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Grant> eldest)
+            {
+                return size() > limit;
+            }
+        };
+    }
+
+    /**
+     * this function signs a token for a logged in user
+     *
+     * @param slot the ledger slot of the user's account
+     * @param user the username
+     * @return the token, null if the username is longer than 255 bytes
+     */
+    public String issue(int slot, String user)
+    {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 0xFF)
+        {
+            return null;
+        }
+        ByteBuffer token = ByteBuffer.allocate(HEADER + name.length + MAC_BYTES)
+                .putLong(System.currentTimeMillis() + ttlMillis)
+                .putInt(slot)
+                .put((byte) name.length)
+                .put(name);
+
+        Mac mac = macs.get();
+        mac.update(token.array(), 0, token.position());
+        token.put(mac.doFinal());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+    }
+
+    /**
+     * this function checks a token
+     *
+     * @param token the token sent by the client
+     * @return the account the token logs into, null if the token is forged, malformed or expired
+     */
+    public Grant check(String token)
+    {
+        long now = System.currentTimeMillis();
+
+        Grant grant;
+        synchronized (cache)
+        {
+            grant = cache.get(token);
+            if (grant != null && grant.expiresAt <= now)
+            {
+                cache.remove(token);
+                return null;
+            }
+        }
+        if (grant != null)
+        {
+            return grant;
+        }
+
+        grant = verify(token, now);
+        if (grant != null)
+        {
+            synchronized (cache)
+            {
+                cache.put(token, grant);
+            }
+        }
+        return grant;
+    }
+
+    /**
+     * this function checks the signature and the expiry of a token
+     *
+     * @param token the token
+     * @param now the current time in milliseconds
+     * @return the account the token logs into, null if it isn't valid
+     */
+    protected Grant verify(String token, long now)
+    {
+        byte[] bytes;
+        try
+        {
+            bytes = Base64.getUrlDecoder().decode(token);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+        if (bytes.length < HEADER + MAC_BYTES
+                || bytes.length != HEADER + Byte.toUnsignedInt(bytes[HEADER - 1]) + MAC_BYTES)
+        {
+            return null;
+        }
+
+        int signed = bytes.length - MAC_BYTES;
+        Mac mac = macs.get();
+        mac.update(bytes, 0, signed);
+        byte[] expected = mac.doFinal();
+        byte[] actual = new byte[MAC_BYTES];
+        System.arraycopy(bytes, signed, actual, 0, MAC_BYTES);
+        if (!MessageDigest.isEqual(expected, actual))
+        {
+            return null;
+        }
+
+        ByteBuffer fields = ByteBuffer.wrap(bytes);
+        long expiresAt = fields.getLong();
+        int slot = fields.getInt();
+        if (expiresAt <= now)
+        {
+            return null;
+        }
+        String user = new String(bytes, HEADER, signed - HEADER, StandardCharsets.UTF_8);
+        return new Grant(slot, user, expiresAt);
+    }
+
+    /**
+     * this function reads the username out of a token without checking it, for
+     * a router that only needs to know which server to send the token to, the
+     * server that issued it still checks it
+     *
+     * @param token the token
+     * @return the username in the token, null if the token is malformed
+     */
+    public static String user(String token)
+    {
+        byte[] bytes;
+        try
+        {
+            bytes = Base64.getUrlDecoder().decode(token);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+        if (bytes.length < HEADER + MAC_BYTES
+                || bytes.length != HEADER + Byte.toUnsignedInt(bytes[HEADER - 1]) + MAC_BYTES)
+        {
+            return null;
+        }
+        return new String(bytes, HEADER, bytes.length - MAC_BYTES - HEADER, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a new random signing key
+     */
+    protected static byte[] randomKey()
+    {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+}
@@ -0,0 +1,320 @@
+package org.example.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * writes periodic snapshots of the account table, so a restart maps the latest
+ * snapshot and only replays the write-ahead log after it
+ *
+ * the snapshotter never reads the live balances, it keeps a shadow copy that it
+ * brings up to date by reading the durable part of the log, so a snapshot is
+ * exactly the ledger at the LSN it's stamped with and taking one never blocks a
+ * DEP or WITH, names and credentials never change so they're shared with the
+ * live table
+ *
+ * the file is [int magic][int version][long lsn][int count] followed by count
+ * accounts in slot order, each [short length][name][short length][credential]
+ * [long balance], it's written to a temporary file and renamed into place
+ *
+ * a snapshot doesn't shorten the log, see WriteAheadLog, it only spares a
+ * restart the records before it, the server takes a last one when it stops, so
+ * a clean restart replays nothing
+ */
+public class Snapshotter extends Thread implements Closeable
+{
+    public final static int MAGIC = 0x41544d53; // "ATMS"
+    public final static int VERSION = 1;
+    protected final static int HEADER = 4 + 4 + 8 + 4;
+
+    protected final Path path;
+    protected final AccountTable table;
+    protected final WriteAheadLog log;
+    protected final long intervalMillis;
+
+    // the balances as of shadowLsn, in pages like the account table
+    protected long[][] shadow = new long[0][];
+    protected int shadowSize = 0;
+    protected long shadowLsn;
+
+    // the LSN of the snapshot on disk
+    protected long writtenLsn;
+
+    // released by close(), the thread is never interrupted since that would
+    // close the channel of the log it reads
+    protected final CountDownLatch stopping = new CountDownLatch(1);
+
+    /**
+     * this function creates the snapshotter, it must be called before any change
+     * is made to the recovered ledger so the shadow starts at the log's end
+     *
+     * @param _path the snapshot file
+     * @param ledger the recovered ledger
+     * @param _log the log attached to the ledger
+     * @param snapshotLsn the LSN of the snapshot the ledger was loaded from, 0 if none
+     * @param intervalSeconds the time between two snapshots
+     */
+    public Snapshotter(Path _path, Ledger ledger, WriteAheadLog _log, long snapshotLsn, long intervalSeconds)
+    {
+        super("Snapshotter");
+        setDaemon(true);
+
+        this.path = _path;
+        this.table = ledger.table;
+        this.log = _log;
+        this.intervalMillis = intervalSeconds * 1000;
+
+        // nothing has changed since recovery, the live balances are the shadow
+        for (int slot = 0; slot < table.size(); slot++)
+        {
+            setShadow(slot, table.balance(slot));
+        }
+        this.shadowLsn = log.durableLsn();
+        this.writtenLsn = snapshotLsn;
+    }
+
+    /**
+     * this function loads a snapshot into an empty account table
+     *
+     * @param path the snapshot file
+     * @param table the table to load into
+     * @return the LSN of the snapshot, 0 if there is no snapshot
+     * @throws IOException if the snapshot can't be read
+     */
+    public static long load(Path path, AccountTable table) throws IOException
+    {
+        if (!Files.exists(path))
+        {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.getInt() != MAGIC || map.getInt() != VERSION)
+            {
+                throw new IOException(path + " is not a ledger snapshot");
+            }
+
+            long lsn = map.getLong();
+            int count = map.getInt();
+            for (int slot = 0; slot < count; slot++)
+            {
+                String user = new String(WriteAheadLog.readBytes(map), StandardCharsets.UTF_8);
+                byte[] credential = WriteAheadLog.readBytes(map);
+                table.restore(slot, user, credential, map.getLong());
+            }
+            return lsn;
+        }
+    }
+
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                if (stopping.await(intervalMillis, TimeUnit.MILLISECONDS))
+                {
+                    return;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            try
+            {
+                snapshot();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // the log still has everything, the next snapshot tries again
+                ServerLog.log(ServerLog.Level.ERROR, getName(), "Error writing the snapshot " + path + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * this function brings the shadow up to the durable end of the log and writes
+     * it out if anything changed since the last snapshot
+     *
+     * @throws IOException if the log can't be read or the snapshot can't be written
+     */
+    public void snapshot() throws IOException
+    {
+        shadowLsn = log.read(shadowLsn, log.durableLsn(), new WriteAheadLog.Handler()
+        {
+            @Override
+            public void onOpen(int slot, String user, byte[] credential, long balance)
+            {
+                setShadow(slot, balance);
+            }
+
+            @Override
+            public void onDeposit(int slot, long amount)
+            {
+                long balance = shadow[slot >>> AccountTable.PAGE_BITS][slot & AccountTable.PAGE_MASK];
+                if (balance != AccountTable.CLOSED)
+                {
+                    setShadow(slot, balance + amount);
+                }
+            }
+
+            @Override
+            public void onWithdraw(int slot, long amount)
+            {
+                onDeposit(slot, -amount);
+            }
+
+            @Override
+            public void onBatch(int slot, long[] amounts)
+            {
+                for (long amount : amounts)
+                {
+                    onDeposit(slot, amount);
+                }
+            }
+
+            @Override
+            public void onClose(int slot, long balance)
+            {
+                setShadow(slot, AccountTable.CLOSED);
+            }
+
+            @Override
+            public void onTransfer(int from, int to, long amount)
+            {
+                onDeposit(from, -amount);
+                onDeposit(to, amount);
+            }
+        });
+
+        if (shadowLsn == writtenLsn)
+        {
+            return;
+        }
+
+        long started = System.nanoTime();
+        write();
+        writtenLsn = shadowLsn;
+        ServerLog.log(ServerLog.Level.INFO, getName(), "Wrote a snapshot of " + shadowSize + " accounts at LSN "
+                + shadowLsn + " in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    /**
+     * this function stops the periodic snapshots and takes a last one of
+     * everything on disk, it must be called once no more changes are made and
+     * before the log is closed
+     *
+     * @throws IOException if the snapshot can't be written
+     */
+    @Override
+    public void close() throws IOException
+    {
+        stopping.countDown();
+        try
+        {
+            join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+    }
+
+    /**
+     * this function writes the shadow to a temporary mapped file and renames it
+     * over the previous snapshot
+     *
+     * @throws IOException if the snapshot can't be written
+     */
+    protected void write() throws IOException
+    {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        // mapping for the longest possible encoding, the file is cut to size after
+        long capacity = HEADER;
+        for (int slot = 0; slot < shadowSize; slot++)
+        {
+            capacity += 2 + 3L * name(slot).length() + 2 + table.credential(slot).length + 8;
+        }
+        if (capacity > Integer.MAX_VALUE)
+        {
+            throw new IOException("A snapshot of " + shadowSize + " accounts doesn't fit in one mapping");
+        }
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            map.putInt(MAGIC).putInt(VERSION).putLong(shadowLsn).putInt(shadowSize);
+            for (int slot = 0; slot < shadowSize; slot++)
+            {
+                byte[] name = name(slot).getBytes(StandardCharsets.UTF_8);
+                long balance = shadow[slot >>> AccountTable.PAGE_BITS][slot & AccountTable.PAGE_MASK];
+                // a closed account is written without its credential, the live
+                // table may not have dropped it yet
+                byte[] credential = balance == AccountTable.CLOSED ? AccountTable.NO_CREDENTIAL : table.credential(slot);
+                map.putShort((short) name.length).put(name);
+                map.putShort((short) credential.length).put(credential);
+                map.putLong(balance);
+            }
+            map.force();
+            channel.truncate(map.position());
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * this function reads the name of an account whose creation is in the shadow,
+     * the live table adds the account right after logging it, so it's there at
+     * once or a moment later
+     *
+     * @param slot the slot of the account
+     * @return the username
+     */
+    protected String name(int slot)
+    {
+        while (table.size() <= slot)
+        {
+            Thread.onSpinWait();
+        }
+        return table.name(slot);
+    }
+
+    /**
+     * this function sets a shadow balance, growing the shadow as needed
+     *
+     * @param slot the slot of the account
+     * @param balance the balance
+     */
+    protected void setShadow(int slot, long balance)
+    {
+        int page = slot >>> AccountTable.PAGE_BITS;
+        if (page >= shadow.length)
+        {
+            int pages = shadow.length;
+            shadow = Arrays.copyOf(shadow, page + 1);
+            for (; pages <= page; pages++)
+            {
+                shadow[pages] = new long[AccountTable.PAGE_SIZE];
+            }
+        }
+        shadow[page][slot & AccountTable.PAGE_MASK] = balance;
+        shadowSize = Math.max(shadowSize, slot + 1);
+    }
+}
@@ -0,0 +1,132 @@
+package org.example.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counts durations in buckets whose width grows with the value, every session
+ * records into the same histogram, so the counts are spread over a few stripes
+ * picked by thread and only added up when the histogram is read
+ *
+ * a bucket keeps the 3 highest bits of the duration, so a percentile is at most
+ * 25% over, which is plenty for telling a 20 us command from a 2 ms one, and
+ * keeps a histogram of every command small
+ */
+public class StripedHistogram
+{
+    protected final static int SUB_BITS = 3;
+    protected final static HistogramBuckets BUCKETS = new HistogramBuckets(SUB_BITS);
+
+    // the most stripes of a histogram, more cores share them
+    public final static int MAX_STRIPES = 8;
+
+    protected final AtomicLongArray[] stripes;
+    protected final int mask;
+    protected final LongAdder sum = new LongAdder();
+    protected final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public StripedHistogram()
+    {
+        // a power of two, so a stripe is picked with a mask
+        int cores = Runtime.getRuntime().availableProcessors();
+        int count = Math.min(MAX_STRIPES, Integer.highestOneBit(cores * 2 - 1));
+        this.stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++)
+        {
+            stripes[i] = new AtomicLongArray(BUCKETS.count());
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * this function records one duration, it costs an uncontended atomic
+     * increment and two adds
+     *
+     * @param value the duration, in nanoseconds
+     */
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+        int hash = System.identityHashCode(Thread.currentThread());
+        stripes[(hash ^ (hash >>> 16)) & mask].incrementAndGet(BUCKETS.index(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long count()
+    {
+        long count = 0;
+        for (AtomicLongArray stripe : stripes)
+        {
+            for (int i = 0; i < stripe.length(); i++)
+            {
+                count += stripe.get(i);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the sum of the durations recorded, in nanoseconds
+     */
+    public long sum()
+    {
+        return sum.sum();
+    }
+
+    /**
+     * @return the longest duration recorded, in nanoseconds
+     */
+    public long max()
+    {
+        return max.get();
+    }
+
+    /**
+     * this function finds the durations that shares of the recorded ones are at
+     * or under, in one pass over the buckets
+     *
+     * @param percentiles e.g. 50, 99, 99.9, in increasing order
+     * @return the durations in nanoseconds, 0 if nothing was recorded
+     */
+    public long[] percentiles(double... percentiles)
+    {
+        long[] counts = new long[BUCKETS.count()];
+        long recorded = 0;
+        for (AtomicLongArray stripe : stripes)
+        {
+            for (int i = 0; i < stripe.length(); i++)
+            {
+                long count = stripe.get(i);
+                counts[i] += count;
+                recorded += count;
+            }
+        }
+
+        long[] values = new long[percentiles.length];
+        if (recorded == 0)
+        {
+            return values;
+        }
+        long highest = max.get();
+        int p = 0;
+        long seen = 0;
+        for (int i = 0; i < counts.length && p < percentiles.length; i++)
+        {
+            seen += counts[i];
+            while (p < percentiles.length && seen >= Math.max(1, (long) Math.ceil(percentiles[p] / 100 * recorded)))
+            {
+                values[p++] = Math.min(BUCKETS.highest(i), highest);
+            }
+        }
+        while (p < percentiles.length)
+        {
+            values[p++] = highest;
+        }
+        return values;
+    }
+}
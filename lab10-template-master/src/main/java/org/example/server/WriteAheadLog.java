@@ -0,0 +1,723 @@
+package org.example.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * an append-only log of every change to the ledger, a change is acknowledged to
+ * the client only once its record is on disk
+ *
+ * records are appended to an in-memory batch and a single writer thread writes
+ * and forces whole batches, so many sessions share one FileChannel.force() (group
+ * commit), a batch is written when it holds maxBatch records or when its oldest
+ * record has waited maxDelay, whichever comes first
+ *
+ * every record is framed as [int length][int crc32][byte type][payload], where
+ * length and crc cover the type and the payload, so a torn write at the end of
+ * the file is detected and dropped on replay
+ *
+ * positions in the log (LSNs) are byte offsets of the end of a record
+ *
+ * a primary ships the bytes of its durable records to its replicas as they
+ * are, a replica appends the same records in the same order, so an LSN means
+ * the same position on both
+ *
+ * the log is never truncated: the LSNs are offsets into the file, and a new
+ * replica starts from LSN 0 since the primary only ships records, so the file
+ * grows by every change (21 bytes for a DEP or WITH, 25 for an XFER) for the
+ * life of the server, snapshots only bound what a restart replays
+ */
+public class WriteAheadLog extends Thread implements Closeable
+{
+    // record types
+    public final static byte OPEN = 1;
+    public final static byte DEPOSIT = 2;
+    public final static byte WITHDRAW = 3;
+    public final static byte BATCH = 4;
+    public final static byte CLOSE = 5;
+    public final static byte TRANSFER = 6;
+
+    // int length + int crc
+    protected final static int HEADER = 8;
+
+    /**
+     * receives the records of the log when it's replayed
+     */
+    public interface Handler
+    {
+        void onOpen(int slot, String user, byte[] credential, long balance);
+
+        void onDeposit(int slot, long amount);
+
+        void onWithdraw(int slot, long amount);
+
+        // positive amounts are deposits, negative amounts withdrawals
+        void onBatch(int slot, long[] amounts);
+
+        // the account moved out, with the balance it had when it did
+        void onClose(int slot, long balance);
+
+        // money moved from one account to another, both or neither
+        void onTransfer(int from, int to, long amount);
+    }
+
+    protected final Path path;
+    protected final FileChannel channel;
+    protected final int maxBatch;
+    protected final long maxDelayNanos;
+
+    // guards everything below
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition batchReady = lock.newCondition();
+    protected final Condition forced = lock.newCondition();
+
+    // records waiting for the writer, and the buffer the writer is flushing
+    protected ByteBuffer filling = ByteBuffer.allocate(64 * 1024);
+    protected ByteBuffer flushing = ByteBuffer.allocate(64 * 1024);
+    protected int fillingRecords = 0;
+    protected long fillingSince = 0;
+
+    // where the record between begin() and end() starts in the filling batch
+    protected int recordStart = 0;
+
+    // the end of the last appended record, and of the last record on disk
+    protected long appendedLsn;
+    protected long durableLsn;
+
+    // set if the writer fails, every waiting and later append fails with it
+    protected IOException failure = null;
+    protected boolean closed = false;
+
+    protected final CRC32 crc = new CRC32();
+
+    /**
+     * @param _path the log file, created if missing
+     * @param _maxBatch the most records written by one force
+     * @param maxDelayMicros the longest a record waits for its batch to fill up
+     * @throws IOException if the file can't be opened
+     */
+    public WriteAheadLog(Path _path, int _maxBatch, long maxDelayMicros) throws IOException
+    {
+        super("WriteAheadLog");
+        setDaemon(true);
+
+        this.path = _path;
+        this.maxBatch = Math.max(1, _maxBatch);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+
+        if (path.getParent() != null)
+        {
+            Files.createDirectories(path.getParent());
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * this function reads every intact record of the log after a position, drops
+     * a torn record at the end and positions the log after the last intact record,
+     * it must be called before the writer is started
+     *
+     * @param handler receives the records in log order
+     * @param from the LSN to start from, 0 for the whole log
+     * @return the number of records replayed
+     * @throws IOException if the file can't be read, or is shorter than from
+     */
+    public long replay(Handler handler, long from) throws IOException
+    {
+        long size = channel.size();
+        if (from > size)
+        {
+            throw new IOException(path + " ends at " + size + ", before the snapshot at " + from);
+        }
+
+        long[] records = new long[1];
+        long position = scan(from, size, handler, records);
+
+        if (position < size)
+        {
+            ServerLog.log(ServerLog.Level.WARN, getName(),
+                    "Dropping " + (size - position) + " bytes of torn records at the end of " + path);
+            channel.truncate(position);
+        }
+        channel.position(position);
+
+        appendedLsn = position;
+        durableLsn = position;
+        return records[0];
+    }
+
+    /**
+     * this function reads the records between two LSNs, it may be called while
+     * the writer runs as long as to isn't past the durable LSN
+     *
+     * @param from the LSN to start from
+     * @param to the LSN to stop at
+     * @param handler receives the records in log order
+     * @return the LSN after the last record read
+     * @throws IOException if the file can't be read
+     */
+    public long read(long from, long to, Handler handler) throws IOException
+    {
+        return scan(from, to, handler, new long[1]);
+    }
+
+    /**
+     * this function decodes the intact records between two positions
+     *
+     * @param from the position to start from
+     * @param to the position to stop at
+     * @param handler receives the records in log order
+     * @param records counts the records decoded
+     * @return the position after the last intact record
+     * @throws IOException if the file can't be read
+     */
+    protected long scan(long from, long to, Handler handler, long[] records) throws IOException
+    {
+        long position = from;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        CRC32 checksum = new CRC32();
+
+        while (position + HEADER <= to)
+        {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int expected = header.getInt();
+
+            if (length <= 0 || position + HEADER + length > to)
+            {
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(length);
+            channel.read(record, position + HEADER);
+            record.flip();
+
+            checksum.reset();
+            checksum.update(record.duplicate());
+            if ((int) checksum.getValue() != expected)
+            {
+                break;
+            }
+
+            decode(record, handler, path.toString());
+            position += HEADER + length;
+            records[0]++;
+        }
+
+        return position;
+    }
+
+    /**
+     * this function decodes the framed records shipped by a primary, which
+     * are whole records read by readDurable()
+     *
+     * @param records the records, from their position to their limit
+     * @param handler receives the records in log order
+     * @return the number of records decoded
+     * @throws IOException if a record is cut short or fails its checksum
+     */
+    public static int decodeRecords(ByteBuffer records, Handler handler) throws IOException
+    {
+        CRC32 checksum = new CRC32();
+        int count = 0;
+        while (records.hasRemaining())
+        {
+            if (records.remaining() < HEADER)
+            {
+                throw new IOException("A record is cut short");
+            }
+            int length = records.getInt();
+            int expected = records.getInt();
+            if (length <= 0 || length > records.remaining())
+            {
+                throw new IOException("A record is cut short");
+            }
+
+            ByteBuffer record = records.slice(records.position(), length);
+            records.position(records.position() + length);
+            checksum.reset();
+            checksum.update(record.duplicate());
+            if ((int) checksum.getValue() != expected)
+            {
+                throw new IOException("A record fails its checksum");
+            }
+            decode(record, handler, "the shipped records");
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * this function decodes one record and hands it to the handler
+     *
+     * @param record the type and the payload of the record
+     * @param handler receives the record
+     * @param source where the record was read, for the error of an unknown type
+     */
+    protected static void decode(ByteBuffer record, Handler handler, String source)
+    {
+        byte type = record.get();
+        switch (type)
+        {
+            case OPEN:
+            {
+                int slot = record.getInt();
+                long balance = record.getLong();
+                String user = new String(readBytes(record), StandardCharsets.UTF_8);
+                byte[] credential = readBytes(record);
+                handler.onOpen(slot, user, credential, balance);
+                break;
+            }
+            case DEPOSIT:
+                handler.onDeposit(record.getInt(), record.getLong());
+                break;
+            case WITHDRAW:
+                handler.onWithdraw(record.getInt(), record.getLong());
+                break;
+            case BATCH:
+            {
+                int slot = record.getInt();
+                long[] amounts = new long[record.getInt()];
+                for (int i = 0; i < amounts.length; i++)
+                {
+                    amounts[i] = record.getLong();
+                }
+                handler.onBatch(slot, amounts);
+                break;
+            }
+            case CLOSE:
+                handler.onClose(record.getInt(), record.getLong());
+                break;
+            case TRANSFER:
+                handler.onTransfer(record.getInt(), record.getInt(), record.getLong());
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type " + type + " in " + source);
+        }
+    }
+
+    /**
+     * this function logs the creation of an account
+     *
+     * @return the LSN to wait for before acknowledging
+     */
+    public long appendOpen(int slot, String user, byte[] credential, long balance)
+    {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+
+        lock.lock();
+        try
+        {
+            ByteBuffer buffer = begin(1 + 4 + 8 + 2 + name.length + 2 + credential.length);
+            buffer.put(OPEN).putInt(slot).putLong(balance);
+            buffer.putShort((short) name.length).put(name);
+            buffer.putShort((short) credential.length).put(credential);
+            return end();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * this function logs a deposit or a withdrawal
+     *
+     * @param type DEPOSIT or WITHDRAW
+     * @return the LSN to wait for before acknowledging
+     */
+    public long appendAmount(byte type, int slot, long amount)
+    {
+        lock.lock();
+        try
+        {
+            ByteBuffer buffer = begin(1 + 4 + 8);
+            buffer.put(type).putInt(slot).putLong(amount);
+            return end();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * this function logs the operations of a batch as one record, so they're
+     * replayed all together or not at all
+     *
+     * @param amounts positive amounts are deposits, negative amounts withdrawals
+     * @param count the number of operations
+     * @return the LSN to wait for before acknowledging
+     */
+    public long appendBatch(int slot, long[] amounts, int count)
+    {
+        lock.lock();
+        try
+        {
+            ByteBuffer buffer = begin(1 + 4 + 4 + 8 * count);
+            buffer.put(BATCH).putInt(slot).putInt(count);
+            for (int i = 0; i < count; i++)
+            {
+                buffer.putLong(amounts[i]);
+            }
+            return end();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * this function logs that an account moved out, the balance it took along is
+     * kept in the record, so the money can be traced if the move went wrong
+     *
+     * @return the LSN to wait for before acknowledging
+     */
+    public long appendClose(int slot, long balance)
+    {
+        lock.lock();
+        try
+        {
+            ByteBuffer buffer = begin(1 + 4 + 8);
+            buffer.put(CLOSE).putInt(slot).putLong(balance);
+            return end();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * this function logs a transfer as one record, so the debit and the credit
+     * are replayed together or not at all
+     *
+     * @return the LSN to wait for before acknowledging
+     */
+    public long appendTransfer(int from, int to, long amount)
+    {
+        lock.lock();
+        try
+        {
+            ByteBuffer buffer = begin(1 + 4 + 4 + 8);
+            buffer.put(TRANSFER).putInt(from).putInt(to).putLong(amount);
+            return end();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * this function reserves room for a record in the filling batch, it's only
+     * called with the lock held
+     *
+     * @param length the length of the type and the payload
+     * @return the batch, positioned after the record's header
+     */
+    protected ByteBuffer begin(int length)
+    {
+        if (failure != null || closed)
+        {
+            throw new UncheckedIOException(new IOException("The write-ahead log is not accepting records", failure));
+        }
+
+        if (filling.remaining() < HEADER + length)
+        {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(filling.capacity() * 2, filling.position() + HEADER + length));
+            filling.flip();
+            bigger.put(filling);
+            filling = bigger;
+        }
+
+        // the checksum is filled in by end()
+        recordStart = filling.position();
+        filling.putInt(length).putInt(0);
+        return filling;
+    }
+
+    /**
+     * this function completes the record started by begin(), it's only called
+     * with the lock held
+     *
+     * @return the LSN of the record
+     */
+    protected long end()
+    {
+        int length = filling.position() - recordStart - HEADER;
+
+        crc.reset();
+        crc.update(filling.array(), recordStart + HEADER, length);
+        filling.putInt(recordStart + 4, (int) crc.getValue());
+
+        if (fillingRecords++ == 0)
+        {
+            fillingSince = System.nanoTime();
+        }
+        appendedLsn += HEADER + length;
+
+        if (fillingRecords == 1 || fillingRecords >= maxBatch)
+        {
+            batchReady.signal();
+        }
+        return appendedLsn;
+    }
+
+    /**
+     * this function blocks until the record at lsn is on disk
+     *
+     * @param lsn the LSN returned when the record was appended
+     * @throws UncheckedIOException if the log failed before the record was forced
+     */
+    public void awaitDurable(long lsn)
+    {
+        lock.lock();
+        try
+        {
+            while (durableLsn < lsn)
+            {
+                if (failure != null)
+                {
+                    throw new UncheckedIOException(failure);
+                }
+                forced.awaitUninterruptibly();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * this function waits for records past an LSN to reach the disk, a
+     * primary's shipper waits on it for something to send its replicas
+     *
+     * @param lsn the LSN the caller has
+     * @param timeoutMillis the longest to wait
+     * @return the durable LSN, not past lsn if the wait timed out
+     * @throws IOException if the log failed
+     */
+    public long awaitPast(long lsn, long timeoutMillis) throws IOException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try
+        {
+            long wait;
+            while (durableLsn <= lsn && failure == null && !closed && (wait = deadline - System.nanoTime()) > 0)
+            {
+                try
+                {
+                    forced.awaitNanos(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            return durableLsn;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * this function reads the framed records between an LSN and the durable
+     * end of the log as they are on disk, only whole records, as many as fit
+     *
+     * @param from the LSN to start from, the end of a record
+     * @param into receives the records, it's cleared first and flipped after
+     * @return the LSN after the last record read
+     * @throws IOException if the file can't be read
+     */
+    public long readDurable(long from, ByteBuffer into) throws IOException
+    {
+        long to = Math.min(durableLsn(), from + into.capacity());
+        into.clear().limit((int) (to - from));
+        while (into.hasRemaining())
+        {
+            if (channel.read(into, from + into.position()) < 0)
+            {
+                throw new IOException(path + " ends before its durable LSN " + to);
+            }
+        }
+        into.flip();
+
+        // dropping the record cut by the end of the buffer
+        int whole = 0;
+        while (whole + HEADER <= into.limit() && whole + HEADER + into.getInt(whole) <= into.limit())
+        {
+            whole += HEADER + into.getInt(whole);
+        }
+        into.limit(whole);
+        return from + whole;
+    }
+
+    /**
+     * @return the end of the last record on disk
+     */
+    public long durableLsn()
+    {
+        lock.lock();
+        try
+        {
+            return durableLsn;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void run()
+    {
+        while (true)
+        {
+            long batchLsn;
+
+            lock.lock();
+            try
+            {
+                // waiting for the first record, then for the batch to fill up or age out
+                while (fillingRecords == 0 && !closed)
+                {
+                    batchReady.awaitUninterruptibly();
+                }
+                if (fillingRecords == 0)
+                {
+                    return;
+                }
+
+                long deadline = fillingSince + maxDelayNanos;
+                long wait;
+                while (fillingRecords < maxBatch && !closed && (wait = deadline - System.nanoTime()) > 0)
+                {
+                    try
+                    {
+                        batchReady.awaitNanos(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        break;
+                    }
+                }
+
+                // swapping the buffers so appends carry on while the batch is written
+                ByteBuffer batch = filling;
+                filling = flushing;
+                flushing = batch;
+                filling.clear();
+                fillingRecords = 0;
+                batchLsn = appendedLsn;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try
+            {
+                flushing.flip();
+                while (flushing.hasRemaining())
+                {
+                    channel.write(flushing);
+                }
+                channel.force(false);
+            }
+            catch (IOException e)
+            {
+                error = e;
+            }
+
+            lock.lock();
+            try
+            {
+                if (error != null)
+                {
+                    ServerLog.log(ServerLog.Level.ERROR, getName(), "Error writing the write-ahead log: " + error);
+                    failure = error;
+                }
+                else
+                {
+                    durableLsn = batchLsn;
+                }
+                forced.signalAll();
+                if (error != null)
+                {
+                    return;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * this function writes the records appended so far, stops the writer and
+     * closes the file
+     */
+    @Override
+    public void close() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            batchReady.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        try
+        {
+            join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * this function reads a length-prefixed byte array
+     *
+     * @param buffer the record
+     * @return the bytes
+     */
+    protected static byte[] readBytes(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return bytes;
+    }
+}